@@ -0,0 +1,30 @@
+#!/bin/sh
+# Build and run the JMH benchmarks in bench/.
+# JMH refuses benchmarks in the default package, so src/ is copied into
+# package farm next to the benchmarks. Results go to bench-results.json.
+# Extra arguments are passed to JMH, e.g. ./bench.sh FieldBenchmark -f 2
+set -e
+JMH_VERSION=1.37
+MAVEN=https://repo1.maven.org/maven2
+mkdir -p lib
+for jar in \
+    org/openjdk/jmh/jmh-core/$JMH_VERSION/jmh-core-$JMH_VERSION.jar \
+    org/openjdk/jmh/jmh-generator-annprocess/$JMH_VERSION/jmh-generator-annprocess-$JMH_VERSION.jar \
+    net/sf/jopt-simple/jopt-simple/5.0.4/jopt-simple-5.0.4.jar \
+    org/apache/commons/commons-math3/3.6.1/commons-math3-3.6.1.jar
+do
+    [ -f lib/$(basename $jar) ] || curl -sfL -o lib/$(basename $jar) $MAVEN/$jar
+done
+
+echo "[*] Compiling bench/"
+rm -rf build/bench
+mkdir -p build/bench/src/farm build/bench/classes
+for f in src/*.java; do
+    { echo "package farm;"; cat $f; } > build/bench/src/farm/$(basename $f)
+done
+cp bench/*.java build/bench/src/farm/
+javac --release 21 -cp "lib/*" -proc:full -d build/bench/classes build/bench/src/farm/*.java
+
+echo "[*] Running benchmarks"
+java -cp "build/bench/classes:lib/*" org.openjdk.jmh.Main \
+    -rf json -rff bench-results.json "$@"
@@ -0,0 +1,29 @@
+package farm;
+
+/* Shared setup for the benchmarks.
+ * bench.sh compiles src/ into package farm together with these files, so the
+ * benchmarks can reach package-private members just like the simulation. */
+final class BenchmarkSupport {
+    private BenchmarkSupport() {}
+
+    /* A fresh, initialised simulation whose farmers are scheduled on the
+     * event scheduler but never run, with logging turned down to errors. */
+    static Simulation quietSimulation() {
+        Logger.setLevel(Logger.Level.ERROR);
+        Simulation sim = new Simulation();
+        sim.setVirtualTime(true);
+        sim.init();
+        return sim;
+    }
+
+    /* A delivery of DELIVERY_SIZE animals spread over every type. */
+    static int[] evenDelivery(Simulation sim) {
+        int types = sim.types.count();
+        int[] delivery = new int[types];
+        for (int i = 0; i < types; i++) {
+            delivery[i] = Simulation.DELIVERY_SIZE / types
+                + (i < Simulation.DELIVERY_SIZE % types ? 1 : 0);
+        }
+        return delivery;
+    }
+}
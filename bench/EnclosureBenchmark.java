@@ -0,0 +1,90 @@
+package farm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Enclosure.putDelivery (including keeping the most-stocked order) and both
+ * takeAnimals rules. Each take benchmark first delivers a load so the
+ * enclosure does not run dry; the backlog decides which rule takeAnimals
+ * goes down. putDelivery empties the array it is given, so every put gets a
+ * fresh copy of the delivery, and takes land in one reused load, the way a
+ * Farmer does it. Run with -prof gc to see allocation per operation. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EnclosureBenchmark {
+    private static final int BACKLOG_DELIVERIES = 10;
+
+    private Simulation sim;
+    private Enclosure enclosure;
+    private int[] delivery;
+    private int[] truck;
+    private int[] load;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        this.sim = BenchmarkSupport.quietSimulation();
+        this.delivery = BenchmarkSupport.evenDelivery(this.sim);
+        this.truck = new int[this.delivery.length];
+        this.load = new int[this.delivery.length];
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        this.enclosure = new Enclosure(this.sim, 0, 0, new Signal());
+    }
+
+    @Benchmark
+    public Object putDelivery() {
+        this.deliver();
+        return this.enclosure;
+    }
+
+    /* Most stocked type first, from a backlog. */
+    @Benchmark
+    public int takeSome() {
+        if (this.enclosure.getAnimalCount() < Simulation.FARMER_CAPACITY) {
+            for (int i = 0; i < BACKLOG_DELIVERIES; i++) this.deliver();
+        }
+        this.deliver();
+        return this.enclosure.takeSomeAnimals(Simulation.FARMER_CAPACITY, this.load);
+    }
+
+    /* Rule 1: the farmer can carry everything in the enclosure. */
+    @Benchmark
+    public int takeAllRule1() {
+        this.deliver();
+        return this.enclosure.takeAnimals(Simulation.FARMER_CAPACITY, this.load);
+    }
+
+    /* Rule 2: backlog is bigger than a load, pick by field urgency. */
+    @Benchmark
+    public int takeByUrgencyRule2() {
+        if (this.enclosure.isEmpty()) {
+            for (int i = 0; i < BACKLOG_DELIVERIES; i++) {
+                this.deliver();
+            }
+        }
+        this.deliver();
+        return this.enclosure.takeAnimals(Simulation.FARMER_CAPACITY, this.load);
+    }
+
+    private int deliver() {
+        System.arraycopy(this.delivery, 0, this.truck, 0, this.truck.length);
+        return this.enclosure.putDelivery(this.truck);
+    }
+}
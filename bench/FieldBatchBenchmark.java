@@ -0,0 +1,55 @@
+package farm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Serving a burst of queued buyers. Before each invocation an empty field
+ * of capacity burst gets burst buyers queued on it; the invocation is one
+ * farmer stocking it full, which hands every buyer an animal. Divide the
+ * time by burst for the cost per buyer served. No threads, so this is the
+ * hand-off alone, without wakeup latency. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FieldBatchBenchmark {
+    @Param({"10", "100", "1000"})
+    private int burst;
+
+    private Field field;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        BenchmarkSupport.quietSimulation();
+    }
+
+    @Setup(Level.Invocation)
+    public void queueBuyers() {
+        this.field = new Field(0, Simulation.ANIMAL_TYPES[0], this.burst, 0,
+                               new UrgencyIndex(1));
+        for (int i = 0; i < this.burst; i++) {
+            this.field.takeAnimalOrQueue(new Signal());
+        }
+    }
+
+    @Benchmark
+    public int restock() {
+        this.field.tryStartStocking();
+        this.field.finishStocking(this.burst);
+        return this.field.getBuyerCount();
+    }
+}
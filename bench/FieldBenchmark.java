@@ -0,0 +1,68 @@
+package farm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* The Field fast paths with 1, 4 and 16 threads on one field. Every thread
+ * tries to buy; whoever finds the field empty restocks it to capacity the
+ * way a Farmer does. Nobody ever queues, so neither side can get stuck
+ * waiting for the other when the iteration ends. FieldContentionBenchmark
+ * covers the queueing side. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FieldBenchmark {
+    private Field field;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        BenchmarkSupport.quietSimulation();
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        this.field = new Field(0, Simulation.ANIMAL_TYPES[0], 10, 10,
+                               new UrgencyIndex(1));
+    }
+
+    private Boolean buyThenRestock() {
+        Boolean bought = this.field.tryTakeAnimal();
+        if (this.field.isEmpty() && this.field.tryStartStocking()) {
+            this.field.finishStocking(this.field.getAnimalsMissing());
+        }
+        return bought;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Boolean contention01() {
+        return this.buyThenRestock();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Boolean contention04() {
+        return this.buyThenRestock();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Boolean contention16() {
+        return this.buyThenRestock();
+    }
+}
@@ -0,0 +1,193 @@
+package farm;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* 1 to 10k buyers on virtual threads, all after the same field of 10, with
+ * one farmer restocking it whenever it runs dry. One invocation is one
+ * round: every buyer buys one animal. "buys" is reported as buys per
+ * second; the wait from a buyer starting to it holding an animal goes into
+ * a Histogram whose p99 is printed at the end of the trial.
+ *
+ * field=cas is Field: a buyer queues once and is handed an animal.
+ * field=mailbox is Field as an actor on a pool of MAILBOX_THREADS: every buy
+ * and restock is a message, run one at a time.
+ * field=legacy is LegacyField: a buyer takes the fair semaphore and the
+ * lock, finds the field empty and tries again. The old Buyer slept 10 ticks
+ * between tries; here it only yields, which flatters the legacy numbers. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FieldContentionBenchmark {
+    private static final int CAPACITY = 10;
+    private static final int MAILBOX_THREADS = 2;
+
+    @Param({"1", "100", "1000", "10000"})
+    private int buyers;
+
+    @Param({"cas", "mailbox", "legacy"})
+    private String field;
+
+    private Field        casField;
+    private LegacyField  legacyField;
+    private Signal       changed;
+    private AtomicInteger remaining;
+    private Histogram    waits; // Microseconds.
+    private ExecutorService pool; // field=mailbox only.
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Buys {
+        public long buys;
+
+        @Setup(Level.Iteration)
+        public void reset() { this.buys = 0; }
+    }
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        BenchmarkSupport.quietSimulation();
+        this.waits = new Histogram();
+        if (this.field.equals("mailbox")) {
+            this.pool = Mailbox.pool(MAILBOX_THREADS);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() {
+        if (!this.field.equals("legacy")) {
+            this.casField = new Field(0, Simulation.ANIMAL_TYPES[0],
+                                      CAPACITY, CAPACITY, new UrgencyIndex(1));
+            if (this.pool != null) this.casField.setMailbox(new Mailbox(this.pool));
+            this.changed  = this.casField.changed;
+        } else {
+            this.legacyField = new LegacyField(0, Simulation.ANIMAL_TYPES[0],
+                                               CAPACITY, CAPACITY);
+            this.changed     = this.legacyField.changed;
+        }
+        this.remaining = new AtomicInteger(this.buyers);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        System.out.println();
+        System.out.println("field=" + this.field + " buyers=" + this.buyers
+            + " wait us: " + this.waits.summary()
+            + " p99=" + this.waits.getPercentile(0.99));
+        if (this.pool != null) this.pool.shutdown();
+    }
+
+    @Benchmark
+    public void round(Buys counter) throws InterruptedException {
+        Thread[] threads = new Thread[this.buyers];
+        for (int i = 0; i < this.buyers; i++) {
+            threads[i] = Thread.ofVirtual().start(this::buyOne);
+        }
+        Thread farmer = Thread.ofVirtual().start(this::restock);
+        for (Thread thread : threads) thread.join();
+        farmer.join();
+        counter.buys += this.buyers;
+    }
+
+    private void buyOne() {
+        long start = System.nanoTime();
+        try {
+            if (!this.field.equals("legacy")) {
+                this.casBuy();
+            } else {
+                this.legacyBuy();
+            }
+        } catch (InterruptedException e) {
+            return;
+        }
+        this.waits.record((int) ((System.nanoTime() - start) / 1000));
+        if (this.remaining.decrementAndGet() == 0) this.changed.signalAll();
+    }
+
+    private void casBuy() throws InterruptedException {
+        Signal wakeup = new Signal();
+        long generation = wakeup.generation();
+        Field.Waiter waiter = this.casField.takeAnimalOrQueue(wakeup);
+        while (waiter != null && !waiter.isGranted()) {
+            wakeup.await(generation);
+            generation = wakeup.generation();
+        }
+    }
+
+    /* Take the field, fill it, and wait for a mailbox to have run that
+     * before looking at it again. */
+    private void casStock(Signal wakeup) throws InterruptedException {
+        long generation = wakeup.generation();
+        Field.Waiter waiter = this.casField.startStockingOrQueue(wakeup);
+        while (waiter != null && !waiter.isGranted()) {
+            wakeup.await(generation);
+            generation = wakeup.generation();
+        }
+        this.casField.finishStocking(this.casField.getAnimalsMissing());
+        while (this.casField.isStocking()) Thread.onSpinWait();
+    }
+
+    private void legacyBuy() throws InterruptedException {
+        while (true) {
+            this.legacyField.acquireBuyerQueue();
+            try {
+                if (!this.legacyField.isEmpty()) {
+                    this.legacyField.takeAnimal();
+                    return;
+                }
+            } finally {
+                this.legacyField.releaseBuyerQueue();
+            }
+            Thread.yield();
+        }
+    }
+
+    /* Fill the field back up each time it runs dry, until every buyer has
+     * bought. Parks on the field's Signal in between, like a Farmer. */
+    private void restock() {
+        Signal wakeup = new Signal();
+        try {
+            while (this.remaining.get() > 0) {
+                long generation = this.changed.generation();
+                if (!this.field.equals("legacy")) {
+                    if (this.casField.isEmpty()) {
+                        this.casStock(wakeup);
+                        continue;
+                    }
+                } else if (this.legacyField.isEmpty()
+                           && this.legacyField.farmerQueue.tryAcquire()) {
+                    try {
+                        if (this.legacyField.isEmpty()) {
+                            this.legacyField.putAnimals(CAPACITY);
+                        }
+                    } finally {
+                        this.legacyField.farmerQueue.release();
+                    }
+                    continue;
+                }
+                if (this.remaining.get() > 0) this.changed.await(generation);
+            }
+        } catch (InterruptedException e) {
+            return;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package farm;
+
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Field as it was before the stock moved into one CAS-managed state word:
+ * two fair semaphores, a lock with two conditions and a volatile count.
+ * Kept, without the urgency index, so FieldContentionBenchmark can compare
+ * the two. Not used by the simulation. */
+public class LegacyField {
+    private String fieldType;
+    private int fieldId;
+    private volatile int animalCount;
+    private int capacity;
+    /* Buyers and farmers waiting to get in. */
+    private AtomicInteger buyersQueued;
+    private AtomicInteger farmersQueued;
+
+    public  Semaphore buyerQueue;
+    public  Semaphore farmerQueue;
+    /* Fired when a farmer turned away may now get in: an animal was
+     * taken, or the last waiting buyer left. */
+    public  Signal    changed;
+    private Boolean   isGettingFilled;
+    private ReentrantLock lock;
+    private Condition wakeUpBuyers;
+    private Condition wakeUpFarmers;
+
+    LegacyField(int id, String type, int capacity, int animalCount) {
+        this.fieldId = id;
+        this.fieldType = type;
+        this.capacity = capacity;
+        if(animalCount > capacity) {
+            this.animalCount = capacity;
+        } else {
+            this.animalCount = animalCount;
+        }
+        this.init();
+    }
+
+    private void init() {
+        this.buyersQueued     = new AtomicInteger(0);
+        this.farmersQueued    = new AtomicInteger(0);
+        this.isGettingFilled = false;
+        this.buyerQueue  = new Semaphore(1, true);
+        this.farmerQueue = new Semaphore(1, true);
+        this.changed     = new Signal();
+        this.lock        = new ReentrantLock();
+        this.wakeUpBuyers  = lock.newCondition();
+        this.wakeUpFarmers = lock.newCondition();
+        Logger.status(
+            "Field Type: " + this.fieldType
+            + " Animal Count: " + this.animalCount
+            + " Capacity: " + this.capacity);
+    }
+
+    public String getFieldType() { return this.fieldType; }
+    public int getFieldId() { return this.fieldId; }
+    public int getAnimalCount() { return this.animalCount; }
+    public int getAnimalsMissing() { return this.capacity - this.animalCount; }
+    public int getCapacity() { return this.capacity; }
+    public int getBuyerCount() { return this.buyerQueue.getQueueLength(); }
+    public int getFarmerCount() { return this.farmerQueue.getQueueLength(); }
+    /* No monitors here: a blocking call under synchronized pins the carrier
+     * thread when actors run on virtual threads. animalCount is volatile and
+     * only written while holding lock. */
+    public Boolean isEmpty() { return this.animalCount == 0; }
+    public Boolean isFull() { return this.animalCount == this.capacity; }
+
+    public void acquireBuyerQueue() throws InterruptedException {
+        // Timed so the semaphore stays fair; nobody queued, no change.
+        if (this.buyerQueue.tryAcquire(0, TimeUnit.SECONDS)) return;
+        this.buyersQueued.getAndIncrement();
+        try {
+            this.buyerQueue.acquire();
+        } finally {
+            this.buyersQueued.getAndDecrement();
+        }
+    }
+
+    public void acquireFarmerQueue() throws InterruptedException {
+        // Timed so the semaphore stays fair; nobody queued, no change.
+        if (this.farmerQueue.tryAcquire(0, TimeUnit.SECONDS)) return;
+        this.farmersQueued.getAndIncrement();
+        try {
+            this.farmerQueue.acquire();
+        } finally {
+            this.farmersQueued.getAndDecrement();
+        }
+    }
+
+    public void releaseBuyerQueue() {
+        this.buyerQueue.release();
+        if (this.getBuyerCount() == 0) this.changed.signalAll();
+    }
+
+    /* Put animals into the Field. */
+    public void putAnimals(Integer animalCount) throws InterruptedException {
+        lock.lock();
+        try {
+            Logger.log("trying to stock up...");
+            while (!this.isGettingFilled
+                   && this.getBuyerCount() > 0) {
+                wakeUpFarmers.await();
+            }
+
+            this.animalCount += animalCount;
+
+            if (this.animalCount == this.capacity) {
+                isGettingFilled = false;
+                wakeUpBuyers.signal();
+            }
+            Logger.log("added " + animalCount + " animals to field");
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void takeAnimal() throws InterruptedException {
+        lock.lock();
+        try {
+            Logger.log("trying to take animal out");
+            while (this.isGettingFilled
+                   && this.getFarmerCount() > 0) {
+                wakeUpBuyers.await();
+            }
+
+            this.animalCount -= 1;
+            Logger.log(
+                "An animal was bought from (" + this.fieldType + ") field.");
+            Logger.status(() -> "New animal Count: " + this.animalCount);
+
+            if (this.isEmpty()) {
+                isGettingFilled = true;
+                wakeUpFarmers.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        this.changed.signalAll();
+    }
+}
@@ -0,0 +1,54 @@
+package farm;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Logger.log throughput into /dev/null, from one and from four threads,
+ * plus the cost of a record that is filtered out by level. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LoggerBenchmark {
+    private int animals = 7;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        BenchmarkSupport.quietSimulation();
+        Logger.open("/dev/null");
+        Logger.setLevel(Logger.Level.LOG);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void log1() {
+        Logger.log("is placing " + this.animals + " Cow in the Field");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void log4() {
+        Logger.log("is placing " + this.animals + " Cow in the Field");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void disabled() {
+        Logger.debug(() -> "is placing " + this.animals + " Cow in the Field");
+    }
+}
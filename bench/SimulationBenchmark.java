@@ -0,0 +1,51 @@
+package farm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Simulation.getMostUrgentFields, and a whole virtual-time run reported as
+ * simulated ticks per second. */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SimulationBenchmark {
+    private static final int DAYS = 10;
+
+    private Simulation sim;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        this.sim = BenchmarkSupport.quietSimulation();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Object mostUrgentFields() {
+        return this.sim.getMostUrgentFields();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(DAYS * Simulation.DAY_DURATION)
+    public Object ticksPerSecond() {
+        Simulation run = BenchmarkSupport.quietSimulation();
+        run.setDays(DAYS);
+        run.run();
+        return run;
+    }
+}
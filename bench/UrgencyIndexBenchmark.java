@@ -0,0 +1,83 @@
+package farm;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* UrgencyIndex with 5 to 10k fields: the cost of a field change (only
+ * queued, see update()), of the top FARMER_CAPACITY view the Enclosure asks
+ * for, of a change followed by the view that applies it, and of
+ * recomputing and sorting every urgency the way the Enclosure used to. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class UrgencyIndexBenchmark {
+    @Param({"5", "1000", "10000"})
+    private int fieldCount;
+
+    private Field[] fields;
+    private UrgencyIndex index;
+    private int[] top;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        BenchmarkSupport.quietSimulation();
+        this.index  = new UrgencyIndex(this.fieldCount);
+        this.fields = new Field[this.fieldCount];
+        for (int i = 0; i < this.fieldCount; i++) {
+            this.fields[i] = new Field(i, "Field" + i, 10, i % 11, this.index);
+        }
+        this.top  = new int[Simulation.FARMER_CAPACITY];
+        this.next = 0;
+    }
+
+    /* A field changes: one scheduled visit more, then one less. */
+    @Benchmark
+    public Object update() {
+        Field field = this.fields[this.next];
+        this.next = (this.next + 1) % this.fieldCount;
+        field.announceVisit();
+        field.announceArival();
+        return field;
+    }
+
+    @Benchmark
+    public int topK() {
+        return this.index.mostUrgent(this.top, this.top.length);
+    }
+
+    /* A change, then the query that applies it. */
+    @Benchmark
+    public int updateThenTopK() {
+        this.update();
+        return this.index.mostUrgent(this.top, this.top.length);
+    }
+
+    @Benchmark
+    public Object fullSort() {
+        int[] urgency = new int[this.fieldCount];
+        Integer[] order = new Integer[this.fieldCount];
+        for (int i = 0; i < this.fieldCount; i++) {
+            urgency[i] = this.fields[i].getUrgency();
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(urgency[b], urgency[a]));
+        return order;
+    }
+}
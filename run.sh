@@ -2,4 +2,4 @@
 echo "[*] Running build/local/main.class"
 java -Xmx50m \
     -cp build/ \
-    Simulation
+    Simulation "$@"
@@ -0,0 +1,18 @@
+/* Something the simulation can advance one step at a time.
+ * step() does one unit of work and returns how many ticks should pass before
+ * the actor is stepped again, or DONE once the actor has nothing left to do.
+ * In wall-clock mode the actor's own thread sleeps between steps; in
+ * virtual-time mode the EventScheduler jumps straight to the next step.
+ *
+ * An actor that can't make progress until something changes returns PARKED
+ * instead of a guess at how long to sleep. It is stepped again once
+ * getParkSignal() moves past getParkGeneration(). */
+public interface Actor {
+    int DONE   = -1;
+    int PARKED = -2;
+
+    int step() throws InterruptedException;
+
+    default Signal getParkSignal() { return null; }
+    default long getParkGeneration() { return 0; }
+}
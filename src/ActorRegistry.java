@@ -0,0 +1,78 @@
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/* The wall-clock actor threads, as one scope: every actor is started in it,
+ * leaves it when its thread is done, and shutdown() stops whatever is left
+ * together, like closing a StructuredTaskScope (still a preview API, so not
+ * used directly). Birth and death are a put and a remove on a concurrent
+ * map, so neither waits for the other, and nobody joins a thread while
+ * holding anything. */
+public class ActorRegistry {
+    private final ConcurrentHashMap<String, Thread> live;
+    private final Boolean virtualThreads;
+    private final AtomicInteger size;
+    private final LongAccumulator peak;
+    private volatile Boolean closed;
+
+    ActorRegistry(Boolean virtualThreads) {
+        this.live           = new ConcurrentHashMap<>();
+        this.virtualThreads = virtualThreads;
+        this.size           = new AtomicInteger(0);
+        this.peak           = new LongAccumulator(Math::max, 0);
+        this.closed         = false;
+    }
+
+    /* Start actor on a thread called name. Refused once shut down, or if
+     * an actor of that name is still alive. */
+    public Boolean spawn(String name, Runnable actor) {
+        if (this.closed) return false;
+        Thread.Builder builder = this.virtualThreads // Not thread-safe.
+                               ? Thread.ofVirtual()
+                               : Thread.ofPlatform();
+        Thread t = builder.name(name).unstarted(actor);
+        if (this.live.putIfAbsent(name, t) != null) {
+            Logger.error("thread with the name " + name + " was born already.");
+            return false;
+        }
+        this.peak.accumulate(this.size.incrementAndGet());
+        t.start();
+        return true;
+    }
+
+    /* The actor called name is done; its thread is on the way out. */
+    public void exited(String name) {
+        if (this.live.remove(name) == null) {
+            // After shutdown() the stopped actors are already gone.
+            if (!this.closed) {
+                Logger.error("Cannot declare " + name + " dead. Thread was never born.");
+            }
+            return;
+        }
+        this.size.decrementAndGet();
+    }
+
+    public int getLiveCount() { return this.size.get(); }
+    public int getPeakCount() { return (int) this.peak.get(); }
+
+    /* Refuse new actors, interrupt every live one at once, then wait for
+     * all of them against a single deadline. Returns how many threads were
+     * still running when it passed. */
+    public int shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        this.closed = true;
+        ArrayList<Thread> threads = new ArrayList<>(this.live.values());
+        for (Thread t : threads) t.interrupt();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int stuck = 0;
+        for (Thread t : threads) {
+            long left = deadline - System.nanoTime();
+            if (left > 0) t.join(left / 1_000_000, (int) (left % 1_000_000));
+            if (t.isAlive()) stuck++;
+        }
+        this.live.clear();
+        this.size.set(0);
+        return stuck;
+    }
+}
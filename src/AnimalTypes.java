@@ -0,0 +1,72 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/* Registry of animal types, loaded once at startup.
+ * Every type gets a dense id 0..count()-1 that doubles as its Field index, so
+ * per-type state (field lookup, enclosure stock, farmer loads, metrics) can
+ * live in plain arrays. Name lookups are only needed at the edges (loading,
+ * printing) and go through a hash map. */
+public class AnimalTypes {
+    /* Names go as they are into metrics JSON keys and CSV headers, the
+     * log and trace headers, so they are kept to what needs no quoting. */
+    private final static String
+        NAME = "[A-Za-z0-9_-]+";
+
+    private final String[] names;
+    private final HashMap<String, Integer> ids;
+
+    AnimalTypes(String[] names) {
+        if (names.length == 0) {
+            throw new IllegalArgumentException("No animal types given.");
+        }
+        this.names = names.clone();
+        this.ids = new HashMap<>();
+        for (int i = 0; i < this.names.length; i++) {
+            if (!this.names[i].matches(NAME)) {
+                throw new IllegalArgumentException(
+                    "Animal type \"" + this.names[i] + "\" is not a plain name.");
+            }
+            if (this.ids.put(this.names[i], i) != null) {
+                throw new IllegalArgumentException(
+                    "Animal type " + this.names[i] + " listed twice.");
+            }
+        }
+    }
+
+    /* One type per line, blank lines and lines starting with # skipped. */
+    public static AnimalTypes load(Path file) throws IOException {
+        ArrayList<String> names = new ArrayList<>();
+        for (String line : Files.readAllLines(file)) {
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            names.add(line);
+        }
+        return new AnimalTypes(names.toArray(new String[0]));
+    }
+
+    public int count() { return this.names.length; }
+
+    public String name(int id) { return this.names[id]; }
+
+    public int id(String name) {
+        Integer id = this.ids.get(name);
+        if (id == null) {
+            throw new IllegalArgumentException("Unknown animal type " + name);
+        }
+        return id;
+    }
+
+    /* "{Cow=3, Pig=2}", skipping types with a zero count. */
+    public String format(int[] counts) {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) continue;
+            if (sb.length() > 1) sb.append(", ");
+            sb.append(this.names[i]).append('=').append(counts[i]);
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,149 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* Monte Carlo batch mode.
+ * Runs independent virtual-time simulations, each with its own Simulation
+ * and seed, on a fixed pool of worker threads, then reports the mean of
+ * every per-run result with a 95% confidence interval (Student t, see
+ * Confidence). The seeds are split off the template's seed, so a whole
+ * batch can be repeated with --seed and any single run with the seed
+ * printed next to it. */
+public class Batch {
+    /* What one run contributes to the aggregate. */
+    private static class Run {
+        final long   seed;
+        final double buyerWait;
+        final double deliveryWait;
+        final long   sold;
+        final double walkPerStocked;
+        final long   rejected;
+        final double blocked;
+
+        Run(long seed, Metrics metrics) {
+            this.seed           = seed;
+            this.buyerWait      = metrics.getBuyerWait().getMean();
+            this.deliveryWait   = metrics.getDeliveryWait().getMean();
+            this.sold           = metrics.getTotalBought();
+            this.walkPerStocked = metrics.getWalkTicksPerStocked();
+            this.rejected       = metrics.getTotalRejected();
+            this.blocked        = metrics.getDeliveryBlocked().getMean();
+        }
+    }
+
+    private final Simulation template;
+    private final int runs;
+    private final int parallelism;
+
+    Batch(Simulation template, int runs, int parallelism) {
+        if (runs < 1 || parallelism < 1) {
+            throw new IllegalArgumentException(
+                "Batch needs at least one run and one worker.");
+        }
+        this.template    = template;
+        this.runs        = runs;
+        this.parallelism = parallelism;
+        this.template.setVirtualTime(true);
+    }
+
+    /* Run every simulation and log the results. Per-run logging is turned
+     * down to errors while the batch runs. */
+    public void run() throws InterruptedException {
+        Logger.Level level = Logger.getLevel();
+        Logger.setLevel(Logger.Level.ERROR);
+        long start = System.nanoTime();
+        Run[] results;
+        try {
+            results = this.runAll();
+        } finally {
+            Logger.setLevel(level);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        this.report(results, seconds);
+    }
+
+    private Run[] runAll() throws InterruptedException {
+        SplittableRandom seeds = new SplittableRandom(this.template.getSeed());
+        List<Callable<Run>> tasks = new ArrayList<>(this.runs);
+        for (int i = 0; i < this.runs; i++) {
+            long seed = seeds.nextLong();
+            tasks.add(() -> this.runOne(seed));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(this.parallelism);
+        try {
+            List<Future<Run>> futures = pool.invokeAll(tasks);
+            Run[] results = new Run[this.runs];
+            for (int i = 0; i < this.runs; i++) {
+                results[i] = futures.get(i).get();
+            }
+            return results;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Batch run failed.", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private Run runOne(long seed) {
+        Simulation sim = this.template.withSeed(seed);
+        sim.init();
+        sim.run();
+        return new Run(seed, sim.metrics);
+    }
+
+    private void report(Run[] results, double seconds) {
+        double[] buyerWait    = new double[results.length];
+        double[] deliveryWait = new double[results.length];
+        double[] sold         = new double[results.length];
+        double[] walk         = new double[results.length];
+        double[] rejected     = new double[results.length];
+        double[] blocked      = new double[results.length];
+        for (int i = 0; i < results.length; i++) {
+            Run r = results[i];
+            buyerWait[i]    = r.buyerWait;
+            deliveryWait[i] = r.deliveryWait;
+            sold[i]         = r.sold;
+            walk[i]         = r.walkPerStocked;
+            rejected[i]     = r.rejected;
+            blocked[i]      = r.blocked;
+            Logger.status(String.format(
+                "Run %d seed=%s buyer wait=%.2f delivery wait=%.2f sold=%d",
+                i, Long.toHexString(r.seed),
+                r.buyerWait, r.deliveryWait, r.sold));
+        }
+        Logger.log(String.format(
+            "Batch: %d runs, %d in parallel, seed %s, %.2f s",
+            this.runs, this.parallelism,
+            Long.toHexString(this.template.getSeed()), seconds));
+        Logger.log("Mean buyer wait: "    + interval(buyerWait));
+        Logger.log("Mean delivery wait: " + interval(deliveryWait));
+        Logger.log("Animals sold: "       + interval(sold));
+        Logger.log("Farmer walk ticks per animal stocked: " + interval(walk));
+        if (this.template.getEnclosureCapacity() > 0) {
+            Logger.log("Animals rejected by full docks: " + interval(rejected));
+            Logger.log("Mean ticks a turned back delivery was held: "
+                + interval(blocked));
+        }
+    }
+
+    /* "mean ± half-width (95% CI, sd=..)" over the runs. */
+    private static String interval(double[] values) {
+        int n = values.length;
+        double sum = 0;
+        for (double v : values) sum += v;
+        double mean = sum / n;
+        if (n < 2) return String.format("%.2f", mean);
+
+        double squares = 0;
+        for (double v : values) squares += (v - mean) * (v - mean);
+        double sd = Math.sqrt(squares / (n - 1));
+        return String.format("%.2f ± %.2f (95%% CI, sd=%.2f)",
+                             mean, Confidence.halfWidth95(sd, n), sd);
+    }
+}
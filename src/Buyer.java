@@ -1,50 +1,128 @@
-public class Buyer implements Runnable {
+public class Buyer implements Runnable, Actor {
     private final Simulation sim;
+    private final int number;
+    private final int traceId;
     private Field targetField;
     private int spawnTick;
-    
-    Buyer() {
-        this.sim = Simulation.getInstance();
+    private int attempts;
+    private Signal wakeup;
+    private long   wakeupGeneration;
+    private Field.Waiter waiter; // Our place in the Field's queue, if any.
+
+    Buyer(Simulation sim, int number) {
+        this.sim = sim;
+        this.number = number;
+        this.traceId = Trace.actorId(Trace.BUYER, number);
         this.chooseField();
         this.spawnTick = sim.getTickCount();
+        this.attempts = 0;
+        this.wakeup = new Signal();
+        this.wakeupGeneration = 0;
+        this.waiter = null;
     }
 
     @Override
     public void run() {
-        Logger.log("is ready to buy.");
         try {
-            do {
-                Logger.log("wants to buy 1 " + this.targetField.getFieldType());
+            int ticks;
+            while ((ticks = this.step()) != Actor.DONE) {
                 if (Thread.currentThread().isInterrupted()) break;
-                Thread.sleep(10 * Simulation.MS_PER_TICK);
-            } while(!this.buy());
+                if (ticks == Actor.PARKED) {
+                    this.wakeup.await(this.wakeupGeneration);
+                } else {
+                    Thread.sleep(ticks * Simulation.MS_PER_TICK);
+                }
+            }
         } catch (InterruptedException e) {
             Logger.error("Buyer.buy() Interrupted.");
+            if (this.waiter != null) this.targetField.cancel(this.waiter, this::bought);
             this.sim.threadReportDeath(Thread.currentThread().getName(),
                                            false);
+            return;
         }
         /* Die after buying. */
-        sim.buyerWaitingTime.add(sim.getTickCount() - this.spawnTick);
         this.sim.threadReportDeath(Thread.currentThread().getName(),
                                            true);
     }
 
-    private Boolean buy() throws InterruptedException {
-        Boolean buyFlag = false;
-        this.targetField.buyerQueue.acquire();
-        if(!this.targetField.isEmpty()) {
-            this.targetField.takeAnimal();
-            buyFlag = true;
-            sim.buyerMetrics.put(this.targetField.getFieldType(),
-                sim.buyerMetrics.get(this.targetField.getFieldType()) + 1);
-            Logger.log(this.targetField.getFieldType() + " bought successfully.");
+    public int getNumber() { return this.number; }
+    public Field.Waiter getWaiter() { return this.waiter; }
+
+    void save(Snapshot.Writer out) {
+        out.putInt(this.number);
+        out.putInt(this.targetField.getFieldId());
+        out.putInt(this.spawnTick);
+        out.putInt(this.attempts);
+        out.putInt(this.waiter == null ? 0 : this.waiter.isGranted() ? 2 : 1);
+    }
+
+    /* A Buyer as saved. One that was queued at its Field has no Waiter
+     * until requeue() puts it back in line. */
+    static Buyer restore(Simulation sim, Snapshot.Reader in) {
+        Buyer buyer = new Buyer(sim, in.getInt());
+        buyer.targetField = sim.getField(in.getInt());
+        buyer.spawnTick   = in.getInt();
+        buyer.attempts    = in.getInt();
+        if (in.getInt() == 2) buyer.waiter = Field.granted(buyer.wakeup);
+        return buyer;
+    }
+
+    void requeue() { this.waiter = this.targetField.requeue(this.wakeup); }
+
+    @Override
+    public Signal getParkSignal() { return this.wakeup; }
+
+    @Override
+    public long getParkGeneration() { return this.wakeupGeneration; }
+
+    /* Look around for 10 ticks, then buy, or queue at the Field and park
+     * until a farmer's delivery hands us an animal. */
+    @Override
+    public int step() throws InterruptedException {
+        if (this.attempts == 0) {
+            Logger.log("is ready to buy.");
+            this.attempts += 1;
+            Logger.log("wants to buy 1 " + this.targetField.getFieldType());
+            Trace.record(this.traceId, Trace.BUYER_WAIT,
+                         this.targetField.getFieldId(), this.attempts);
+            return 10;
+        }
+
+        this.wakeupGeneration = this.wakeup.generation();
+        if (this.waiter == null) {
+            this.waiter = this.targetField.takeAnimalOrQueue(this.wakeup);
+            /* A Field with a Mailbox always answers with a Waiter, which
+             * may have been granted already. */
+            if (this.waiter != null && !this.waiter.isGranted()) {
+                this.attempts += 1;
+                Logger.log("queues for 1 " + this.targetField.getFieldType());
+                Trace.record(this.traceId, Trace.BUYER_WAIT,
+                             this.targetField.getFieldId(), this.attempts);
+                return Actor.PARKED;
+            }
+        } else if (!this.waiter.isGranted()) {
+            return Actor.PARKED;
         }
-        this.targetField.buyerQueue.release();
-        return buyFlag;
+        this.waiter = null;
+        this.bought();
+        return Actor.DONE;
+    }
+
+    /* Count the animal we got. Also when a cancelled buy had to keep the
+     * animal it was granted, see Field.cancel(). */
+    private void bought() {
+        Logger.log(this.targetField.getFieldType() + " bought successfully.");
+        int waited = sim.getTickCount() - this.spawnTick;
+        sim.metrics.recordBuy(this.targetField.getFieldId(), waited,
+                              sim.getTickCount());
+        sim.fieldDrained(this.targetField.getFieldId());
+        Trace.record(this.traceId, Trace.BUYER_BUY,
+                     this.targetField.getFieldId(), waited);
     }
 
     private void chooseField() {
-        String animalToBuy = Simulation.ANIMAL_TYPES[this.sim.buyerPrefferenceRNG.nextInt(5)];
+        int animalToBuy = this.sim.randomFor(this.traceId)
+                                  .nextInt(this.sim.types.count());
         this.targetField = sim.getField(animalToBuy);
     }
 }
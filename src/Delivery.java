@@ -1,81 +1,265 @@
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.LinkedHashMap;
+public class Delivery implements Runnable, Actor {
+    /* What a Delivery does with the animals a full dock turned back. */
+    enum Overflow {
+        BLOCK,  // Wait at the dock until a farmer makes room.
+        DELAY,  // Come back after RETRY_TICKS and try again.
+        REJECT  // Drop them, counted in Metrics.
+    }
+
+    private final static int
+        RETRY_TICKS = 10; // Overflow.DELAY
 
-public class Delivery implements Runnable {
     private final Simulation sim;
-    private LinkedHashMap<String, Integer> delivery;
+    private final int number;
+    private final int traceId;
+    private int[] delivery; // As generated, indexed by animal type id.
+    private int[] left;     // Still on the truck.
+    private Enclosure dock; // Null until routed.
     private Integer spawnTick;
+    private int turnedBack; // Tick a full dock first turned us back, or -1.
+    private RandomStream random;
+    private Signal parkSignal;
+    private long   parkGeneration;
+    /* Mailbox engine: fired once the dock has run our unload message. */
+    private Signal wakeup;
+    private Boolean posted;
+    private volatile Boolean unloaded;
+    private long roomGeneration; // dock.roomMade before the unload.
 
-    Delivery() {
-        this.sim = Simulation.getInstance();
-        this.delivery = new LinkedHashMap<String, Integer>();
+    Delivery(Simulation sim, int number) {
+        this.sim = sim;
+        this.number = number;
+        this.traceId = Trace.actorId(Trace.DELIVERY, number);
+        this.delivery = new int[this.sim.types.count()];
+        this.left = new int[this.sim.types.count()];
+        this.dock = null;
         this.spawnTick = sim.getTickCount();
+        this.turnedBack = -1;
+        this.random = sim.randomFor(this.traceId);
+        this.parkSignal = null;
+        this.parkGeneration = 0;
+        this.wakeup = new Signal();
+        this.posted = false;
+        this.unloaded = false;
+    }
+
+    public int getNumber() { return this.number; }
+
+    @Override
+    public Signal getParkSignal() { return this.parkSignal; }
+
+    @Override
+    public long getParkGeneration() { return this.parkGeneration; }
+
+    /* A routed delivery is only ever saved turned back, waiting to try
+     * again: unloading happens within one step in virtual time. */
+    void save(Snapshot.Writer out) {
+        out.putInt(this.number);
+        out.putInt(this.spawnTick);
+        out.putInts(this.delivery);
+        out.putInts(this.left);
+        out.putInt(this.dock == null ? -1 : this.dock.getDockId());
+        out.putInt(this.turnedBack);
+    }
+
+    static Delivery restore(Simulation sim, Snapshot.Reader in) {
+        Delivery delivery = new Delivery(sim, in.getInt());
+        delivery.spawnTick = in.getInt();
+        in.getInts(delivery.delivery);
+        in.getInts(delivery.left);
+        int dock = in.getInt();
+        delivery.dock = dock < 0 ? null : sim.getDock(dock);
+        delivery.turnedBack = in.getInt();
+        /* Generations restart at 0 on resume. */
+        if (delivery.dock != null && sim.getOverflow() == Overflow.BLOCK) {
+            delivery.parkSignal = delivery.dock.roomMade;
+        }
+        return delivery;
     }
 
     @Override
     public void run() {
-        this.generateDelivery();
-        sim.enclosure.queueDelivery();
         try {
-            sim.enclosure.deliveryLock.acquire();
-            sim.enclosure.farmerLock.acquire();
-            sim.enclosure.putDelivery(this.delivery);
-            sim.enclosure.farmerLock.release();
-            sim.enclosure.deliveryLock.release();
+            int ticks;
+            while ((ticks = this.step()) != Actor.DONE) {
+                if (Thread.currentThread().isInterrupted()) break;
+                if (ticks == Actor.PARKED) {
+                    this.parkSignal.await(this.parkGeneration);
+                } else {
+                    Thread.sleep(ticks * Simulation.MS_PER_TICK);
+                }
+            }
         } catch (InterruptedException e) {
             this.sim.threadReportDeath(
                 Thread.currentThread().getName(),
                 false);
             return;
         }
-        sim.enclosure.removeDeliveryFromQueue();
-        sim.deliveryWaitingTime.add(sim.getTickCount() - this.spawnTick);
         this.sim.threadReportDeath(
                     Thread.currentThread().getName(),
                     true);
     }
 
-    private LinkedHashMap<String, Integer> generateDelivery() {
-        ArrayList<String> deliveryTypes = generateAnimalTypeList();
-        ArrayList<Integer> deliveryQuantities
-            = generateAnimalCount(deliveryTypes.size());
-        for(int i = 0; i < deliveryTypes.size(); i++) {
-            this.delivery.put(deliveryTypes.get(i), deliveryQuantities.get(i));
+    /* Unload into the least loaded Enclosure dock, usually in a single
+     * step. A dock that is full takes what fits and turns the rest back,
+     * see Overflow; a later step tries the same dock again. */
+    @Override
+    public int step() throws InterruptedException {
+        if (this.dock == null) {
+            this.generateDelivery();
+            System.arraycopy(this.delivery, 0, this.left, 0, this.left.length);
+            this.dock = sim.routeDelivery();
+        } else if (!this.posted) {
+            /* Another delivery may have had the room first. */
+            long room = this.dock.roomMade.generation();
+            if (this.dock.getRoom() == 0) return this.holdBack(room);
+            this.dock.queueDelivery();
+        }
+        if (this.dock.hasMailbox()) return this.postDelivery();
+        long room = this.dock.roomMade.generation();
+        this.dock.deliveryLock.acquire();
+        this.dock.farmerLock.acquire();
+        this.dock.putDelivery(this.left);
+        this.dock.farmerLock.release();
+        this.dock.deliveryLock.release();
+        return this.unloaded(room);
+    }
+
+    /* Mailbox engine: post what is left to the dock and park until its
+     * mailbox has unloaded it. */
+    private int postDelivery() {
+        long woken = this.wakeup.generation();
+        if (!this.posted) {
+            this.posted = true;
+            this.roomGeneration = this.dock.roomMade.generation();
+            this.dock.putDelivery(this.left, () -> {
+                this.unloaded = true;
+                this.wakeup.signalAll();
+            });
+            return this.park(this.wakeup, woken);
+        }
+        if (!this.unloaded) return this.park(this.wakeup, woken);
+        this.posted   = false;
+        this.unloaded = false;
+        return this.unloaded(this.roomGeneration);
+    }
+
+    /* Done if the truck is empty or the rest is rejected. Otherwise step
+     * out of the dock's queue, so farmers may come in and make room, and
+     * wait as Overflow says. */
+    private int unloaded(long roomGeneration) {
+        int tick = sim.getTickCount();
+        int left = 0;
+        for (int animals : this.left) left += animals;
+        Overflow overflow = sim.getOverflow();
+        if (left > 0 && overflow != Overflow.REJECT) {
+            if (this.turnedBack < 0) this.turnedBack = tick;
+            this.dock.removeDeliveryFromQueue();
+            return this.holdBack(roomGeneration);
+        }
+        if (left > 0) {
+            Logger.log("Dock " + this.dock.getDockId() + " rejected "
+                + left + " animals.");
+            this.traceRejected();
+            sim.metrics.recordRejected(this.dock.getDockId(), left);
+        }
+        if (this.turnedBack >= 0) {
+            sim.metrics.recordBlocked(this.dock.getDockId(),
+                                      tick - this.turnedBack);
+        }
+        this.dock.removeDeliveryFromQueue();
+        this.traceReceived();
+        sim.metrics.recordDeliveryWait(this.dock.getDockId(),
+                                       tick - this.spawnTick);
+        return Actor.DONE;
+    }
+
+    /* Wait to try a full dock again, as Overflow says. */
+    private int holdBack(long roomGeneration) {
+        if (sim.getOverflow() == Overflow.DELAY) return RETRY_TICKS;
+        return this.park(this.dock.roomMade, roomGeneration);
+    }
+
+    /* Wait for signal to move past generation before the next step. */
+    private int park(Signal signal, long generation) {
+        this.parkSignal     = signal;
+        this.parkGeneration = generation;
+        return Actor.PARKED;
+    }
+
+    private int[] generateDelivery() {
+        int[] deliveryTypes = generateAnimalTypeList();
+        int[] deliveryQuantities
+            = generateAnimalCount(deliveryTypes.length);
+        for(int i = 0; i < deliveryTypes.length; i++) {
+            this.delivery[deliveryTypes[i]] = deliveryQuantities[i];
+        }
+        Logger.log(() -> "Delivery generated: "
+            + this.sim.types.format(this.delivery));
+        if (Trace.isEnabled()) {
+            for (int type = 0; type < this.delivery.length; type++) {
+                if (this.delivery[type] == 0) continue;
+                Trace.record(this.traceId, Trace.DELIVERY_GENERATED,
+                             type, this.delivery[type]);
+            }
         }
-        Logger.log("Delivery generated: " + this.delivery.toString());
         return this.delivery;
     }
 
-    /* Randomly select which types of animals will be in Delivery. */
-    private ArrayList<String> generateAnimalTypeList() {
-        int typeCount = this.sim.deliveryRNG.nextInt(Simulation.ANIMAL_TYPES.length) + 1;
-        ArrayList<String> deliveryList = new ArrayList<String>();
-        ArrayList<String> animalTypes = new ArrayList<String>(
-            Arrays.asList(Simulation.ANIMAL_TYPES));
+    private void traceReceived() {
+        if (!Trace.isEnabled()) return;
+        for (int type = 0; type < this.delivery.length; type++) {
+            int received = this.delivery[type] - this.left[type];
+            if (received == 0) continue;
+            Trace.record(this.traceId, Trace.DELIVERY_RECEIVED, type, received);
+        }
+    }
+
+    private void traceRejected() {
+        if (!Trace.isEnabled()) return;
+        for (int type = 0; type < this.left.length; type++) {
+            if (this.left[type] == 0) continue;
+            Trace.record(this.traceId, Trace.DELIVERY_REJECTED,
+                         type, this.left[type]);
+        }
+    }
+
+    /* Randomly select which types of animals will be in Delivery.
+     * Never more types than animals in a Delivery. */
+    private int[] generateAnimalTypeList() {
+        int typeCount = Math.min(
+            this.random.nextInt(this.sim.types.count()) + 1,
+            this.sim.getDeliverySize());
+        int[] deliveryList = new int[typeCount];
+        int[] animalTypes = new int[this.sim.types.count()];
+        int remaining = animalTypes.length;
+        for(int i = 0; i < remaining; i++) {
+            animalTypes[i] = i;
+        }
         for(int i = 0; i < typeCount; i++) {
-            int tmp = this.sim.deliveryRNG.nextInt(animalTypes.size());
-            deliveryList.add(animalTypes.get(tmp));
-            animalTypes.remove(tmp);
+            int tmp = this.random.nextInt(remaining);
+            deliveryList[i] = animalTypes[tmp];
+            System.arraycopy(animalTypes, tmp + 1, animalTypes, tmp,
+                             remaining - tmp - 1);
+            remaining -= 1;
         }
         return deliveryList;
     }
 
     /* Randomly select the amount of each type of animal in Delivery. */
-    private ArrayList<Integer> generateAnimalCount(int typeCount) {
+    private int[] generateAnimalCount(int typeCount) {
         int counter = 0;
-        ArrayList<Integer> animalCountList = new ArrayList<Integer>();
-        int upperBound = (Simulation.DELIVERY_SIZE + 1) - typeCount;
+        int[] animalCountList = new int[typeCount];
+        int upperBound = (this.sim.getDeliverySize() + 1) - typeCount;
 
-        for(int i = typeCount - 1; i != 0; i--) {
-            int randomint = this.sim.deliveryRNG.nextInt(
+        for(int i = 0; i < typeCount - 1; i++) {
+            int randomint = this.random.nextInt(
                 Math.max(1, upperBound - counter)) + 1;
             counter += randomint;
-            animalCountList.add(randomint);
+            animalCountList[i] = randomint;
         }
 
-        animalCountList.add(Simulation.DELIVERY_SIZE - counter);
-        counter += animalCountList.getLast();
+        animalCountList[typeCount - 1] = this.sim.getDeliverySize() - counter;
         return animalCountList;
     }
 }
@@ -1,66 +1,160 @@
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.Comparator;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.atomic.AtomicInteger;
 
+/* One enclosure dock. With a capacity it works like a Flow subscriber
+ * that only ever requests what it has room for: a delivery is unloaded up to
+ * getRoom() and whatever doesn't fit stays on the truck, for the Delivery to
+ * deal with as the overflow policy says (see Delivery.Overflow). roomMade
+ * fires when a farmer frees some room. */
 public class Enclosure {
 
     private final Simulation sim;
-    private LinkedHashMap<String, Integer> animals;
-    private int animalCount;
+    private final int dockId;
+    private final int capacity; // Animals the dock holds, 0 for no limit.
+    private int[] animals; // Indexed by animal type id.
+    /* Type ids, most animals first and the lower id on a tie, with rank[]
+     * each type's place in it. Kept in order as counts change, one swap
+     * per place a type moves. */
+    private int[] order;
+    private int[] rank;
+    private int[] candidates; // Most urgent field ids, reused under lock.
+    private volatile int animalCount; // Written under lock.
     private AtomicInteger deliveryCount;
+    /* Guards animals and animalCount. A ReentrantLock rather than
+     * synchronized so virtual threads unmount while waiting for it. */
+    private ReentrantLock lock;
 
     Semaphore farmerLock;
     Semaphore deliveryLock;
+    /* Fired when the Enclosure may have become worth visiting: the last
+     * queued delivery landed, a farmer left, or a buy left a field short.
+     * Shared by every dock, so a farmer can wait for any of them. */
+    Signal changed;
+    /* Fired when a farmer takes animals from a dock with a capacity. */
+    Signal roomMade;
+    /* Farmers that found farmerLock taken since it was last handed back. */
+    AtomicInteger turnedAway;
+    /* With --engine=mailbox the dock is an actor: takes and deliveries are
+     * messages run one at a time, and neither lock nor the semaphores are
+     * used. Null otherwise. */
+    private Mailbox mailbox;
 
-    Enclosure() {
-        this.sim = Simulation.getInstance();
-        this.animals = new LinkedHashMap<>();
+    Enclosure(Simulation sim, int dockId, int capacity, Signal changed) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException(
+                "Enclosure capacity can't be negative.");
+        }
+        this.sim = sim;
+        this.dockId = dockId;
+        this.capacity = capacity;
+        this.animals = new int[this.sim.types.count()];
+        this.order = new int[this.animals.length];
+        this.rank = new int[this.animals.length];
+        this.resetOrder();
+        this.candidates = new int[this.sim.types.count()];
         this.animalCount = 0;
         this.deliveryCount = new AtomicInteger(0);
-        this.farmerLock = new Semaphore(1, true);
-        this.deliveryLock = new Semaphore(1, true);
+        this.lock = LockProfiler.lock("Dock " + dockId + " lock");
+        this.farmerLock = LockProfiler.semaphore("Dock " + dockId + " farmerLock", true);
+        this.deliveryLock = LockProfiler.semaphore("Dock " + dockId + " deliveryLock", true);
+        this.changed = changed;
+        this.roomMade = new Signal();
+        this.turnedAway = new AtomicInteger(0);
     }
 
+    /* Make this dock an actor. Only before anyone uses it. */
+    void setMailbox(Mailbox mailbox) { this.mailbox = mailbox; }
+    public Boolean hasMailbox() { return this.mailbox != null; }
+
+    public int getDockId() { return this.dockId; }
     public int getDeliveryCount() { return this.deliveryCount.get(); }
+    public int getAnimalCount() { return this.animalCount; }
+    public int getCapacity() { return this.capacity; }
 
-    public Boolean isEmpty() { return this.animals.isEmpty(); }
+    /* Animals the dock would take right now. Read without the lock. */
+    public int getRoom() {
+        if (this.capacity == 0) return Integer.MAX_VALUE;
+        return Math.max(0, this.capacity - this.animalCount);
+    }
+
+    /* Animals waiting here plus animals on their way in. */
+    public int getLoad() {
+        return this.animalCount
+            + this.deliveryCount.get() * this.sim.getDeliverySize();
+    }
 
-    public synchronized
-    LinkedHashMap<String, Integer> takeAnimals(
-        int farmerCapacity
-    ) {
-        Logger.status("Animals in Enclosure: " + this.animals);
-        LinkedHashMap<String, Integer> animalsGiven = new LinkedHashMap<>();
+    /* Read without the lock, good enough to decide whom to wake. */
+    public Boolean holds(int type) { return this.animals[type] > 0; }
+
+    public Boolean isEmpty() { return this.animalCount == 0; }
+
+    /* Write the farmer's load into load, indexed by animal type id, and
+     * return how many animals that is. */
+    public int takeAnimals(int farmerCapacity, int[] load) {
+        this.lock.lock();
+        try {
+            return this.takeAnimalsLocked(farmerCapacity, load);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /* Mailbox engine: fill load in a message, on the mailbox's thread,
+     * then run done. */
+    public void takeAnimals(int farmerCapacity, int[] load, Runnable done) {
+        this.mailbox.post(() -> {
+            this.takeAnimalsLocked(farmerCapacity, load);
+            done.run();
+        });
+    }
+
+    private int takeAnimalsLocked(int farmerCapacity, int[] animalsGiven) {
+        if (Logger.isEnabled(Logger.Level.STATUS)) {
+            Logger.status("Animals in Enclosure: "
+                + this.sim.types.format(this.animals));
+        }
+        Arrays.fill(animalsGiven, 0);
+        int before = this.animalCount;
 
         // Rule 1: If the farmer can carry the entire enclosure, he should.
         if(this.animalCount <= Simulation.FARMER_CAPACITY) {
-            animalsGiven.putAll(this.animals);
-            this.animals.clear();
+            System.arraycopy(this.animals, 0, animalsGiven, 0, this.animals.length);
+            Arrays.fill(this.animals, 0);
             this.animalCount = 0;
+            this.resetOrder();
 
         // Rule 2-1: If the farmer needs to be selective, he picks which fields to
-        //           stock based on urgency.
+        //           stock based on urgency, most urgent first. Only as many
+        //           fields as he could possibly visit are pulled from the
+        //           index; if those run out, twice as many.
         } else {
-            LinkedList<String> fieldCandidates = sim.getMostUrgentFields();
-            Logger.status("Urgency list: " + fieldCandidates);
+            int wanted = Math.min(this.candidates.length, farmerCapacity);
+            int listed = sim.urgency.mostUrgent(this.candidates, wanted);
+            if (Logger.isEnabled(Logger.Level.STATUS)) {
+                Logger.status("Urgency list: "
+                    + this.formatFields(this.candidates, listed));
+            }
+            int found = listed;
 
             // Rule 2-2: Farmer takes as much animals as he can carry.
             int freeSpace = farmerCapacity;
-            do {
-                String targetFieldName = fieldCandidates.pop();
-                if (!this.animals.containsKey(targetFieldName)) {
+            int next = 0;
+            while (freeSpace > 0 && this.animalCount > 0) {
+                if (next == found) {
+                    if (found == this.candidates.length) break;
+                    wanted = Math.min(this.candidates.length, 2 * wanted);
+                    found = sim.urgency.mostUrgent(this.candidates, wanted);
+                    if (next >= found) break;
+                }
+                int type = this.candidates[next++];
+                int animalsOfTypeInEnclosure = this.animals[type];
+                // Refetching may reorder the fields; never visit one twice.
+                if (animalsOfTypeInEnclosure == 0 || animalsGiven[type] > 0) {
                     continue;
                 }
-                int animalsOfTypeInEnclosure = this.animals.get(targetFieldName);
-                Field targetField = sim.getField(targetFieldName);
+                Field targetField = sim.getField(type);
                 int fieldNeed = targetField.getAnimalsMissing();
 
                 // Cannot take more than there is in enclosure.
@@ -73,100 +167,222 @@ public class Enclosure {
                             fieldNeed),
                       freeSpace);
 
-                if (animalCountToTake == 0) continue;
+                if (animalCountToTake <= 0) continue;
 
-                Logger.log(targetFieldName + " - Enclosure: " + animalsOfTypeInEnclosure
+                if (Logger.isEnabled(Logger.Level.LOG)) {
+                    Logger.log(targetField.getFieldType()
+                                           + " - Enclosure: " + animalsOfTypeInEnclosure
                                            + " Field need: " + fieldNeed
                                            + " Farmer free space: " + freeSpace);
+                }
                 
                 freeSpace -= animalCountToTake;
-                animalsGiven.put(targetFieldName, animalCountToTake);
-                targetField.announceVisit();
+                animalsGiven[type] = animalCountToTake;
+                this.remove(type, animalCountToTake);
+            }
+        }
 
-            } while (!fieldCandidates.isEmpty()
-                     && !this.animals.isEmpty()
-                     && freeSpace > 0);
+        if (Logger.isEnabled(Logger.Level.LOG)) {
+            Logger.log("Animals taken from enclosure:"
+                + this.sim.types.format(animalsGiven));
+        }
+        if (Logger.isEnabled(Logger.Level.STATUS)) {
+            Logger.status("Animals in Enclosure: " + this.animalCount);
         }
+        this.recordTaken(before);
 
-        Logger.log("Animals taken from enclosure:" + animalsGiven.toString());
-        Logger.status("Animals in Enclosure: " + this.animalCount);
+        return before - this.animalCount;
+    }
 
-        return animalsGiven;
+    private void recordTaken(int before) {
+        if (before == this.animalCount) return;
+        sim.metrics.recordTaken(this.dockId, before - this.animalCount,
+                                sim.getTickCount());
+        if (this.capacity > 0) this.roomMade.signalAll();
+    }
+
+    private String formatFields(int[] fieldIds, int count) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(this.sim.types.name(fieldIds[i]));
+        }
+        return sb.append(']').toString();
     }
 
     /* Take some animals from Enclosure when animalCount > Farmer carrying
-     * capacity */
-    public synchronized LinkedHashMap<String, Integer> takeSomeAnimals(int farmerCap) {
-        LinkedHashMap<String, Integer> animalsGiven = new LinkedHashMap<>();
-        Integer animalCounter = farmerCap;
-        Iterator<Entry<String,Integer>> it = this.animals.entrySet().iterator();
-        do {
-            String key = this.animals.firstEntry().getKey();
-            Integer value = this.animals.firstEntry().getValue();
-            if(value <= animalCounter) {
-                this.animals.remove(key);
-            } else {
-                this.animals.put(key, value - animalCounter);
-                value = animalCounter;
-            }
-                animalsGiven.put(key, value);
-                animalCounter -= value;
-        } while(animalCounter != 0 && it.hasNext());
-        return animalsGiven;
-    }
-
-    /* Put Delivery in the Enclosure. */
-    public synchronized void putDelivery(LinkedHashMap<String, Integer> delivery) {
-        Logger.log("Receiving Delivery.");
-        Logger.status("Before: " + this.animals.toString());
-        for(String animal : delivery.keySet()) {
-            if(this.animals.containsKey(animal)) {
-                int animalCount = this.animals.get(animal)
-                    + delivery.get(animal);
-                this.animals.put(animal, animalCount);
-            }
-            else {
-                this.animals.put(animal, delivery.get(animal));
-                
+     * capacity, most stocked type first, into load. Returns how many. */
+    public int takeSomeAnimals(int farmerCap, int[] load) {
+        this.lock.lock();
+        try {
+            return this.takeSomeAnimalsLocked(farmerCap, load);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private int takeSomeAnimalsLocked(int farmerCap, int[] animalsGiven) {
+        Arrays.fill(animalsGiven, 0);
+        int before = this.animalCount;
+        int animalCounter = farmerCap;
+        while (animalCounter != 0 && this.animalCount != 0) {
+            int most = this.order[0];
+            int value = Math.min(this.animals[most], animalCounter);
+            this.remove(most, value);
+            animalsGiven[most] += value;
+            animalCounter      -= value;
+        }
+        this.recordTaken(before);
+        return before - this.animalCount;
+    }
+
+    /* Put Delivery in the Enclosure, as much of it as there is room for.
+     * What was taken is subtracted from delivery; returns how many. */
+    public int putDelivery(int[] delivery) {
+        this.lock.lock();
+        try {
+            return this.putDeliveryLocked(delivery);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /* Mailbox engine: unload in a message, then run done. */
+    public void putDelivery(int[] delivery, Runnable done) {
+        this.mailbox.post(() -> {
+            this.putDeliveryLocked(delivery);
+            done.run();
+        });
+    }
+
+    private int putDeliveryLocked(int[] delivery) {
+        if (Logger.isEnabled(Logger.Level.LOG)) {
+            Logger.log("Receiving Delivery at dock " + this.dockId + ".");
+        }
+        if (Logger.isEnabled(Logger.Level.STATUS)) {
+            Logger.status("Before: " + this.sim.types.format(this.animals));
+        }
+        int room = this.getRoom();
+        int accepted = 0;
+        int left = 0;
+        for (int animals : delivery) left += animals;
+        if (left > room) {
+            /* Partly accepted: one of each type at a time, so the animals
+             * let in keep the delivery's mix. */
+            while (room > 0) {
+                for (int type = 0; type < delivery.length && room > 0; type++) {
+                    if (delivery[type] == 0) continue;
+                    this.accept(type, 1);
+                    delivery[type] -= 1;
+                    room -= 1;
+                    accepted += 1;
+                }
             }
-            sim.deliveryMetric.put(animal, sim.deliveryMetric.get(animal)
-                    + delivery.get(animal));
-            sortEnclosure();
-            countAnimals();
-        }
-        Logger.log("Delivery received.");
-        Logger.status("After: " + this.animals.toString());
-    }
-
-    /* Sort all animals in Enclosure from most to least. */
-    private void sortEnclosure() {
-        List<Map.Entry<String, Integer>> entries
-            = new ArrayList<>(this.animals.entrySet());
-        Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
-            public int compare(Map.Entry<String, Integer> a,
-                Map.Entry<String, Integer> b) {
-                return b.getValue().compareTo(a.getValue());
+            int stayed = left - accepted;
+            Logger.log(() -> "Dock " + this.dockId + " is full, "
+                + stayed + " animals stay on the truck.");
+        } else {
+            for (int type = 0; type < delivery.length; type++) {
+                if (delivery[type] == 0) continue;
+                this.accept(type, delivery[type]);
+                accepted += delivery[type];
+                delivery[type] = 0;
             }
-        });
-        LinkedHashMap<String, Integer> sorted = new LinkedHashMap<>();
-        for(Map.Entry<String, Integer> entry: entries) {
-            sorted.put(entry.getKey(), entry.getValue());
+            Logger.log("Delivery received.");
+        }
+        if (Logger.isEnabled(Logger.Level.STATUS)) {
+            Logger.status("After: " + this.sim.types.format(this.animals));
         }
-        this.animals = sorted;
+        return accepted;
     }
 
-    private void countAnimals() {
-        this.animalCount = 0;
-        for(Integer value : this.animals.values()) {
-            this.animalCount += value;
+    private void accept(int type, int animals) {
+        this.animals[type] += animals;
+        this.animalCount   += animals;
+        this.moveUp(type);
+        sim.metrics.recordDelivered(this.dockId, type, animals,
+                                    sim.getTickCount());
+    }
+
+    private void remove(int type, int animals) {
+        this.animals[type] -= animals;
+        this.animalCount   -= animals;
+        this.moveDown(type);
+    }
+
+    /* Does a belong before b in order[]? */
+    private Boolean before(int a, int b) {
+        return this.animals[a] > this.animals[b]
+            || (this.animals[a] == this.animals[b] && a < b);
+    }
+
+    /* type gained animals: swap it forward to its place. */
+    private void moveUp(int type) {
+        int i = this.rank[type];
+        while (i > 0 && this.before(type, this.order[i - 1])) {
+            this.swap(i, i - 1);
+            i--;
+        }
+    }
+
+    /* type lost animals: swap it back to its place. */
+    private void moveDown(int type) {
+        int i = this.rank[type];
+        while (i < this.order.length - 1 && this.before(this.order[i + 1], type)) {
+            this.swap(i, i + 1);
+            i++;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int a = this.order[i];
+        int b = this.order[j];
+        this.order[i] = b;
+        this.order[j] = a;
+        this.rank[b] = i;
+        this.rank[a] = j;
+    }
+
+    /* All counts equal (or after a restore): ids in order, then sorted. */
+    private void resetOrder() {
+        for (int i = 0; i < this.order.length; i++) {
+            this.order[i] = i;
+            this.rank[i] = i;
+        }
+        for (int type = 0; type < this.order.length; type++) this.moveUp(type);
+    }
+
+    void save(Snapshot.Writer out) {
+        this.lock.lock();
+        try {
+            out.putInts(this.animals);
+            out.putInt(this.deliveryCount.get());
+            out.putInt(this.turnedAway.get());
+        } finally {
+            this.lock.unlock();
         }
     }
 
-    public synchronized void queueDelivery() {
+    void restore(Snapshot.Reader in) {
+        this.lock.lock();
+        try {
+            in.getInts(this.animals);
+            this.animalCount = Arrays.stream(this.animals).sum();
+            this.resetOrder();
+            this.deliveryCount.set(in.getInt());
+            this.turnedAway.set(in.getInt());
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public void queueDelivery() {
         this.deliveryCount.getAndIncrement();
     }
 
-    public synchronized void removeDeliveryFromQueue() {
-        this.deliveryCount.getAndDecrement();
+    public void removeDeliveryFromQueue() {
+        if (this.deliveryCount.decrementAndGet() == 0) {
+            this.changed.signalAll();
+        }
     }
 }
@@ -0,0 +1,131 @@
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Discrete-event scheduler used in virtual-time mode.
+ * Pending steps are kept in a priority queue ordered by tick (ties are run in
+ * the order they were scheduled) and the clock jumps straight to the next
+ * event instead of sleeping through the ticks in between. */
+public class EventScheduler {
+
+    static class Event implements Comparable<Event> {
+        final int    tick;
+        final long   sequence;
+        final String name;
+        final Actor  actor;
+
+        Event(int tick, long sequence, String name, Actor actor) {
+            this.tick     = tick;
+            this.sequence = sequence;
+            this.name     = name;
+            this.actor    = actor;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (this.tick != other.tick) {
+                return Integer.compare(this.tick, other.tick);
+            }
+            return Long.compare(this.sequence, other.sequence);
+        }
+    }
+
+    /* A parked actor's ticket back into the queue, registered with its
+     * Signal. Kept in parked, in the order the actors parked, until it
+     * runs, so a checkpoint can see who is waiting. */
+    private class Wakeup implements Runnable {
+        final String name;
+        final Actor  actor;
+
+        Wakeup(String name, Actor actor) {
+            this.name  = name;
+            this.actor = actor;
+        }
+
+        @Override
+        public void run() {
+            parked.remove(this);
+            schedule(now, this.name, this.actor);
+        }
+    }
+
+    private PriorityQueue<Event> events;
+    private LinkedHashSet<Wakeup> parked;
+    private long sequence;
+    private String currentActor;
+    private int now;
+
+    EventScheduler() {
+        this.events       = new PriorityQueue<>();
+        this.parked       = new LinkedHashSet<>();
+        this.sequence     = 0;
+        this.currentActor = null;
+        this.now          = 0;
+    }
+
+    /* Name of the actor whose step is running, null outside of run(). */
+    public String getCurrentActor() { return this.currentActor; }
+
+    public int getPendingCount() { return this.events.size(); }
+
+    public void schedule(int tick, String name, Actor actor) {
+        this.events.add(new Event(tick, this.sequence++, name, actor));
+    }
+
+    /* Park actor on its Signal until the Signal moves past the actor's
+     * park generation. */
+    public void park(String name, Actor actor) {
+        Wakeup wakeup = new Wakeup(name, actor);
+        this.parked.add(wakeup);
+        actor.getParkSignal().onNext(actor.getParkGeneration(), wakeup);
+    }
+
+    /* Pending events in the order they will run. */
+    ArrayList<Event> getEvents() {
+        ArrayList<Event> sorted = new ArrayList<>(this.events);
+        sorted.sort(null);
+        return sorted;
+    }
+
+    /* Parked actors, first parked first. */
+    ArrayList<Actor> getParked() {
+        ArrayList<Actor> actors = new ArrayList<>();
+        for (Wakeup wakeup : this.parked) actors.add(wakeup.actor);
+        return actors;
+    }
+
+    long getSequence() { return this.sequence; }
+
+    /* Put the scheduler back where a checkpoint left it: clock at now, the
+     * next sequence number, then restore() every saved event. */
+    void resume(int now, long sequence) {
+        this.now      = now;
+        this.sequence = sequence;
+    }
+
+    void restore(int tick, long sequence, String name, Actor actor) {
+        this.events.add(new Event(tick, sequence, name, actor));
+    }
+
+    /* Run every event scheduled before endTick, advancing clock as we go.
+     * The clock is left at endTick once the queue is drained. A PARKED actor
+     * leaves the queue and is put back at the tick its Signal fires. */
+    public void run(AtomicInteger clock, int endTick)
+            throws InterruptedException {
+        while (!this.events.isEmpty() && this.events.peek().tick < endTick) {
+            Event e = this.events.poll();
+            clock.set(e.tick);
+            this.now = e.tick;
+            this.currentActor = e.name;
+            int delay = e.actor.step();
+            if (delay == Actor.PARKED) {
+                this.park(e.name, e.actor);
+            } else if (delay != Actor.DONE) {
+                this.schedule(e.tick + delay, e.name, e.actor);
+            }
+        }
+        this.currentActor = null;
+        clock.set(endTick);
+    }
+}
@@ -1,155 +1,475 @@
-import java.util.LinkedHashMap;
+import java.util.Arrays;
 
-public class Farmer implements Runnable {
+public class Farmer implements Runnable, Actor {
     private final Simulation sim;
-    private LinkedHashMap<String, Integer> animals_taken;
-    private String currentState;
+    private final int number;
+    private final int traceId;
+    private int[] animals_taken; // Indexed by animal type id.
+    private int   carriedTypes;  // Types with animals_taken > 0.
+    private volatile String currentState;  // Volatile for getState().
     private Field chosenField;
     private int breakTime;
+    private Boolean born;
+    private volatile Boolean onBreak;
+    private Signal parkSignal;
+    private long   parkGeneration;
+    private boolean[] triedDocks; // Scratch for enterDock().
+    private Signal wakeup;           // Fired when a Field lets us stock.
+    private Field.Waiter stockingWait; // Our place in a Field's queue.
+    private final int[] load;    // Filled by the dock on every take.
+    /* Mailbox engine: the dock asked for a load, whether it has answered,
+     * and the docksChanged generation from before asking. */
+    private Enclosure loadDock;
+    private volatile Boolean loaded;
+    private long loadGeneration;
+    /* Mailbox engine: how many animals we are placing, whether the Field
+     * has said how many went in, and how many. */
+    private int toPlace;
+    private volatile Boolean placed;
+    private volatile int     accepted;
+    private RandomStream random;       // Break times.
 
-    Farmer() {
-        this.sim           = Simulation.getInstance();
-        this.animals_taken = new LinkedHashMap<String, Integer>();
+    Farmer(Simulation sim, int number) {
+        this.sim           = sim;
+        this.number        = number;
+        this.traceId       = Trace.actorId(Trace.FARMER, number);
+        this.animals_taken = new int[this.sim.types.count()];
+        this.carriedTypes  = 0;
         this.currentState  = "AtEnclosure";
         this.chosenField   = null;
-        this.breakTime     = (int) (2 * this.sim.farmerBreakRNG.nextDouble()
+        this.born          = false;
+        this.onBreak       = false;
+        this.parkSignal    = null;
+        this.parkGeneration = 0;
+        this.triedDocks    = new boolean[sim.getDockCount()];
+        this.wakeup        = new Signal();
+        this.stockingWait  = null;
+        this.load          = new int[this.sim.types.count()];
+        this.loadDock      = null;
+        this.loaded        = false;
+        this.toPlace       = 0;
+        this.placed        = false;
+        this.accepted      = 0;
+        this.random        = sim.randomFor(this.traceId);
+        this.breakTime     = (int) (2 * this.random.nextDouble()
                                 * Simulation.FARMER_BREAK_TICKS);
     }
 
     @Override
     public void run() {
-        Logger.log("is born.");
         try {
-            do { /* Farmer behaviour controller based on states. */
+            do {
                 if (Thread.currentThread().isInterrupted()) break;
-
-                /* Farmer takes a break */
-                if(this.sim.getTickCount() >= this.breakTime) {
-                    Logger.log("Farmer is taking a break.");
-                    Thread.sleep(Simulation.FARMER_BREAK_DURATION
-                        * Simulation.MS_PER_TICK);
-                    this.breakTime = this.sim.getTickCount()
-                        + (int) (2 * this.sim.farmerBreakRNG.nextDouble()
-                        * Simulation.FARMER_BREAK_TICKS);
-                } else {
-                    switch (this.currentState) {
-                    case "AtEnclosure":
-                        Logger.log(
-                            Thread.currentThread().getName()
-                            + " is at the Enclosure.");
-                        this.atEnclosure();
-                        break;
-                    case "ChooseField":
-                        Logger.log(
-                            Thread.currentThread().getName()
-                            + " is choosing a Field");
-                        this.chooseField();
-                        break;
-                    case "AtField":
-                        Logger.log(Thread.currentThread().getName()
-                            + " is at the Field "
-                            + this.chosenField.getFieldType());
-                        this.atField();
-                        break;
-                    }
+                int ticks = this.step();
+                if (ticks == Actor.PARKED) {
+                    this.parkSignal.await(this.parkGeneration);
+                } else if (ticks > 0) {
+                    Thread.sleep(ticks * Simulation.MS_PER_TICK);
                 }
             } while (true);
         } catch (InterruptedException e) {
             Logger.error("Interrupted. "
-                + Thread.currentThread().getName()
+                + this.sim.getActorName()
                 + " Farmer state: " + this.currentState);
+            if (this.stockingWait != null) {
+                this.chosenField.cancelStocking(this.stockingWait);
+            }
         }
         /* Farmer lives till the simulation tells him to stop,
         *  so he never needs to declare himself dead. */
     }
 
-    /* Check if can enter Enclosure and take as many animals as can. */
-    public void atEnclosure() throws InterruptedException {
-        if(canEnterEnclosure()) {
-            animals_taken.putAll(
-                sim.enclosure.takeAnimals(
-                    Simulation.FARMER_CAPACITY));
-            sim.enclosure.farmerLock.release();
+    public int getNumber() { return this.number; }
+
+    /* What the farmer is doing, readable from any thread. */
+    public String getState() {
+        return this.onBreak ? "OnBreak" : this.currentState;
+    }
+
+    @Override
+    public Signal getParkSignal() { return this.parkSignal; }
+
+    @Override
+    public long getParkGeneration() { return this.parkGeneration; }
+
+    /* Everything but the Signal generations, which restart at 0 on
+     * resume. Only at a tick boundary in virtual time, where no farmer is
+     * ever queued at a Field. */
+    void save(Snapshot.Writer out) {
+        if (this.stockingWait != null) {
+            throw new IllegalStateException(
+                "Can't checkpoint Farmer-" + this.number + " in a Field queue.");
+        }
+        out.putInts(this.animals_taken);
+        out.putString(this.currentState);
+        out.putInt(this.chosenField == null ? -1 : this.chosenField.getFieldId());
+        out.putInt(this.breakTime);
+        out.putBoolean(this.born);
+        out.putBoolean(this.onBreak);
+        out.putLong(this.random.getState());
+        int parkedOn = 0;
+        if (this.parkSignal == sim.docksChanged) {
+            parkedOn = 1;
+        } else if (this.chosenField != null
+                   && this.parkSignal == this.chosenField.changed) {
+            parkedOn = 2;
+        }
+        out.putInt(parkedOn);
+    }
+
+    void restore(Snapshot.Reader in) {
+        in.getInts(this.animals_taken);
+        this.carriedTypes = 0;
+        for (int taken : this.animals_taken) {
+            if (taken > 0) this.carriedTypes += 1;
+        }
+        this.currentState = in.getString();
+        int field = in.getInt();
+        this.chosenField = field < 0 ? null : sim.getField(field);
+        this.breakTime = in.getInt();
+        this.born      = in.getBoolean();
+        this.onBreak   = in.getBoolean();
+        this.random.setState(in.getLong());
+        switch (in.getInt()) {
+        case 1:  this.parkSignal = sim.docksChanged;        break;
+        case 2:  this.parkSignal = this.chosenField.changed; break;
+        default: this.parkSignal = null;
+        }
+        this.parkGeneration = 0;
+    }
 
+    /* Wait for signal to move past generation before the next step. */
+    private int park(Signal signal, long generation) {
+        this.parkSignal     = signal;
+        this.parkGeneration = generation;
+        return Actor.PARKED;
+    }
+
+    /* Farmer behaviour controller based on states. */
+    @Override
+    public int step() throws InterruptedException {
+        if (!this.born) {
+            Logger.log("is born.");
+            this.born = true;
+        }
+
+        /* Farmer comes back from a break */
+        if (this.onBreak) {
+            this.onBreak = false;
+            this.breakTime = this.sim.getTickCount()
+                + (int) (2 * this.random.nextDouble()
+                * Simulation.FARMER_BREAK_TICKS);
+            return 0;
+        }
+
+        /* Farmer takes a break */
+        if(this.sim.getTickCount() >= this.breakTime) {
+            Logger.log("Farmer is taking a break.");
+            Trace.record(this.traceId, Trace.FARMER_BREAK, Trace.NO_FIELD,
+                         Simulation.FARMER_BREAK_DURATION);
+            this.onBreak = true;
+            return Simulation.FARMER_BREAK_DURATION;
+        }
+
+        switch (this.currentState) {
+        case "AtEnclosure":
             Logger.log(
-                Thread.currentThread().getName()
-                + " took animals from Enclosure.");
-            this.currentState = "ChooseField";
-        } else {
-            Thread.sleep((Simulation.DELIVERY_SPAWN_TICKS / 4)
-                * Simulation.MS_PER_TICK);
+                this.sim.getActorName()
+                + " is at the Enclosure.");
+            return this.atEnclosure();
+        case "ChooseField":
+            Logger.log(
+                this.sim.getActorName()
+                + " is choosing a Field");
+            return this.chooseField();
+        case "AtField":
+            Logger.log(this.sim.getActorName()
+                + " is at the Field "
+                + this.chosenField.getFieldType());
+            return this.atField();
+        case "Placing":
+            return this.placing();
+        }
+        return 0;
+    }
+
+    /* Enter an Enclosure dock and take as many animals as can.
+    *  Parks until a dock changes if there was nothing to take. */
+    public int atEnclosure() throws InterruptedException {
+        if (sim.getDock(0).hasMailbox()) return this.askForLoad();
+        long generation = sim.docksChanged.generation();
+        Enclosure dock = this.enterDock();
+        if(dock != null) {
+            dock.takeAnimals(Simulation.FARMER_CAPACITY, this.load);
+            dock.farmerLock.release();
+            if (dock.turnedAway.getAndSet(0) > 0) {
+                sim.docksChanged.signalAll();
+            }
+            if (this.carry(dock, this.load)) return 0;
         }
+        return this.park(sim.docksChanged, generation);
     }
 
-    private Boolean canEnterEnclosure() { 
-        if(!sim.enclosure.isEmpty() && sim.enclosure.getDeliveryCount() == 0) {
-            return sim.enclosure.farmerLock.tryAcquire();
+    /* Mailbox engine: ask the fullest dock for a load, then park until it
+    *  answers. The dock serves one take at a time, so nobody is turned
+    *  away; a load of nothing parks like an empty Enclosure. */
+    private int askForLoad() {
+        long woken = this.wakeup.generation();
+        if (this.loadDock == null) {
+            this.loadGeneration = sim.docksChanged.generation();
+            Arrays.fill(this.triedDocks, false);
+            Enclosure dock = this.fullestDock();
+            if (dock == null) {
+                return this.park(sim.docksChanged, this.loadGeneration);
+            }
+            this.loadDock = dock;
+            dock.takeAnimals(Simulation.FARMER_CAPACITY, this.load, () -> {
+                this.loaded = true;
+                this.wakeup.signalAll();
+            });
+            return this.park(this.wakeup, woken);
         }
+        if (!this.loaded) return this.park(this.wakeup, woken);
+        Enclosure dock = this.loadDock;
+        this.loadDock = null;
+        this.loaded   = false;
+        if (this.carry(dock, this.load)) return 0;
+        return this.park(sim.docksChanged, this.loadGeneration);
+    }
+
+    /* Add a load taken from dock to what we carry. False if there was
+    *  nothing in it. */
+    private Boolean carry(Enclosure dock, int[] taken) {
+        for (int type = 0; type < taken.length; type++) {
+            if (taken[type] == 0) continue;
+            if (this.animals_taken[type] == 0) {
+                this.carriedTypes += 1;
+                sim.getField(type).announceVisit();
+            }
+            this.animals_taken[type] += taken[type];
+            Trace.record(this.traceId, Trace.ENCLOSURE_TAKE,
+                         type, taken[type]);
+        }
+
+        Logger.log(
+            this.sim.getActorName()
+            + " took animals from Enclosure dock " + dock.getDockId() + ".");
+        this.currentState = "ChooseField";
+        if (this.carriedTypes != 0) return true;
+        /* Nothing the fields need right now, wait for a buy or a
+         * delivery rather than coming straight back for nothing. */
+        this.currentState = "AtEnclosure";
         return false;
     }
 
-    /* Choose a Field of animal the Farmer has the most of. */
-    public void chooseField() throws InterruptedException {
-        if(this.animals_taken.isEmpty()) {
+    /* Of the docks with animals and no delivery unloading, enter the one
+    *  with the biggest backlog that is free. Null if there is none. */
+    private Enclosure enterDock() {
+        Arrays.fill(this.triedDocks, false);
+        while (true) {
+            Enclosure best = this.fullestDock();
+            if (best == null) return null;
+            if (this.canEnterEnclosure(best)) return best;
+            this.triedDocks[best.getDockId()] = true;
+        }
+    }
+
+    /* The untried dock with animals, no delivery unloading and the biggest
+    *  backlog. */
+    private Enclosure fullestDock() {
+        Enclosure best = null;
+        for (int i = 0; i < this.triedDocks.length; i++) {
+            Enclosure dock = sim.getDock(i);
+            if (this.triedDocks[i] || dock.isEmpty()
+                    || dock.getDeliveryCount() != 0) continue;
+            if (best == null || dock.getAnimalCount() > best.getAnimalCount()) {
+                best = dock;
+            }
+        }
+        return best;
+    }
+
+    private Boolean canEnterEnclosure(Enclosure dock) {
+        if (dock.farmerLock.tryAcquire()) return true;
+        dock.turnedAway.incrementAndGet();
+        sim.metrics.recordTurnedAway(dock.getDockId());
+        /* The holder may have left before it could see us. */
+        return dock.farmerLock.tryAcquire();
+    }
+
+    /* Choose the next Field of the trip, see nextStop(). If every Field
+    *  the Farmer carries animals for is full, go to the one he has the
+    *  most for and wait there.
+    *  Returns the ticks it takes to walk there. */
+    public int chooseField() throws InterruptedException {
+        if(this.carriedTypes == 0) {
             this.currentState = "AtEnclosure";
-            return;
+            return 0;
         }
-        String firstValue = this.animals_taken.entrySet().stream().findFirst()
-            .get().getKey();
-        this.chosenField = sim.getField(firstValue);
+        Field next = this.nextStop(null);
+        if (next == null) {
+            int most = 0;
+            for (int type = 1; type < this.animals_taken.length; type++) {
+                if (this.animals_taken[type] > this.animals_taken[most]) most = type;
+            }
+            next = sim.getField(most);
+        }
+        this.chosenField = next;
 
-        Thread.sleep((10 + this.animals_taken.size()) * Simulation.MS_PER_TICK);
+        int walkTicks = 10 + this.carriedTypes;
+        Trace.record(this.traceId, Trace.FARMER_WALK,
+                     next.getFieldId(), walkTicks);
+        sim.metrics.recordWalk(walkTicks);
         this.currentState = "AtField";
+        return walkTicks;
+    }
+
+    /* Plan the trip one stop at a time from the Fields as they are now.
+    *  Every hop costs 10 ticks plus one per type still carried, so the
+    *  order only matters through which types get dropped early. Of the
+    *  Fields with room, other than skip:
+    *    1. the one with the most buyers queued, they are served at once;
+    *    2. one that takes all we carry of its type, which makes every
+    *       later hop a tick shorter;
+    *    3. the one we can put the most animals in.
+    *  Null if every Field we carry animals for is full. */
+    private Field nextStop(Field skip) {
+        Field best = null;
+        int bestBuyers = 0;
+        Boolean bestDrops = false;
+        int bestPlaced = 0;
+        for (int type = 0; type < this.animals_taken.length; type++) {
+            int carried = this.animals_taken[type];
+            if (carried == 0) continue;
+            Field field = sim.getField(type);
+            int placed = Math.min(carried, field.getAnimalsMissing());
+            if (field == skip || placed == 0) continue;
+            int buyers = field.getBuyerCount();
+            Boolean drops = placed == carried;
+            if (best == null
+                    || buyers > bestBuyers
+                    || (buyers == bestBuyers && drops && !bestDrops)
+                    || (buyers == bestBuyers && drops == bestDrops
+                        && placed > bestPlaced)) {
+                best       = field;
+                bestBuyers = buyers;
+                bestDrops  = drops;
+                bestPlaced = placed;
+            }
+        }
+        return best;
     }
 
     /* Place animals in the Field if Farmer can enter.
     *  After that, either choose new Field to go to
-    *  or wait at the current Field to enter. */
-    public void atField() throws InterruptedException {
-        if(canEnterField()) {
-            this.chosenField.announceArival();
-            placeAnimals();
-            this.chosenField.farmerQueue.release();
+    *  or wait at the current Field until it changes. */
+    public int atField() throws InterruptedException {
+        if (this.stockingWait == null) {
+            long generation = this.chosenField.changed.generation();
+            if (!canEnterField()) {
+                /* Re-plan: carry on to another Field with room if there
+                 * is one, otherwise wait for a buyer here. */
+                if (this.nextStop(this.chosenField) != null) {
+                    this.currentState = "ChooseField";
+                    return 0;
+                }
+                return this.park(this.chosenField.changed, generation);
+            }
+            long woken = this.wakeup.generation();
+            this.stockingWait = this.chosenField.startStockingOrQueue(this.wakeup);
+            if (this.stockingWait != null && !this.stockingWait.isGranted()) {
+                Logger.log(this.sim.getActorName()
+                    + " queues at the Field " + this.chosenField.getFieldType());
+                return this.park(this.wakeup, woken);
+            }
+            this.stockingWait = null; // A mailbox may have granted it already.
         } else {
-            return;
+            long woken = this.wakeup.generation();
+            if (!this.stockingWait.isGranted()) {
+                return this.park(this.wakeup, woken);
+            }
+            this.stockingWait = null;
         }
+        return this.placeAnimals();
+    }
 
-        if(this.animals_taken.isEmpty()) {
+    /* Mailbox engine: wait for the Field to say how many animals went
+    *  in, then carry on with the rest. */
+    private int placing() {
+        long woken = this.wakeup.generation();
+        if (!this.placed) return this.park(this.wakeup, woken);
+        this.placed = false;
+        this.stocked(this.toPlace, this.accepted);
+        return this.leaveField();
+    }
+
+    /* Back to the Enclosure once everything is placed, else on to the
+    *  next Field. */
+    private int leaveField() {
+        if(this.carriedTypes == 0) {
             Logger.log(
-                Thread.currentThread().getName()
+                this.sim.getActorName()
                 + " is going back to Enclosure.");
-            Thread.sleep(10 * Simulation.MS_PER_TICK);
+            Trace.record(this.traceId, Trace.FARMER_WALK, Trace.NO_FIELD, 10);
+            sim.metrics.recordWalk(10);
             this.currentState = "AtEnclosure";
-        } else {
-            this.currentState = "ChooseField";
+            return 10;
         }
+        this.currentState = "ChooseField";
+        return 0;
     }
 
-    /* Check if Field is not full and has no Buyers waiting. */
-    private Boolean canEnterField() throws InterruptedException {
-        if((!this.chosenField.isFull() && this.chosenField.getBuyerCount() == 0)
-                || this.chosenField.isEmpty()) {
-            this.chosenField.farmerQueue.acquire();
-            return true;
-        } else {
-            Logger.log(Thread.currentThread().getName()
-                + " can't enter the Field " + this.chosenField.getFieldType());
-            Thread.sleep(10 * Simulation.MS_PER_TICK);
-            return false;
+    /* Check if Field has room. Buyers queued at a Field only wait for
+    *  stock, so they no longer keep a farmer out. */
+    private Boolean canEnterField() {
+        if (!this.chosenField.isFull()) return true;
+        Logger.log(this.sim.getActorName()
+            + " can't enter the Field " + this.chosenField.getFieldType());
+        return false;
+    }
+
+    /* Place as many animals as can in the current Field, then go on.
+    *  The Field is ours until finishStocking(), which says how many went
+    *  in: a buyer giving an animal back may have taken some of the room.
+    *  A Field with a Mailbox says so later, so park until it has. */
+    public int placeAnimals() {
+        int animalType = this.chosenField.getFieldId();
+        int animalsToPlace = Math.min(this.animals_taken[animalType],
+                                      this.chosenField.getAnimalsMissing());
+        Logger.log("is placing " + animalsToPlace + " "
+            + this.chosenField.getFieldType() + " in the Field");
+        if (this.chosenField.hasMailbox()) {
+            long woken = this.wakeup.generation();
+            this.currentState = "Placing";
+            this.toPlace      = animalsToPlace;
+            this.chosenField.finishStocking(animalsToPlace, accepted -> {
+                this.accepted = accepted;
+                this.placed   = true;
+                this.wakeup.signalAll();
+            });
+            return this.park(this.wakeup, woken);
         }
+        this.stocked(animalsToPlace, this.chosenField.finishStocking(animalsToPlace));
+        return this.leaveField();
     }
 
-    /* Place as many animals as can in the current Field. */
-    public void placeAnimals() throws InterruptedException {
-        String animalType = this.chosenField.getFieldType();
-        int animalsToPlace = this.animals_taken.get(animalType);
-        if(this.chosenField.getAnimalCount() + animalsToPlace <= this.chosenField.getCapacity()) {
-            this.animals_taken.remove(animalType);
-        } else {
-            animalsToPlace = this.chosenField.getCapacity() - this.chosenField.getAnimalCount();
-            this.animals_taken.put(animalType, this.animals_taken.get(animalType) - animalsToPlace);
+    /* Take the animals the Field accepted of those placed off what we
+    *  carry. A Field hears of the visit when we pick up animals for it,
+    *  however many stops it takes, and of the arrival once the last of
+    *  them is in. */
+    private void stocked(int placed, int accepted) {
+        int animalType = this.chosenField.getFieldId();
+        int carried = this.animals_taken[animalType];
+        this.animals_taken[animalType] -= accepted;
+        if (carried > 0 && accepted == carried) {
+            this.carriedTypes -= 1;
+            this.chosenField.announceArival();
+        }
+        if (accepted < placed && Logger.isEnabled(Logger.Level.LOG)) {
+            Logger.log("only " + accepted + " of " + placed + " "
+                + this.chosenField.getFieldType() + " fit in the Field");
         }
-        Logger.log("is placing " + animalsToPlace + " " + animalType + " in the Field");
-        this.chosenField.putAnimals(animalsToPlace);
+        Trace.record(this.traceId, Trace.FARMER_STOCK, animalType, accepted);
+        sim.metrics.recordStocked(animalType, accepted, sim.getTickCount());
     }
 }
@@ -1,63 +1,159 @@
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.Semaphore;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
 
+/* A field of one animal type.
+ * Everything buyers and farmers contend on lives in one state word:
+ *
+ *   bits  0-19  animals in the field
+ *   bit     20  a farmer is stocking
+ *   bits 21-41  buyers queued
+ *   bits 42-62  farmers queued
+ *
+ * Buying an animal or starting to stock is a single CAS when nobody is
+ * queued. Otherwise the caller joins a FIFO queue (the only place waitLock
+ * is taken) and parks on its own Signal. Whoever frees the resource hands it
+ * straight to the head of the queue, so queued buyers are served in order
+ * and a new arrival can't jump them. A buyer arriving while a farmer is
+ * stocking waits for him to finish.
+ *
+ * Queued buyers are served in batches: one CAS takes as many animals as
+ * there are buyers at the head of the queue to give them to, and their
+ * Signals fire after waitLock is let go.
+ *
+ * With a Mailbox (--engine=mailbox) the field is an actor instead: every
+ * buy, stock and cancel is a message, and only the message being run
+ * touches the queues and state, so neither waitLock nor CAS is needed.
+ * Callers always get a Waiter back and park on it as before. The queues
+ * keep the same FIFO order, so buyers and farmers see the same field. */
 public class Field {
+    private static final int  COUNT_BITS    = 20;
+    private static final int  QUEUE_BITS    = 21;
+    private static final long COUNT_MASK    = (1L << COUNT_BITS) - 1;
+    private static final long QUEUE_MASK    = (1L << QUEUE_BITS) - 1;
+    private static final long STOCKING      = 1L << COUNT_BITS;
+    private static final int  BUYERS_SHIFT  = COUNT_BITS + 1;
+    private static final int  FARMERS_SHIFT = BUYERS_SHIFT + QUEUE_BITS;
+    private static final long ONE_BUYER     = 1L << BUYERS_SHIFT;
+    private static final long ONE_FARMER    = 1L << FARMERS_SHIFT;
+
+    /* A queued buyer or farmer. Granted exactly once, by whoever handed it
+     * an animal or the right to stock, which also fires its Signal. */
+    public static class Waiter {
+        private final Signal wakeup;
+        private final long queuedAt; // nanoTime, only when profiling.
+        private volatile Boolean granted;
+        private Waiter next; // Woken after this one by the same handOff().
+
+        Waiter(Signal wakeup, long queuedAt) {
+            this.wakeup   = wakeup;
+            this.queuedAt = queuedAt;
+            this.granted  = false;
+        }
+
+        public Boolean isGranted() { return this.granted; }
+    }
+
     private String fieldType;
-    private int animalCount;
+    private int fieldId;
     private int capacity;
-    private AtomicInteger farmersScheduled;
+    private AtomicLong state;
+    private AtomicInteger farmersScheduled; // Farmers carrying animals for us.
+    private UrgencyIndex  urgencyIndex;
 
-    public  Semaphore buyerQueue;
-    public  Semaphore farmerQueue;
-    private Boolean   isGettingFilled;
-    private ReentrantLock lock;
-    private Condition wakeUpBuyers;
-    private Condition wakeUpFarmers;
+    /* Guards the wait queues and the queued counts in state. */
+    private ReentrantLock      waitLock;
+    private ArrayDeque<Waiter> buyerWaiters;
+    private ArrayDeque<Waiter> farmerWaiters;
+    /* Lock profiler view of the queues, null when not profiling. The
+     * farmer queue's hold time is the time spent stocking. */
+    private LockProfiler.Stats buyerQueueStats;
+    private LockProfiler.Stats farmerQueueStats;
+    /* Fired when an animal was taken, so a farmer turned away from a full
+     * field may now get in. */
+    public  Signal changed;
+    private Mailbox mailbox; // Null: callers run the field logic themselves.
 
-    Field(String type, int capacity, int animalCount) {
+    Field(int id, String type, int capacity, int animalCount,
+          UrgencyIndex urgencyIndex) {
+        if (capacity > COUNT_MASK) {
+            throw new IllegalArgumentException(
+                "Field capacity " + capacity + " is too big.");
+        }
+        this.fieldId = id;
+        this.urgencyIndex = urgencyIndex;
         this.fieldType = type;
         this.capacity = capacity;
-        if(animalCount > capacity) {
-            this.animalCount = capacity;
-        } else {
-            this.animalCount = animalCount;
-        }
+        this.state = new AtomicLong(Math.min(animalCount, capacity));
         this.init();
     }
 
     private void init() {
         this.farmersScheduled = new AtomicInteger(0);
-        this.isGettingFilled = false;
-        this.buyerQueue  = new Semaphore(1, true);
-        this.farmerQueue = new Semaphore(1, true);
-        this.lock        = new ReentrantLock();
-        this.wakeUpBuyers  = lock.newCondition();
-        this.wakeUpFarmers = lock.newCondition();
+        this.waitLock      = LockProfiler.lock("Field " + this.fieldType + " waitLock");
+        this.buyerQueueStats
+            = LockProfiler.queue("Field " + this.fieldType + " buyerQueue");
+        this.farmerQueueStats
+            = LockProfiler.queue("Field " + this.fieldType + " farmerQueue");
+        this.buyerWaiters  = new ArrayDeque<>();
+        this.farmerWaiters = new ArrayDeque<>();
+        this.changed       = new Signal();
         Logger.status(
             "Field Type: " + this.fieldType
-            + " Animal Count: " + this.animalCount
+            + " Animal Count: " + this.getAnimalCount()
             + " Capacity: " + this.capacity);
+        this.urgencyIndex.add(this);
+    }
+
+    /* Make this field an actor. Only before anyone uses it. */
+    void setMailbox(Mailbox mailbox) { this.mailbox = mailbox; }
+
+    private static int count(long s)   { return (int) (s & COUNT_MASK); }
+    private static int buyers(long s)  { return (int) ((s >>> BUYERS_SHIFT) & QUEUE_MASK); }
+    private static int farmers(long s) { return (int) ((s >>> FARMERS_SHIFT) & QUEUE_MASK); }
+    private static Boolean stocking(long s) { return (s & STOCKING) != 0; }
+
+    /* Animals that still fit in the field. A granted buyer giving its
+     * animal back can take up room a farmer has already been told of, so
+     * no caller may add more than this. */
+    private int room(long s) {
+        return Math.max(this.capacity - count(s), 0);
+    }
+
+    /* An animal can be taken straight away, without queueing. */
+    private static Boolean canTake(long s) {
+        return count(s) > 0 && !stocking(s) && buyers(s) == 0;
+    }
+
+    /* Stocking can start straight away, without queueing. */
+    private static Boolean canStock(long s) {
+        return !stocking(s) && farmers(s) == 0;
     }
 
     public String getFieldType() { return this.fieldType; }
-    public int getAnimalCount() { return this.animalCount; }
-    public int getAnimalsMissing() { return this.capacity - this.animalCount; }
+    public int getFieldId() { return this.fieldId; }
+    public int getAnimalCount() { return count(this.state.get()); }
+    public int getAnimalsMissing() { return this.capacity - this.getAnimalCount(); }
     public int getCapacity() { return this.capacity; }
-    public int getBuyerCount() { return this.buyerQueue.getQueueLength(); }
-    public int getFarmerCount() { return this.farmerQueue.getQueueLength(); }
+    public int getBuyerCount() { return buyers(this.state.get()); }
+    public int getFarmerCount() { return farmers(this.state.get()); }
+    public int getFarmersScheduled() { return this.farmersScheduled.get(); }
+    public Boolean isStocking() { return stocking(this.state.get()); }
     public int getUrgency() {
+        long s = this.state.get();
         float fullness
             = 1
-            - ( (float)this.getAnimalCount()
+            - ( (float)count(s)
               / (float)this.getCapacity()    );
 
         // US = Urgency score
-        int buyerUS     = this.getBuyerCount() * 10;
+        int buyerUS     = buyers(s) * 10;
         int fullnessUS  = (int)Math.round(fullness * 100.0);
         int scheduledUS = this.farmersScheduled.get() * 15;
-        int farmerUS    = this.getFarmerCount() * 50;
+        int farmerUS    = farmers(s) * 50;
 
 
         int urgency_score
@@ -70,55 +166,433 @@ public class Field {
         return urgency_score;
     }
 
-    public synchronized Boolean isEmpty() { return this.animalCount == 0; }
-    public synchronized Boolean isFull() { return this.animalCount == this.capacity; }
+    public Boolean hasMailbox() { return this.mailbox != null; }
+    public Boolean isEmpty() { return this.getAnimalCount() == 0; }
+    public Boolean isFull() { return this.getAnimalCount() == this.capacity; }
+
+    public void announceVisit() {
+        this.farmersScheduled.getAndIncrement();
+        this.urgencyIndex.update(this);
+    }
+    public void announceArival() {
+        this.farmersScheduled.getAndDecrement();
+        this.urgencyIndex.update(this);
+    }
 
-    public synchronized void announceVisit() { this.farmersScheduled.getAndIncrement(); }
-    public synchronized void announceArival() { this.farmersScheduled.getAndDecrement(); }
+    /* Take an animal if one can be had without queueing. Never with a
+     * Mailbox, where the answer would have to wait for the message. */
+    public Boolean tryTakeAnimal() {
+        if (this.mailbox != null) return false;
+        long s;
+        do {
+            s = this.state.get();
+            if (!canTake(s)) return false;
+        } while (!this.state.compareAndSet(s, s - 1));
+        if (this.buyerQueueStats != null) this.buyerQueueStats.acquired(0);
+        this.animalTaken();
+        return true;
+    }
 
-    /* Put animals into the Field. */
-    public void putAnimals(Integer animalCount) throws InterruptedException {
-        lock.lock();
+    /* Take an animal, or join the buyer queue. Returns null if an animal
+     * was taken, otherwise the Waiter that will be granted one; wakeup
+     * fires when it is. */
+    public Waiter takeAnimalOrQueue(Signal wakeup) {
+        if (this.mailbox != null) {
+            Waiter waiter = new Waiter(wakeup, queuedAt(this.buyerQueueStats));
+            this.mailbox.post(() -> this.buy(waiter));
+            return waiter;
+        }
+        if (this.tryTakeAnimal()) return null;
+        Waiter waiter = null;
+        this.waitLock.lock();
         try {
-            Logger.log("trying to stock up...");
-            while (!this.isGettingFilled
-                   && this.getBuyerCount() > 0) {
-                wakeUpFarmers.await();
+            long s;
+            do {
+                s = this.state.get();
+            } while (!this.state.compareAndSet(s,
+                         canTake(s) ? s - 1 : s + ONE_BUYER));
+            if (!canTake(s)) {
+                waiter = new Waiter(wakeup, queuedAt(this.buyerQueueStats));
+                this.buyerWaiters.add(waiter);
             }
+        } finally {
+            this.waitLock.unlock();
+        }
+        if (waiter == null) {
+            if (this.buyerQueueStats != null) this.buyerQueueStats.acquired(0);
+            this.animalTaken();
+        } else {
+            this.urgencyIndex.update(this);
+        }
+        return waiter;
+    }
 
-            this.animalCount += animalCount;
+    /* Start stocking if no other farmer is, without queueing. Never
+     * with a Mailbox. */
+    public Boolean tryStartStocking() {
+        if (this.mailbox != null) return false;
+        long s;
+        do {
+            s = this.state.get();
+            if (!canStock(s)) return false;
+        } while (!this.state.compareAndSet(s, s | STOCKING));
+        if (this.farmerQueueStats != null) this.farmerQueueStats.acquired(0);
+        return true;
+    }
 
-            if (this.animalCount == this.capacity) {
-                isGettingFilled = false;
-                wakeUpBuyers.signal();
+    /* Start stocking, or join the farmer queue. Returns null if stocking
+     * started, otherwise the Waiter that will be granted the field. */
+    public Waiter startStockingOrQueue(Signal wakeup) {
+        if (this.mailbox != null) {
+            Waiter waiter = new Waiter(wakeup, queuedAt(this.farmerQueueStats));
+            this.mailbox.post(() -> this.stock(waiter));
+            return waiter;
+        }
+        if (this.tryStartStocking()) return null;
+        Waiter waiter = null;
+        this.waitLock.lock();
+        try {
+            long s;
+            do {
+                s = this.state.get();
+            } while (!this.state.compareAndSet(s,
+                         canStock(s) ? s | STOCKING : s + ONE_FARMER));
+            if (!canStock(s)) {
+                waiter = new Waiter(wakeup, queuedAt(this.farmerQueueStats));
+                this.farmerWaiters.add(waiter);
             }
-            Logger.log("added " + animalCount + " animals to field");
-
         } finally {
-            lock.unlock();
+            this.waitLock.unlock();
+        }
+        if (waiter != null) {
+            this.urgencyIndex.update(this);
+        } else if (this.farmerQueueStats != null) {
+            this.farmerQueueStats.acquired(0);
+        }
+        return waiter;
+    }
+
+    /* Put as many of animals as fit into the Field and stop stocking.
+     * Returns how many went in; the farmer keeps the rest. Only the farmer
+     * that started stocking may call this, and never with a Mailbox. Queued
+     * buyers are served first, then the next queued farmer gets the field. */
+    public int finishStocking(int animals) {
+        if (this.mailbox != null) {
+            throw new IllegalStateException(
+                "Field " + this.fieldType + " answers stocking by message.");
+        }
+        if (this.farmerQueueStats != null) this.farmerQueueStats.released();
+        long s;
+        int accepted;
+        do {
+            s = this.state.get();
+            accepted = Math.min(animals, this.room(s));
+        } while (!this.state.compareAndSet(s, (s + accepted) & ~STOCKING));
+        Logger.log("added " + accepted + " animals to field");
+        if (buyers(s) != 0 || farmers(s) != 0) {
+            this.handOff();
+        } else {
+            this.urgencyIndex.update(this);
         }
+        return accepted;
     }
 
-    public synchronized void takeAnimal() throws InterruptedException {
-        lock.lock();
+    /* Mailbox engine: finishStocking() in a message, which then tells done
+     * how many went in. */
+    public void finishStocking(int animals, IntConsumer done) {
+        if (this.farmerQueueStats != null) this.farmerQueueStats.released();
+        this.mailbox.post(() -> {
+            int accepted = this.stocked(animals);
+            Logger.log("added " + accepted + " animals to field");
+            done.accept(accepted);
+        });
+    }
+
+    /* Give up on a queued buy. If an animal was already granted it goes
+     * back to the field, or when the field has filled up since, to the
+     * next buyer in line. If there is none, the buyer keeps it after all
+     * and kept runs, on whichever thread settled it. */
+    public void cancel(Waiter waiter, Runnable kept) {
+        if (this.mailbox != null) {
+            this.mailbox.post(() -> this.cancelled(waiter, kept));
+            return;
+        }
+        this.waitLock.lock();
         try {
-            Logger.log("trying to take animal out");
-            while (this.isGettingFilled
-                   && this.getFarmerCount() > 0) {
-                wakeUpBuyers.await();
+            if (!waiter.isGranted()) {
+                this.buyerWaiters.remove(waiter);
+                this.state.addAndGet(-ONE_BUYER);
+                return;
             }
+        } finally {
+            this.waitLock.unlock();
+        }
+        long s;
+        do {
+            s = this.state.get();
+            if (this.room(s) == 0) break;
+        } while (!this.state.compareAndSet(s, s + 1));
+        if (this.room(s) > 0) {
+            this.handOff();
+            return;
+        }
+        Waiter next = null;
+        this.waitLock.lock();
+        try {
+            next = this.passOn();
+        } finally {
+            this.waitLock.unlock();
+        }
+        if (next == null) {
+            kept.run();
+        } else {
+            next.wakeup.signalAll();
+        }
+    }
 
-            this.animalCount -= 1;
-            Logger.log(
-                "An animal was bought from (" + this.fieldType + ") field.");
-            Logger.status("New animal Count: " + this.animalCount);
+    /* Grant a given-back animal to the head of the buyer queue, without
+     * it passing through the count. Under waitLock, or in a mailbox
+     * message; null if nobody is queued. */
+    private Waiter passOn() {
+        Waiter next = this.buyerWaiters.poll();
+        if (next == null) return null;
+        this.state.addAndGet(-ONE_BUYER);
+        granted(next, this.buyerQueueStats);
+        return next;
+    }
 
-            if (this.isEmpty()) {
-                isGettingFilled = true;
-                wakeUpFarmers.signal();
+    /* Give up on queued stocking. If the field was already granted, hand
+     * it on without adding anything. */
+    public void cancelStocking(Waiter waiter) {
+        if (this.mailbox != null) {
+            this.mailbox.post(() -> this.stockingCancelled(waiter));
+            return;
+        }
+        this.waitLock.lock();
+        try {
+            if (!waiter.isGranted()) {
+                this.farmerWaiters.remove(waiter);
+                this.state.addAndGet(-ONE_FARMER);
+                return;
             }
         } finally {
-            lock.unlock();
+            this.waitLock.unlock();
         }
+        this.finishStocking(0);
+    }
+
+    /* Serve queued buyers while there is stock, then give the field to the
+     * next queued farmer if nobody is stocking. The waiters are marked
+     * granted under waitLock, so cancel() sees it, and woken after. The
+     * buyers served are chained through Waiter.next, so a hand-off leaves
+     * no garbage behind. */
+    private void handOff() {
+        Waiter served = null;
+        Waiter farmer = null;
+        this.waitLock.lock();
+        try {
+            long s = this.state.get();
+            int n;
+            while (true) {
+                n = stocking(s) ? 0 : Math.min(count(s), buyers(s));
+                if (n == 0 || this.state.compareAndSet(s, s - n - n * ONE_BUYER)) break;
+                s = this.state.get();
+            }
+            Waiter last = null;
+            for (int i = 0; i < n; i++) {
+                Waiter waiter = this.buyerWaiters.poll();
+                if (last == null) served = waiter; else last.next = waiter;
+                last = waiter;
+                granted(waiter, this.buyerQueueStats);
+            }
+            if (n > 0) s = this.state.get();
+            while (!stocking(s) && farmers(s) > 0) {
+                if (this.state.compareAndSet(s, (s | STOCKING) - ONE_FARMER)) {
+                    farmer = this.farmerWaiters.poll();
+                    granted(farmer, this.farmerQueueStats);
+                    break;
+                }
+                s = this.state.get();
+            }
+        } finally {
+            this.waitLock.unlock();
+        }
+        Boolean sold = served != null;
+        while (served != null) {
+            Waiter waiter = served;
+            served = waiter.next;
+            waiter.next = null;
+            waiter.wakeup.signalAll();
+        }
+        if (farmer != null) farmer.wakeup.signalAll();
+        if (sold) {
+            this.animalTaken();
+        } else {
+            this.urgencyIndex.update(this);
+        }
+    }
+
+    /* The mailbox messages. Each runs alone, so state is read and written
+     * with plain get() and set(); the volatile write is what the readers
+     * (urgency, planning, telemetry) see. */
+
+    private void buy(Waiter waiter) {
+        long s = this.state.get();
+        if (!canTake(s)) {
+            this.buyerWaiters.add(waiter);
+            this.state.set(s + ONE_BUYER);
+            this.urgencyIndex.update(this);
+            return;
+        }
+        this.state.set(s - 1);
+        granted(waiter, this.buyerQueueStats);
+        waiter.wakeup.signalAll();
+        this.animalTaken();
+    }
+
+    private void stock(Waiter waiter) {
+        long s = this.state.get();
+        if (!canStock(s)) {
+            this.farmerWaiters.add(waiter);
+            this.state.set(s + ONE_FARMER);
+            this.urgencyIndex.update(this);
+            return;
+        }
+        this.state.set(s | STOCKING);
+        granted(waiter, this.farmerQueueStats);
+        waiter.wakeup.signalAll();
+    }
+
+    private int stocked(int animals) {
+        long s = this.state.get();
+        int accepted = Math.min(animals, this.room(s));
+        this.state.set((s + accepted) & ~STOCKING);
+        this.serve();
+        return accepted;
+    }
+
+    private void cancelled(Waiter waiter, Runnable kept) {
+        if (!waiter.isGranted()) {
+            this.buyerWaiters.remove(waiter);
+            this.state.set(this.state.get() - ONE_BUYER);
+            return;
+        }
+        long s = this.state.get();
+        if (this.room(s) > 0) {
+            this.state.set(s + 1);
+            this.serve();
+            return;
+        }
+        Waiter next = this.passOn();
+        if (next == null) {
+            kept.run();
+        } else {
+            next.wakeup.signalAll();
+        }
+    }
+
+    private void stockingCancelled(Waiter waiter) {
+        if (!waiter.isGranted()) {
+            this.farmerWaiters.remove(waiter);
+            this.state.set(this.state.get() - ONE_FARMER);
+            return;
+        }
+        if (this.farmerQueueStats != null) this.farmerQueueStats.released();
+        this.stocked(0);
+    }
+
+    /* handOff() for the mailbox: queued buyers while there is stock, then
+     * the next queued farmer if nobody is stocking. */
+    private void serve() {
+        long s = this.state.get();
+        int n = stocking(s) ? 0 : Math.min(count(s), buyers(s));
+        s -= n + n * ONE_BUYER;
+        Waiter farmer = null;
+        if (!stocking(s) && farmers(s) > 0) {
+            s = (s | STOCKING) - ONE_FARMER;
+            farmer = this.farmerWaiters.poll();
+        }
+        this.state.set(s);
+        for (int i = 0; i < n; i++) {
+            Waiter waiter = this.buyerWaiters.poll();
+            granted(waiter, this.buyerQueueStats);
+            waiter.wakeup.signalAll();
+        }
+        if (farmer != null) {
+            granted(farmer, this.farmerQueueStats);
+            farmer.wakeup.signalAll();
+        }
+        if (n > 0) {
+            this.animalTaken();
+        } else {
+            this.urgencyIndex.update(this);
+        }
+    }
+
+    /* Count, capacity and queue lengths, for a checkpoint. The queued
+     * buyers themselves are saved by Simulation, see getQueuedBuyers(). */
+    void save(Snapshot.Writer out) {
+        if (this.isStocking() || this.getFarmerCount() != 0) {
+            throw new IllegalStateException(
+                "Can't checkpoint " + this.fieldType + " while it is stocked.");
+        }
+        out.putInt(this.capacity);
+        out.putLong(this.state.get());
+        out.putInt(this.farmersScheduled.get());
+    }
+
+    /* Into a freshly made Field, before its buyers are requeued. */
+    void restore(Snapshot.Reader in) {
+        this.capacity = in.getInt();
+        this.state.set(in.getLong());
+        this.farmersScheduled.set(in.getInt());
+        this.urgencyIndex.update(this);
+    }
+
+    /* Queued buyers, first in line first. */
+    ArrayList<Waiter> getQueuedBuyers() {
+        this.waitLock.lock();
+        try {
+            return new ArrayList<>(this.buyerWaiters);
+        } finally {
+            this.waitLock.unlock();
+        }
+    }
+
+    /* Put a buyer back at the end of the queue when restoring. The queued
+     * count is already in the restored state. */
+    Waiter requeue(Signal wakeup) {
+        Waiter waiter = new Waiter(wakeup, queuedAt(this.buyerQueueStats));
+        this.waitLock.lock();
+        try {
+            this.buyerWaiters.add(waiter);
+        } finally {
+            this.waitLock.unlock();
+        }
+        return waiter;
+    }
+
+    /* A waiter that has been handed its animal but hasn't taken it yet. */
+    static Waiter granted(Signal wakeup) {
+        Waiter waiter = new Waiter(wakeup, 0);
+        waiter.granted = true;
+        return waiter;
+    }
+
+    private static long queuedAt(LockProfiler.Stats stats) {
+        return stats == null ? 0 : System.nanoTime();
+    }
+
+    /* Under waitLock, or in a mailbox message. The caller fires the
+     * waiter's Signal once it has let go. */
+    private static void granted(Waiter waiter, LockProfiler.Stats stats) {
+        if (stats != null) stats.acquired(System.nanoTime() - waiter.queuedAt);
+        waiter.granted = true;
+    }
+
+    private void animalTaken() {
+        Logger.status(() -> "New animal Count: " + this.getAnimalCount());
+        this.urgencyIndex.update(this);
+        this.changed.signalAll();
     }
 }
@@ -0,0 +1,151 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/* Fixed-memory, lock-free histogram of non-negative int values (ticks).
+ * Values below 32 get a bucket each. Above that every power of two is split
+ * into 32 buckets, so a percentile is off by at most ~3% of its value.
+ * Recording is a couple of atomic adds and never allocates. */
+public class Histogram {
+    private static final int SUB_BITS  = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 30; // Largest int is < 2^31.
+    private static final int BUCKET_COUNT
+        = SUB_COUNT + (MAX_EXPONENT - SUB_BITS + 1) * SUB_COUNT;
+
+    private final AtomicLongArray buckets;
+    private final LongAdder count;
+    private final LongAdder sum;
+    private final LongAccumulator max;
+
+    Histogram() {
+        this.buckets = new AtomicLongArray(BUCKET_COUNT);
+        this.count   = new LongAdder();
+        this.sum     = new LongAdder();
+        this.max     = new LongAccumulator(Math::max, 0);
+    }
+
+    public void record(int value) {
+        if (value < 0) value = 0;
+        this.buckets.incrementAndGet(bucketOf(value));
+        this.count.increment();
+        this.sum.add(value);
+        this.max.accumulate(value);
+    }
+
+    public long getCount() { return this.count.sum(); }
+    public long getSum()   { return this.sum.sum(); }
+    public long getMax()   { return this.max.get(); }
+
+    public double getMean() {
+        long n = this.getCount();
+        return n == 0 ? 0.0 : (double) this.getSum() / n;
+    }
+
+    /* Smallest recorded bucket bound below which p (0..1) of the samples
+     * fall, capped at the largest value seen. */
+    public long getPercentile(double p) {
+        long n = this.getCount();
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(p * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += this.buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), this.getMax());
+            }
+        }
+        return this.getMax();
+    }
+
+    /* Add every sample of other into this histogram. */
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long c = other.buckets.get(i);
+            if (c != 0) this.buckets.addAndGet(i, c);
+        }
+        this.count.add(other.getCount());
+        this.sum.add(other.getSum());
+        this.max.accumulate(other.getMax());
+    }
+
+    /* A copy to take since() from later. */
+    public Histogram copy() {
+        Histogram copy = new Histogram();
+        copy.add(this);
+        return copy;
+    }
+
+    /* The samples recorded after earlier, a copy() of this histogram, was
+     * taken. Their max is only known to its bucket. */
+    public Histogram since(Histogram earlier) {
+        Histogram delta = new Histogram();
+        int top = -1;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long c = this.buckets.get(i) - earlier.buckets.get(i);
+            if (c == 0) continue;
+            delta.buckets.set(i, c);
+            top = i;
+        }
+        delta.count.add(this.getCount() - earlier.getCount());
+        delta.sum.add(this.getSum() - earlier.getSum());
+        if (top >= 0) delta.max.accumulate(Math.min(upperBoundOf(top), this.getMax()));
+        return delta;
+    }
+
+    /* Only the non-empty buckets are written. */
+    void save(Snapshot.Writer out) {
+        int used = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (this.buckets.get(i) != 0) used++;
+        }
+        out.putInt(used);
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long c = this.buckets.get(i);
+            if (c == 0) continue;
+            out.putInt(i);
+            out.putLong(c);
+        }
+        out.putLong(this.getCount());
+        out.putLong(this.getSum());
+        out.putLong(this.getMax());
+    }
+
+    /* Into an empty histogram. */
+    void restore(Snapshot.Reader in) {
+        int used = in.getInt();
+        for (int n = 0; n < used; n++) {
+            int i = in.getInt();
+            this.buckets.set(i, in.getLong());
+        }
+        this.count.add(in.getLong());
+        this.sum.add(in.getLong());
+        this.max.accumulate(in.getLong());
+    }
+
+    /* "n=.. mean=.. p50=.. p90=.. p99=.. p999=.. max=.." */
+    public String summary() {
+        return String.format(
+            "n=%d mean=%.2f p50=%d p90=%d p99=%d p999=%d max=%d",
+            this.getCount(), this.getMean(),
+            this.getPercentile(0.50), this.getPercentile(0.90),
+            this.getPercentile(0.99), this.getPercentile(0.999),
+            this.getMax());
+    }
+
+    private static int bucketOf(int value) {
+        if (value < SUB_COUNT) return value;
+        int exponent = 31 - Integer.numberOfLeadingZeros(value);
+        int shift    = exponent - SUB_BITS;
+        int mantissa = (value >>> shift) & (SUB_COUNT - 1);
+        return SUB_COUNT + shift * SUB_COUNT + mantissa;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_COUNT) return bucket;
+        int shift    = (bucket - SUB_COUNT) / SUB_COUNT;
+        int mantissa = (bucket - SUB_COUNT) % SUB_COUNT;
+        long lower = ((long) (SUB_COUNT + mantissa)) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,260 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* Opt-in contention profiler for the simulation's synchronizers.
+ * Enclosure, Field, UrgencyIndex and Simulation get their locks and
+ * semaphores from the factories below. When the running simulation has no
+ * profiler they hand back plain JDK synchronizers, so an unprofiled run
+ * pays nothing. With --lock-profile they hand back subclasses that count
+ * acquisitions and failed tries and time waits and holds, per synchronizer,
+ * into a Stats named after it (e.g. "Dock 0 farmerLock", "Field Pig
+ * waitLock").
+ *
+ * Field's buyer and farmer queues are not locks, so Field records into
+ * queue() Stats itself: the wait is the time from queueing to being handed
+ * the animal or the field, the hold is the time spent stocking.
+ *
+ * Times are wall-clock nanoseconds, so the numbers mean most in wall-clock
+ * mode. report() prints the totals at the end of the run, sample() what
+ * changed since the previous sample. */
+public class LockProfiler {
+    /* Counters for one synchronizer. Only exclusive ones are profiled, so
+     * there is one holder at a time and it alone touches acquiredAt. */
+    static class Stats {
+        final String name;
+        final LongAdder acquired;
+        final LongAdder contended; // Had to wait, or a try failed.
+        final LongAdder waitNanos;
+        final LongAdder holdNanos;
+        final LongAccumulator maxWait;
+        final LongAccumulator maxHold;
+        long acquiredAt;
+        /* Totals at the previous sample() and the change since, only
+         * touched by the sampler. */
+        long sampledAcquired, deltaAcquired;
+        long sampledContended, deltaContended;
+        long sampledWait, deltaWait;
+        long sampledHold, deltaHold;
+
+        Stats(String name) {
+            this.name      = name;
+            this.acquired  = new LongAdder();
+            this.contended = new LongAdder();
+            this.waitNanos = new LongAdder();
+            this.holdNanos = new LongAdder();
+            this.maxWait   = new LongAccumulator(Math::max, 0);
+            this.maxHold   = new LongAccumulator(Math::max, 0);
+        }
+
+        /* Got it after waiting waited ns (0 if it was free). */
+        void acquired(long waited) {
+            this.acquired.increment();
+            if (waited > 0) {
+                this.contended.increment();
+                this.waitNanos.add(waited);
+                this.maxWait.accumulate(waited);
+            }
+            this.acquiredAt = System.nanoTime();
+        }
+
+        /* A try that came back empty-handed. */
+        void failed() { this.contended.increment(); }
+
+        void released() {
+            long held = System.nanoTime() - this.acquiredAt;
+            this.holdNanos.add(held);
+            this.maxHold.accumulate(held);
+        }
+
+        void takeSample() {
+            long acquired  = this.acquired.sum();
+            long contended = this.contended.sum();
+            long wait      = this.waitNanos.sum();
+            long hold      = this.holdNanos.sum();
+            this.deltaAcquired    = acquired  - this.sampledAcquired;
+            this.deltaContended   = contended - this.sampledContended;
+            this.deltaWait        = wait      - this.sampledWait;
+            this.deltaHold        = hold      - this.sampledHold;
+            this.sampledAcquired  = acquired;
+            this.sampledContended = contended;
+            this.sampledWait      = wait;
+            this.sampledHold      = hold;
+        }
+    }
+
+    /* Serializable only because ReentrantLock is; never serialized, so the
+     * statistics are left out. */
+    static class ProfiledLock extends ReentrantLock {
+        private static final long serialVersionUID = 1L;
+        private final transient Stats stats;
+
+        ProfiledLock(Stats stats) { this.stats = stats; }
+
+        @Override
+        public void lock() {
+            if (super.tryLock()) {
+                if (this.getHoldCount() == 1) this.stats.acquired(0);
+                return;
+            }
+            long start = System.nanoTime();
+            super.lock();
+            this.stats.acquired(System.nanoTime() - start);
+        }
+
+        @Override
+        public boolean tryLock() {
+            if (!super.tryLock()) {
+                this.stats.failed();
+                return false;
+            }
+            if (this.getHoldCount() == 1) this.stats.acquired(0);
+            return true;
+        }
+
+        @Override
+        public void unlock() {
+            if (this.getHoldCount() == 1) this.stats.released();
+            super.unlock();
+        }
+    }
+
+    /* A single-permit semaphore used as a lock. */
+    static class ProfiledSemaphore extends Semaphore {
+        private static final long serialVersionUID = 1L;
+        private final transient Stats stats;
+
+        ProfiledSemaphore(Stats stats, Boolean fair) {
+            super(1, fair);
+            this.stats = stats;
+        }
+
+        @Override
+        public void acquire() throws InterruptedException {
+            // Timed so a fair semaphore stays fair.
+            if (super.tryAcquire(0, TimeUnit.SECONDS)) {
+                this.stats.acquired(0);
+                return;
+            }
+            long start = System.nanoTime();
+            super.acquire();
+            this.stats.acquired(System.nanoTime() - start);
+        }
+
+        @Override
+        public boolean tryAcquire() {
+            if (!super.tryAcquire()) {
+                this.stats.failed();
+                return false;
+            }
+            this.stats.acquired(0);
+            return true;
+        }
+
+        @Override
+        public void release() {
+            this.stats.released();
+            super.release();
+        }
+    }
+
+    private final ReentrantLock lock; // Guards all.
+    private final ArrayList<Stats> all;
+    private final int sampleTicks;
+
+    LockProfiler(int sampleTicks) {
+        this.lock        = new ReentrantLock();
+        this.all         = new ArrayList<>();
+        this.sampleTicks = sampleTicks;
+    }
+
+    /* Ticks between sample()s, 0 for none. */
+    public int getSampleTicks() { return this.sampleTicks; }
+
+    /* The profiler of the simulation on this thread, null if none. */
+    private static LockProfiler current() {
+        Simulation sim = Simulation.current();
+        return sim == null ? null : sim.locks;
+    }
+
+    static ReentrantLock lock(String name) {
+        LockProfiler profiler = current();
+        if (profiler == null) return new ReentrantLock();
+        return new ProfiledLock(profiler.stats(name));
+    }
+
+    static Semaphore semaphore(String name, Boolean fair) {
+        LockProfiler profiler = current();
+        if (profiler == null) return new Semaphore(1, fair);
+        return new ProfiledSemaphore(profiler.stats(name), fair);
+    }
+
+    /* Stats for something that isn't a lock, null when not profiling. */
+    static Stats queue(String name) {
+        LockProfiler profiler = current();
+        return profiler == null ? null : profiler.stats(name);
+    }
+
+    private Stats stats(String name) {
+        Stats stats = new Stats(name);
+        this.lock.lock();
+        try {
+            this.all.add(stats);
+        } finally {
+            this.lock.unlock();
+        }
+        return stats;
+    }
+
+    private ArrayList<Stats> snapshot() {
+        this.lock.lock();
+        try {
+            return new ArrayList<>(this.all);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /* Every synchronizer that was used, most waited on first. */
+    public void report() {
+        Logger.log("Lock contention (times in us):");
+        Logger.log(String.format("  %-28s %10s %10s %12s %10s %12s %10s",
+            "", "acquired", "contended", "wait total", "wait max",
+            "hold total", "hold max"));
+        ArrayList<Stats> sorted = this.snapshot();
+        sorted.sort(Comparator.comparingLong(
+            (Stats s) -> s.waitNanos.sum()).reversed());
+        for (Stats s : sorted) {
+            if (s.acquired.sum() == 0 && s.contended.sum() == 0) continue;
+            Logger.log(String.format(
+                "  %-28s %10d %10d %12d %10d %12d %10d",
+                s.name, s.acquired.sum(), s.contended.sum(),
+                s.waitNanos.sum() / 1000, s.maxWait.get() / 1000,
+                s.holdNanos.sum() / 1000, s.maxHold.get() / 1000));
+        }
+    }
+
+    /* One line for what changed since the last sample: the synchronizers
+     * waited on longest in between, at most three of them. */
+    public void sample(int tick) {
+        ArrayList<Stats> changed = this.snapshot();
+        for (Stats s : changed) s.takeSample();
+        changed.removeIf(s -> s.deltaAcquired == 0);
+        if (changed.isEmpty()) return;
+        changed.sort(Comparator.comparingLong(
+            (Stats s) -> s.deltaWait).reversed());
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < Math.min(3, changed.size()); i++) {
+            Stats s = changed.get(i);
+            if (i > 0) sb.append("; ");
+            sb.append(String.format("%s acq=%d cont=%d wait=%dus hold=%dus",
+                s.name, s.deltaAcquired, s.deltaContended,
+                s.deltaWait / 1000, s.deltaHold / 1000));
+        }
+        Logger.log("Lock sample at " + tick + ": " + sb);
+    }
+}
@@ -0,0 +1,687 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* Rebuilds a run's metrics from its text log (the Logger's FORMAT2 layout,
+ * "[L][tick][thread] -> msg"), for archived runs that have no --metrics or
+ * --trace file:
+ *
+ *   java -cp build/ LogAnalyzer run.log [--window=TICKS] [--csv=FILE]
+ *                               [--animal-types=FILE] [--parallelism=P]
+ *
+ * The file is memory-mapped in CHUNK_SIZE pieces cut at line ends, and the
+ * pieces are parsed in parallel straight from the mapped bytes: no String or
+ * boxed number per line. Each piece adds up what it saw in plain arrays
+ * indexed by window, animal type or farmer number; the pieces are then
+ * summed in file order. Buyer waits are the ticks from "is ready to buy." to
+ * "... bought successfully.", matched by buyer number. A buyer whose two
+ * lines fall in different pieces is matched when the pieces are merged.
+ *
+ * The enclosure backlog comes from the STATUS lines an enclosure logs around
+ * each change: "Before: {..}" and "After: {..}" around a delivery, and
+ * "Animals in Enclosure: {..}" and "Animals in Enclosure: N" around a take.
+ * Each pair is matched by thread, like the buyers, and the backlog moves by
+ * the difference, so it holds for any number of docks. Logs without STATUS
+ * lines fall back to counting animals from "Delivery generated" on, less
+ * those rejected by a full dock and those taken by farmers, clamped at 0 at
+ * each window's end: old logs list the whole enclosure as taken, so that
+ * count can run ahead of what was delivered. Lines in any other layout
+ * (VERBOSE logging, the run.sh banner) are counted and skipped. */
+public class LogAnalyzer {
+    private final static int
+        CHUNK_SIZE = 64 << 20; // Bytes per piece, before cutting at a line.
+    private final static int
+        SCAN_SIZE  =     4096; // Bytes read at a time looking for a line end.
+
+    private static final byte[] ARROW     = bytes(" -> ");
+    private static final byte[] BUYER     = bytes("Buyer-");
+    private static final byte[] FARMER    = bytes("Farmer-");
+    private static final byte[] READY     = bytes("is ready to buy.");
+    private static final byte[] BOUGHT    = bytes(" bought successfully.");
+    private static final byte[] PLACING   = bytes("is placing ");
+    private static final byte[] IN_FIELD  = bytes(" in the Field");
+    private static final byte[] GENERATED = bytes("Delivery generated: ");
+    private static final byte[] TAKEN     = bytes("Animals taken from enclosure:");
+    private static final byte[] DOCK      = bytes("Dock ");
+    private static final byte[] REJECTED  = bytes(" rejected ");
+    private static final byte[] BEFORE    = bytes("Before: ");
+    private static final byte[] AFTER     = bytes("After: ");
+    private static final byte[] ENCLOSURE = bytes("Animals in Enclosure: ");
+
+    /* Per-window columns, followed by one sold column per animal type. */
+    private static final int DELIVERED = 0;
+    private static final int REJECT    = 1;
+    private static final int TAKE      = 2;
+    private static final int BACKLOG   = 3; // Net change in the window.
+    private static final int AREA      = 4; // Sum of change * ticks left in the window.
+    private static final int LEVEL     = 5; // BACKLOG from STATUS lines.
+    private static final int LEVEL_AREA = 6; // AREA from STATUS lines.
+    private static final int SOLD      = 7;
+
+    private final Path path;
+    private final AnimalTypes types;
+    private final byte[][] typeNames;
+    private final int window;
+    private final int stride;
+    private final int parallelism;
+    private final int chunkSize;
+
+    /* Merged results. */
+    private long lines, skipped, bytes;
+    private int  chunks, windows, lastTick;
+    private long[] windowed;
+    private long[] stocked;
+    private long[] farmerStocked;
+    private Histogram waits;
+    private long unmatchedBuys;
+    private int  stillWaiting;
+    private long statusPairs;
+    private int  backlog; // LEVEL if there were STATUS pairs, else BACKLOG.
+
+    /* Pieces are chunkSize bytes, up to the next line end: CHUNK_SIZE
+     * outside tests. */
+    LogAnalyzer(Path path, AnimalTypes types, int window, int parallelism,
+                int chunkSize) {
+        if (window < 1 || parallelism < 1 || chunkSize < 1) {
+            throw new IllegalArgumentException(
+                "Window, parallelism and chunk size must be positive.");
+        }
+        this.path        = path;
+        this.types       = types;
+        this.window      = window;
+        this.parallelism = parallelism;
+        this.chunkSize   = chunkSize;
+        this.stride      = SOLD + types.count();
+        this.typeNames   = new byte[types.count()][];
+        for (int i = 0; i < this.typeNames.length; i++) {
+            this.typeNames[i] = bytes(types.name(i));
+        }
+    }
+
+    /* What one piece of the log adds up to. Only its own thread touches
+     * it until the merge. */
+    private class Part implements Callable<Part> {
+        final MappedByteBuffer data;
+        long lines, skipped;
+        int  windows, lastTick;
+        long[] windowed      = new long[64 * LogAnalyzer.this.stride];
+        long[] stocked       = new long[LogAnalyzer.this.types.count()];
+        long[] farmerStocked = new long[16];
+        final Histogram waits = new Histogram();
+
+        /* Spawn tick of buyer firstBuyer + i, or -1 once matched. Buyers
+         * are numbered as they spawn, so this stays dense. */
+        int   firstBuyer = -1;
+        int[] spawned    = new int[1024];
+        int   spawnedCount;
+        /* Buyer << 32 | tick, for lines this piece can't match itself:
+         * buys of buyers spawned in an earlier piece, and the odd spawn
+         * numbered below firstBuyer (wall-clock threads log out of order). */
+        long[] lateBuys    = new long[64];
+        int    lateBuyCount;
+        long[] earlySpawns = new long[16];
+        int    earlySpawnCount;
+
+        /* STATUS lines that open a pair, by thread name hash, with the
+         * enclosure count they show; removed once the pair closes. */
+        long[] openKeys   = new long[16];
+        long[] openLevels = new long[16];
+        int    openCount;
+        /* Name hash, and tick << 32 | count, of lines closing a pair that
+         * opened in an earlier piece. */
+        long[] lateKeys   = new long[16];
+        long[] lateCloses = new long[16];
+        int    lateCount;
+        long   statusPairs;
+
+        Part(MappedByteBuffer data) { this.data = data; }
+
+        public Part call() {
+            MappedByteBuffer d = this.data;
+            int end = d.limit();
+            int p = 0;
+            while (p < end) {
+                int e = p;
+                while (e < end && d.get(e) != '\n') e++;
+                int lineEnd = e > p && d.get(e - 1) == '\r' ? e - 1 : e;
+                if (lineEnd > p) this.line(p, lineEnd);
+                p = e + 1;
+            }
+            return this;
+        }
+
+        /* "[L][tick][thread] -> msg", end exclusive. */
+        private void line(int p, int e) {
+            MappedByteBuffer d = this.data;
+            this.lines++;
+            if (e - p < 12 || d.get(p) != '[' || d.get(p + 2) != ']'
+                    || d.get(p + 3) != '[') {
+                this.skipped++;
+                return;
+            }
+            int i = p + 4;
+            while (i < e && d.get(i) == ' ') i++;
+            int digits = i;
+            int tick = 0;
+            for (byte b; i < e && (b = d.get(i)) >= '0' && b <= '9'; i++) {
+                tick = tick * 10 + (b - '0');
+            }
+            if (i == digits || i + 1 >= e || d.get(i) != ']' || d.get(i + 1) != '[') {
+                this.skipped++;
+                return;
+            }
+            i += 2;
+            while (i < e && d.get(i) == ' ') i++;
+            int name = i;
+            while (i < e && d.get(i) != ']') i++;
+            int nameEnd = i;
+            if (!startsWith(d, i + 1, e, ARROW)) {
+                this.skipped++;
+                return;
+            }
+            this.message(tick, name, nameEnd, i + 1 + ARROW.length, e);
+        }
+
+        private void message(int tick, int name, int nameEnd, int m, int e) {
+            MappedByteBuffer d = this.data;
+            if (tick > this.lastTick) this.lastTick = tick;
+            if (startsWith(d, m, e, READY)) {
+                int buyer = number(d, name, nameEnd, BUYER);
+                if (buyer >= 0) this.spawn(buyer, tick);
+            } else if (endsWith(d, m, e, BOUGHT)) {
+                int type = LogAnalyzer.this.type(d, m, e - BOUGHT.length);
+                if (type >= 0) this.add(tick, SOLD + type, 1);
+                int buyer = number(d, name, nameEnd, BUYER);
+                if (buyer >= 0) this.buy(buyer, tick);
+            } else if (startsWith(d, m, e, PLACING) && endsWith(d, m, e, IN_FIELD)) {
+                int i = m + PLACING.length;
+                int animals = 0;
+                for (byte b; i < e && (b = d.get(i)) >= '0' && b <= '9'; i++) {
+                    animals = animals * 10 + (b - '0');
+                }
+                int type = LogAnalyzer.this.type(d, i + 1, e - IN_FIELD.length);
+                if (type >= 0) this.stocked[type] += animals;
+                int farmer = number(d, name, nameEnd, FARMER);
+                if (farmer >= 0) {
+                    if (farmer >= this.farmerStocked.length) {
+                        this.farmerStocked = Arrays.copyOf(this.farmerStocked,
+                            Math.max(farmer + 1, 2 * this.farmerStocked.length));
+                    }
+                    this.farmerStocked[farmer] += animals;
+                }
+            } else if (startsWith(d, m, e, GENERATED)) {
+                int animals = sumCounts(d, m + GENERATED.length, e);
+                this.add(tick, DELIVERED, animals);
+                this.backlog(tick, BACKLOG, animals);
+            } else if (startsWith(d, m, e, TAKEN)) {
+                int animals = sumCounts(d, m + TAKEN.length, e);
+                this.add(tick, TAKE, animals);
+                this.backlog(tick, BACKLOG, -animals);
+            } else if (startsWith(d, m, e, DOCK)) {
+                /* "Dock N rejected K animals." */
+                int i = m + DOCK.length;
+                while (i < e && d.get(i) >= '0' && d.get(i) <= '9') i++;
+                if (!startsWith(d, i, e, REJECTED)) return;
+                int animals = 0;
+                i += REJECTED.length;
+                for (byte b; i < e && (b = d.get(i)) >= '0' && b <= '9'; i++) {
+                    animals = animals * 10 + (b - '0');
+                }
+                this.add(tick, REJECT, animals);
+                this.backlog(tick, BACKLOG, -animals);
+            } else if (startsWith(d, m, e, BEFORE)) {
+                this.open(nameKey(d, name, nameEnd), sumCounts(d, m + BEFORE.length, e));
+            } else if (startsWith(d, m, e, AFTER)) {
+                this.close(tick, nameKey(d, name, nameEnd),
+                           sumCounts(d, m + AFTER.length, e));
+            } else if (startsWith(d, m, e, ENCLOSURE)) {
+                /* "{Cow=3, ..}" before a take, the count after it. */
+                int i = m + ENCLOSURE.length;
+                if (i < e && d.get(i) == '{') {
+                    this.open(nameKey(d, name, nameEnd), sumCounts(d, i, e));
+                    return;
+                }
+                int animals = 0;
+                for (byte b; i < e && (b = d.get(i)) >= '0' && b <= '9'; i++) {
+                    animals = animals * 10 + (b - '0');
+                }
+                this.close(tick, nameKey(d, name, nameEnd), animals);
+            }
+        }
+
+        /* Add change to column and its area to the column after it. */
+        private void backlog(int tick, int column, long change) {
+            int end = (tick / LogAnalyzer.this.window + 1) * LogAnalyzer.this.window;
+            this.add(tick, column, change);
+            this.add(tick, column + 1, change * (end - tick));
+        }
+
+        private void open(long key, int level) {
+            for (int i = 0; i < this.openCount; i++) {
+                if (this.openKeys[i] == key) {
+                    this.openLevels[i] = level;
+                    return;
+                }
+            }
+            this.openKeys   = append(this.openKeys, this.openCount, key);
+            this.openLevels = append(this.openLevels, this.openCount++, level);
+        }
+
+        private void close(int tick, long key, int level) {
+            for (int i = 0; i < this.openCount; i++) {
+                if (this.openKeys[i] != key) continue;
+                this.backlog(tick, LEVEL, level - this.openLevels[i]);
+                this.statusPairs++;
+                this.openCount--;
+                this.openKeys[i]   = this.openKeys[this.openCount];
+                this.openLevels[i] = this.openLevels[this.openCount];
+                return;
+            }
+            this.lateKeys   = append(this.lateKeys, this.lateCount, key);
+            this.lateCloses = append(this.lateCloses, this.lateCount++,
+                                     pack(tick, level));
+        }
+
+        private void spawn(int buyer, int tick) {
+            if (this.firstBuyer < 0) this.firstBuyer = buyer;
+            int i = buyer - this.firstBuyer;
+            if (i < 0) {
+                this.earlySpawns = append(this.earlySpawns, this.earlySpawnCount++,
+                                          pack(buyer, tick));
+                return;
+            }
+            if (i >= this.spawned.length) {
+                int size = this.spawned.length;
+                this.spawned = Arrays.copyOf(this.spawned, Math.max(i + 1, 2 * size));
+                Arrays.fill(this.spawned, size, this.spawned.length, -1);
+            }
+            if (i >= this.spawnedCount) {
+                Arrays.fill(this.spawned, this.spawnedCount, i, -1);
+                this.spawnedCount = i + 1;
+            }
+            this.spawned[i] = tick;
+        }
+
+        private void buy(int buyer, int tick) {
+            int i = buyer - this.firstBuyer;
+            if (this.firstBuyer >= 0 && i >= 0 && i < this.spawnedCount
+                    && this.spawned[i] >= 0) {
+                this.waits.record(tick - this.spawned[i]);
+                this.spawned[i] = -1;
+                return;
+            }
+            this.lateBuys = append(this.lateBuys, this.lateBuyCount++, pack(buyer, tick));
+        }
+
+        /* Add value to column of tick's window, growing the table if
+         * needed. */
+        private void add(int tick, int column, long value) {
+            int w = tick / LogAnalyzer.this.window;
+            if (w >= this.windows) {
+                int need = (w + 1) * LogAnalyzer.this.stride;
+                if (need > this.windowed.length) {
+                    this.windowed = Arrays.copyOf(this.windowed,
+                        Math.max(need, 2 * this.windowed.length));
+                }
+                this.windows = w + 1;
+            }
+            this.windowed[w * LogAnalyzer.this.stride + column] += value;
+        }
+    }
+
+    /* Map, parse and merge the whole file. */
+    public void run() throws IOException, InterruptedException {
+        List<Part> parts = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            this.bytes = size;
+            long start = 0;
+            while (start < size) {
+                long end = start + this.chunkSize >= size
+                         ? size : lineEnd(channel, start + this.chunkSize, size);
+                parts.add(new Part(channel.map(FileChannel.MapMode.READ_ONLY,
+                                               start, end - start)));
+                start = end;
+            }
+        }
+        this.chunks = parts.size();
+        ExecutorService pool = Executors.newFixedThreadPool(this.parallelism);
+        try {
+            for (Future<Part> f : pool.invokeAll(parts)) f.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Parsing " + this.path + " failed.",
+                                            e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        this.merge(parts);
+    }
+
+    /* Sum the parts in file order, and match the buyers and STATUS pairs
+     * they couldn't. */
+    private void merge(List<Part> parts) {
+        this.windowed      = new long[0];
+        this.stocked       = new long[this.types.count()];
+        this.farmerStocked = new long[0];
+        this.waits         = new Histogram();
+        HashMap<Integer, Integer> pending = new HashMap<>();
+        HashMap<Long, Long> open = new HashMap<>();
+        Part late = new Part(null); // Pairs matched here.
+        for (Part part : parts) {
+            this.lines   += part.lines;
+            this.skipped += part.skipped;
+            this.lastTick = Math.max(this.lastTick, part.lastTick);
+            this.windows  = Math.max(this.windows, part.windows);
+            this.windowed = addInto(this.windowed, part.windowed,
+                                    part.windows * this.stride);
+            this.stocked  = addInto(this.stocked, part.stocked, part.stocked.length);
+            this.farmerStocked = addInto(this.farmerStocked, part.farmerStocked,
+                                         part.farmerStocked.length);
+            this.waits.add(part.waits);
+            this.statusPairs += part.statusPairs;
+
+            for (int i = 0; i < part.spawnedCount; i++) {
+                if (part.spawned[i] < 0) continue;
+                pending.put(part.firstBuyer + i, part.spawned[i]);
+            }
+            for (int i = 0; i < part.earlySpawnCount; i++) {
+                long s = part.earlySpawns[i];
+                pending.put((int) (s >>> 32), (int) s);
+            }
+            for (int i = 0; i < part.lateBuyCount; i++) {
+                long b = part.lateBuys[i];
+                Integer spawnTick = pending.remove((int) (b >>> 32));
+                if (spawnTick == null) {
+                    this.unmatchedBuys++;
+                } else {
+                    this.waits.record((int) b - spawnTick);
+                }
+            }
+
+            for (int i = 0; i < part.lateCount; i++) {
+                long c = part.lateCloses[i];
+                Long level = open.remove(part.lateKeys[i]);
+                if (level == null) continue;
+                late.backlog((int) (c >>> 32), LEVEL, (int) c - level);
+                this.statusPairs++;
+            }
+            for (int i = 0; i < part.openCount; i++) {
+                open.put(part.openKeys[i], part.openLevels[i]);
+            }
+        }
+        this.windows  = Math.max(this.windows, late.windows);
+        this.windowed = addInto(this.windowed, late.windowed, late.windows * this.stride);
+        this.stillWaiting = pending.size();
+        this.backlog = this.statusPairs > 0 ? LEVEL : BACKLOG;
+    }
+
+    /* Totals, the way Metrics reports a run. */
+    public void report(double seconds) {
+        System.out.printf(Locale.ROOT,
+            "%s: %d lines (%d skipped) in %d chunks, %.1f MB in %.2f s (%.0f MB/s)%n",
+            this.path, this.lines, this.skipped, this.chunks, this.bytes / 1e6,
+            seconds, this.bytes / 1e6 / seconds);
+        System.out.printf("Ticks: 0..%d, %d windows of %d%n",
+                          this.lastTick, this.windows, this.window);
+        long sold = 0;
+        long delivered = 0;
+        long rejected = 0;
+        long taken = 0;
+        for (int w = 0; w < this.windows; w++) {
+            int row = w * this.stride;
+            delivered += this.windowed[row + DELIVERED];
+            rejected  += this.windowed[row + REJECT];
+            taken     += this.windowed[row + TAKE];
+        }
+        for (int t = 0; t < this.types.count(); t++) {
+            long typeSold = this.getSold(t);
+            sold += typeSold;
+            System.out.printf("%-10s sold %8d  stocked %8d%n", this.types.name(t),
+                              typeSold, this.stocked[t]);
+        }
+        System.out.printf("Total animals bought: %d%n", sold);
+        for (int f = 0; f < this.farmerStocked.length; f++) {
+            if (this.farmerStocked[f] == 0) continue;
+            System.out.printf("Farmer-%d stocked %d animals%n", f, this.farmerStocked[f]);
+        }
+        System.out.println("Buyer wait time: " + this.waits.summary());
+        if (this.stillWaiting > 0 || this.unmatchedBuys > 0) {
+            System.out.printf(
+                "%d buyers still waiting at the end, %d buys without a spawn%n",
+                this.stillWaiting, this.unmatchedBuys);
+        }
+        System.out.printf(Locale.ROOT,
+            "Enclosure: %d delivered, %d rejected, %d taken, mean backlog %.2f (%s)%n",
+            delivered, rejected, taken, this.getMeanBacklog(),
+            this.backlog == LEVEL ? "status lines" : "delivered less taken");
+    }
+
+    /* Animals of type id t sold. */
+    long getSold(int t) {
+        long sold = 0;
+        for (int w = 0; w < this.windows; w++) {
+            sold += this.windowed[w * this.stride + SOLD + t];
+        }
+        return sold;
+    }
+
+    long getStocked(int t)   { return this.stocked[t]; }
+    Histogram getWaits()     { return this.waits; }
+    int getStillWaiting()    { return this.stillWaiting; }
+    long getUnmatchedBuys()  { return this.unmatchedBuys; }
+    int getChunks()          { return this.chunks; }
+
+    /* Animals waiting in the enclosure, averaged over the log's ticks. */
+    double getMeanBacklog() {
+        long area = 0;
+        long level = 0;
+        for (int w = 0; w < this.windows; w++) {
+            area += this.windowArea(w, level);
+            level = this.windowEnd(w, level);
+        }
+        return (double) area / (this.lastTick + 1);
+    }
+
+    /* One row per window: sales per type, enclosure flow and backlog. */
+    public void writeCsv(Path out) throws IOException {
+        try (BufferedWriter w = Files.newBufferedWriter(out)) {
+            StringBuilder sb = new StringBuilder("start,end,sold");
+            for (int t = 0; t < this.types.count(); t++) {
+                sb.append(',').append(this.types.name(t)).append("_sold");
+            }
+            sb.append(",delivered,rejected,taken,backlog_mean,backlog_end");
+            w.write(sb.toString());
+            w.newLine();
+            long level = 0;
+            for (int win = 0; win < this.windows; win++) {
+                int row = win * this.stride;
+                int start = win * this.window;
+                long area = this.windowArea(win, level);
+                level = this.windowEnd(win, level);
+                long sold = 0;
+                for (int t = 0; t < this.types.count(); t++) {
+                    sold += this.windowed[row + SOLD + t];
+                }
+                sb.setLength(0);
+                sb.append(start).append(',').append(start + this.span(win))
+                  .append(',').append(sold);
+                for (int t = 0; t < this.types.count(); t++) {
+                    sb.append(',').append(this.windowed[row + SOLD + t]);
+                }
+                sb.append(',').append(this.windowed[row + DELIVERED])
+                  .append(',').append(this.windowed[row + REJECT])
+                  .append(',').append(this.windowed[row + TAKE])
+                  .append(',').append(String.format(Locale.ROOT, "%.3f",
+                                                    (double) area / this.span(win)))
+                  .append(',').append(level);
+                w.write(sb.toString());
+                w.newLine();
+            }
+        }
+    }
+
+    /* Ticks of window w that the log covers: all but the last are full. */
+    private int span(int w) {
+        return w < this.windows - 1 ? this.window
+                                    : this.lastTick + 1 - w * this.window;
+    }
+
+    /* Backlog area of window w, given the level it opened with. The parts
+     * weighted each change by the ticks to the window's end, so a short
+     * last window takes off what lies past the log's end. */
+    private long windowArea(int w, long level) {
+        int row = w * this.stride;
+        long end = level + this.windowed[row + this.backlog];
+        long area = level * this.window + this.windowed[row + this.backlog + 1]
+                  - end * (this.window - this.span(w));
+        return this.backlog == LEVEL ? area : Math.max(area, 0);
+    }
+
+    /* Backlog at the end of window w, given the level it opened with. */
+    private long windowEnd(int w, long level) {
+        long end = level + this.windowed[w * this.stride + this.backlog];
+        return this.backlog == LEVEL ? end : Math.max(end, 0);
+    }
+
+    /* Id of the type named by bytes from..to, -1 if none. */
+    private int type(MappedByteBuffer d, int from, int to) {
+        for (int t = 0; t < this.typeNames.length; t++) {
+            byte[] name = this.typeNames[t];
+            if (to - from == name.length && startsWith(d, from, to, name)) return t;
+        }
+        return -1;
+    }
+
+    /* Offset just past the first line end at or after from, or size. */
+    private static long lineEnd(FileChannel channel, long from, long size)
+            throws IOException {
+        ByteBuffer scan = ByteBuffer.allocate(SCAN_SIZE);
+        long position = from;
+        while (position < size) {
+            scan.clear();
+            int read = channel.read(scan, position);
+            if (read <= 0) break;
+            for (int i = 0; i < read; i++) {
+                if (scan.get(i) == '\n') return position + i + 1;
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private static boolean startsWith(MappedByteBuffer d, int from, int to,
+                                      byte[] prefix) {
+        if (to - from < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (d.get(from + i) != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private static boolean endsWith(MappedByteBuffer d, int from, int to,
+                                    byte[] suffix) {
+        return to - from >= suffix.length
+            && startsWith(d, to - suffix.length, to, suffix);
+    }
+
+    /* The number after prefix in a name like "Buyer-12", -1 if it isn't. */
+    private static int number(MappedByteBuffer d, int from, int to, byte[] prefix) {
+        if (!startsWith(d, from, to, prefix) || to - from == prefix.length) return -1;
+        int n = 0;
+        for (int i = from + prefix.length; i < to; i++) {
+            byte b = d.get(i);
+            if (b < '0' || b > '9') return -1;
+            n = n * 10 + (b - '0');
+        }
+        return n;
+    }
+
+    /* Sum of the counts in "{Cow=3, Pig=2}". */
+    private static int sumCounts(MappedByteBuffer d, int from, int to) {
+        int sum = 0;
+        for (int i = from; i < to; i++) {
+            if (d.get(i) != '=') continue;
+            int n = 0;
+            for (byte b; i + 1 < to && (b = d.get(i + 1)) >= '0' && b <= '9'; i++) {
+                n = n * 10 + (b - '0');
+            }
+            sum += n;
+        }
+        return sum;
+    }
+
+    /* FNV-1a hash of a thread name, to match a STATUS pair's two lines. */
+    private static long nameKey(MappedByteBuffer d, int from, int to) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = from; i < to; i++) hash = (hash ^ d.get(i)) * 0x100000001b3L;
+        return hash;
+    }
+
+    private static long pack(int buyer, int tick) {
+        return (long) buyer << 32 | (tick & 0xFFFFFFFFL);
+    }
+
+    private static long[] append(long[] array, int index, long value) {
+        if (index >= array.length) array = Arrays.copyOf(array, 2 * array.length);
+        array[index] = value;
+        return array;
+    }
+
+    /* into + the first n of from, grown to fit. */
+    private static long[] addInto(long[] into, long[] from, int n) {
+        if (into.length < n) into = Arrays.copyOf(into, n);
+        for (int i = 0; i < n; i++) into[i] += from[i];
+        return into;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 0) {
+            System.err.println("usage: LogAnalyzer <log> [--window=TICKS] [--csv=FILE]"
+                + " [--animal-types=FILE] [--parallelism=P]");
+            System.exit(1);
+        }
+        AnimalTypes types = new AnimalTypes(Simulation.ANIMAL_TYPES);
+        int window = Simulation.DAY_DURATION;
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        String csv = null;
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--window="))
+                window = Integer.parseInt(arg.substring("--window=".length()));
+            if (arg.startsWith("--csv="))
+                csv = arg.substring("--csv=".length());
+            if (arg.startsWith("--animal-types="))
+                types = AnimalTypes.load(
+                    Path.of(arg.substring("--animal-types=".length())));
+            if (arg.startsWith("--parallelism="))
+                parallelism = Integer.parseInt(arg.substring("--parallelism=".length()));
+        }
+        LogAnalyzer analyzer = new LogAnalyzer(Path.of(args[0]), types, window,
+                                               parallelism, CHUNK_SIZE);
+        long start = System.nanoTime();
+        analyzer.run();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        analyzer.report(seconds);
+        if (csv != null) analyzer.writeCsv(Path.of(csv));
+    }
+}
@@ -1,91 +1,248 @@
-import java.lang.StackTraceElement;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
 
+/* Asynchronous logger.
+ * Callers format their record (tick and actor name are taken at call time)
+ * and append it to a lock-free ring buffer. A single writer thread drains the
+ * ring into a buffered channel, so no actor ever blocks on output or on a
+ * shared lock. Records below the configured level are dropped before any
+ * formatting happens, and the Supplier overloads let callers skip building
+ * the message too. */
 public class Logger {
     private static final Boolean VERBOSE = false;
     private static final String FORMAT  = "[%s][%4d][%10s|%2d][%10s][%-12s] -> %s%n";
     private static final String FORMAT2 = "[%s][%4d][%10s] -> %s%n";
 
-    public static synchronized void log(String msg){
-        StackTraceElement ste = Thread.currentThread().getStackTrace()[2];
-        if (VERBOSE) {
-            System.out.printf(FORMAT,
-                            'L',
-                            Simulation.getInstance().getTickCount(),
-                            Thread.currentThread().getName(),
-                            Thread.currentThread().threadId(),
-                            ste.getClassName(),
-                            ste.getMethodName(),
-                            msg);
-        } else {
-            System.out.printf(FORMAT2,
-                            'L',
-                            Simulation.getInstance().getTickCount(),
-                            Thread.currentThread().getName(),
-                            msg);
+    /* Lowest to highest. Only records at or above the configured level are
+     * written. */
+    public enum Level {
+        DEBUG('D'), STATUS('S'), LOG('L'), ERROR('E');
+
+        final char tag;
 
+        Level(char tag) { this.tag = tag; }
+    }
+
+    private static final int RING_SIZE   = 1 << 14; // Power of two.
+    private static final int RING_MASK   = RING_SIZE - 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int SPINS_BEFORE_YIELD = 64;
+
+    /* Bounded multi-producer ring. sequence[i] tells who may use slot i next:
+     * a producer holding position p waits for sequence == p, the writer
+     * waits for sequence == p + 1. */
+    private static final String[]        ring     = new String[RING_SIZE];
+    private static final AtomicLongArray sequence = new AtomicLongArray(RING_SIZE);
+    private static final AtomicLong      head     = new AtomicLong(0);
+    private static long tail = 0; // Only touched by the writer thread.
+
+    private static volatile Level level = Level.STATUS;
+    private static volatile Boolean closed = false;
+    /* The writer found the ring empty and is parked, or about to be; the
+     * next record published wakes it. */
+    private static volatile Boolean sleeping = false;
+    private static volatile WritableByteChannel channel;
+    private static ByteBuffer buffer;
+    private static Thread writer;
+
+    static {
+        for (int i = 0; i < RING_SIZE; i++) {
+            sequence.set(i, i);
         }
+        channel = Channels.newChannel(new FileOutputStream(FileDescriptor.out));
+        buffer  = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        writer  = Thread.ofPlatform()
+                        .name("Logger")
+                        .daemon(true)
+                        .start(Logger::drain);
     }
 
-    public static synchronized void status(String msg) {
-        StackTraceElement ste = Thread.currentThread().getStackTrace()[2];
-        if (VERBOSE) {
-            System.out.printf(FORMAT,
-                            'S',
-                            Simulation.getInstance().getTickCount(),
-                            Thread.currentThread().getName(),
-                            Thread.currentThread().threadId(),
-                            ste.getClassName(),
-                            ste.getMethodName(),
-                            msg);
-        } else {
-            System.out.printf(FORMAT2,
-                            'S',
-                            Simulation.getInstance().getTickCount(),
-                            Thread.currentThread().getName(),
-                            msg);
+    public static void setLevel(Level l) { level = l; }
+    public static Level getLevel() { return level; }
+
+    public static Boolean isEnabled(Level l) {
+        return l.ordinal() >= level.ordinal();
+    }
 
+    /* Send output to a file instead of stdout; gzip it if the name ends
+     * in .gz. Must be called before anything is logged. */
+    public static void open(String path) throws IOException {
+        if (path.endsWith(".gz")) {
+            channel = Channels.newChannel(
+                new GZIPOutputStream(new FileOutputStream(path), BUFFER_SIZE));
+        } else {
+            channel = FileChannel.open(Path.of(path),
+                                       StandardOpenOption.CREATE,
+                                       StandardOpenOption.WRITE,
+                                       StandardOpenOption.TRUNCATE_EXISTING);
         }
     }
 
-    public static synchronized void error(String msg) {
-        StackTraceElement ste = Thread.currentThread().getStackTrace()[2];
+    public static void log(String msg)    { append(Level.LOG, msg); }
+    public static void status(String msg) { append(Level.STATUS, msg); }
+    public static void error(String msg)  { append(Level.ERROR, msg); }
+    public static void debug(String msg)  { append(Level.DEBUG, msg); }
+
+    public static void log(Supplier<String> msg) {
+        if (isEnabled(Level.LOG)) append(Level.LOG, msg.get());
+    }
+    public static void status(Supplier<String> msg) {
+        if (isEnabled(Level.STATUS)) append(Level.STATUS, msg.get());
+    }
+    public static void error(Supplier<String> msg) {
+        if (isEnabled(Level.ERROR)) append(Level.ERROR, msg.get());
+    }
+    public static void debug(Supplier<String> msg) {
+        if (isEnabled(Level.DEBUG)) append(Level.DEBUG, msg.get());
+    }
+
+    private static void append(Level l, String msg) {
+        if (!isEnabled(l) || closed) return;
+        /* Outside of a simulation (e.g. a batch summary) there is no clock
+         * or actor to report. */
+        Simulation sim = Simulation.current();
+        int tick = sim == null ? 0 : sim.getTickCount();
+        String name = sim == null ? Thread.currentThread().getName()
+                                  : sim.getActorName();
+        String record;
         if (VERBOSE) {
-            System.out.printf(FORMAT,
-                            'E',
-                            Simulation.getInstance().getTickCount(),
-                            Thread.currentThread().getName(),
+            // Only walk the stack when we are going to print it.
+            StackWalker.StackFrame frame = StackWalker.getInstance()
+                .walk(s -> s.dropWhile(f -> f.getClassName().equals("Logger"))
+                            .findFirst()
+                            .orElse(null));
+            record = String.format(FORMAT,
+                            l.tag,
+                            tick,
+                            name,
                             Thread.currentThread().threadId(),
-                            ste.getClassName(),
-                            ste.getMethodName(),
+                            frame == null ? "" : frame.getClassName(),
+                            frame == null ? "" : frame.getMethodName(),
                             msg);
         } else {
-            System.out.printf(FORMAT2,
-                            'E',
-                            Simulation.getInstance().getTickCount(),
-                            Thread.currentThread().getName(),
-                            msg);
+            record = format(l.tag, tick, name, msg);
+        }
+        publish(record);
+    }
+
+    /* Same layout as FORMAT2, without going through Formatter. */
+    private static String format(char tag, int tick, String name, String msg) {
+        StringBuilder sb = new StringBuilder(24 + name.length() + msg.length());
+        sb.append('[').append(tag).append("][");
+        pad(sb, Integer.toString(tick), 4);
+        sb.append("][");
+        pad(sb, name, 10);
+        sb.append("] -> ").append(msg).append('\n');
+        return sb.toString();
+    }
 
+    private static void pad(StringBuilder sb, String s, int width) {
+        for (int i = s.length(); i < width; i++) sb.append(' ');
+        sb.append(s);
+    }
+
+    private static void publish(String record) {
+        long position = head.getAndIncrement();
+        int slot = (int) (position & RING_MASK);
+        int spins = 0;
+        // Ring is full: wait for the writer to free our slot.
+        while (sequence.get(slot) != position) {
+            if (++spins < SPINS_BEFORE_YIELD) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
         }
+        ring[slot] = record;
+        sequence.set(slot, position + 1);
+        /* The writer sets sleeping before its last look at the ring, we
+         * read it after publishing, so one of us sees the other. */
+        if (sleeping) LockSupport.unpark(writer);
     }
 
-    public static synchronized void debug(String msg) {
-        StackTraceElement ste = Thread.currentThread().getStackTrace()[2];
-        if (VERBOSE) {
-            System.out.printf(FORMAT,
-                            'D',
-                            Simulation.getInstance().getTickCount(),
-                            Thread.currentThread().getName(),
-                            Thread.currentThread().threadId(),
-                            ste.getClassName(),
-                            ste.getMethodName(),
-                            msg);
-        } else {
-            System.out.printf(FORMAT2,
-                            'D',
-                            Simulation.getInstance().getTickCount(),
-                            Thread.currentThread().getName(),
-                            msg);
+    /* Writer thread: move records from the ring to the channel, flushing
+     * whenever the ring runs dry and then parking until a record is
+     * published. Closes the channel once close() was called and every
+     * claimed slot has been written. */
+    private static void drain() {
+        while (true) {
+            long position = tail;
+            int slot = (int) (position & RING_MASK);
+            if (sequence.get(slot) == position + 1) {
+                String record = ring[slot];
+                ring[slot] = null;
+                sequence.set(slot, position + RING_SIZE);
+                tail = position + 1;
+                write(record);
+            } else {
+                flush();
+                if (closed && position == head.get()) break;
+                sleeping = true;
+                if (sequence.get(slot) != position + 1 && !closed) {
+                    LockSupport.park();
+                }
+                sleeping = false;
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Logger: " + e);
+        }
+    }
+
+    private static void write(String record) {
+        int length = record.length();
+        if (buffer.remaining() < length * 3) flush();
+        if (length * 3 > buffer.capacity()) {
+            writeFully(ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8)));
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = record.charAt(i);
+            if (c >= 0x80) {
+                // Rare: let the encoder deal with anything non-ASCII.
+                buffer.put(record.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buffer.put((byte) c);
+        }
+    }
+
+    private static void flush() {
+        if (buffer.position() == 0) return;
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
 
+    private static void writeFully(ByteBuffer b) {
+        try {
+            while (b.hasRemaining()) channel.write(b);
+        } catch (IOException e) {
+            System.err.println("Logger: " + e);
+            b.position(b.limit());
         }
     }
+
+    /* Wait until everything logged so far has been written, then flush and
+     * close the output. Records logged afterwards are dropped. */
+    public static void close() throws InterruptedException {
+        closed = true;
+        LockSupport.unpark(writer);
+        writer.join();
+    }
 }
@@ -0,0 +1,76 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* The messages for one owner (a Field or a dock), run one at a time in the
+ * order they were posted, on a pool shared by every owner. Only the message
+ * being run touches the owner's state, so it needs no lock of its own, and
+ * a thousand owners still need only as many threads as the pool has.
+ *
+ * At most one drain per mailbox is ever queued on the pool. Posting and
+ * draining hand over through the queue and the scheduled flag, so each
+ * message sees everything the ones before it wrote, whichever pool thread
+ * ran them. */
+public class Mailbox {
+    private final static int
+        BATCH = 64; // Messages per turn on the pool, so others get a go.
+
+    private final ExecutorService pool;
+    private final ConcurrentLinkedQueue<Runnable> messages;
+    private final AtomicBoolean scheduled;
+    private final Runnable drain;
+
+    Mailbox(ExecutorService pool) {
+        this.pool      = pool;
+        this.messages  = new ConcurrentLinkedQueue<>();
+        this.scheduled = new AtomicBoolean(false);
+        this.drain     = this::drain;
+    }
+
+    /* A fixed pool of daemon threads, all started now so they belong to
+     * the simulation on the calling thread. */
+    static ExecutorService pool(int threads) {
+        AtomicInteger number = new AtomicInteger(0);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            threads, threads, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(),
+            r -> {
+                Thread t = new Thread(r, "Mailbox-" + number.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        pool.prestartAllCoreThreads();
+        return pool;
+    }
+
+    /* Run message after every message posted before it. Never blocks. */
+    public void post(Runnable message) {
+        this.messages.add(message);
+        if (this.scheduled.compareAndSet(false, true)) {
+            this.pool.execute(this.drain);
+        }
+    }
+
+    public Boolean isEmpty() { return this.messages.isEmpty(); }
+
+    private void drain() {
+        for (int i = 0; i < BATCH; i++) {
+            Runnable message = this.messages.poll();
+            if (message == null) break;
+            try {
+                message.run();
+            } catch (RuntimeException e) {
+                Logger.error("Mailbox message failed: " + e);
+            }
+        }
+        this.scheduled.set(false);
+        /* Something posted after the last poll found scheduled still set. */
+        if (!this.messages.isEmpty() && this.scheduled.compareAndSet(false, true)) {
+            this.pool.execute(this.drain);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/* Simulation metrics, safe to update from any actor thread.
+ * Counters are LongAdders and wait/spawn times go into Histograms, indexed
+ * by animal type id. Levels (TimeWeighted) and rates (WindowCounter) are
+ * CAS loops on one word, so the record path takes no lock and boxes
+ * nothing. */
+public class Metrics {
+    /* Ticks per window for the rolling sold and stocked rates. */
+    public static final int RATE_WINDOW = 100;
+
+    private final AnimalTypes types;
+
+    private final LongAdder   buyersSpawned;
+    private final LongAdder   deliveriesSpawned;
+    private final LongAdder[] bought;
+    private final LongAdder[] delivered;
+    private final Histogram[] buyerWait;
+    private final Histogram   deliveryWait;
+    /* Ticks from a full dock first turning a delivery back to it being
+     * done with, for the deliveries that were turned back. */
+    private final Histogram   deliveryBlocked;
+    private final Histogram   buyerSpawnInterval;
+    private final Histogram   deliverySpawnInterval;
+    private final LongAdder   stocked;
+    private final LongAdder   farmerWalkTicks;
+    /* Animals delivered but not yet in a field. By Little's law the mean
+     * delivery-to-field latency is its area divided by the animals that
+     * made it to a field. */
+    private final TimeWeighted inTransit;
+    private final TimeWeighted[] fieldLevel; // Animals in each field.
+    private final WindowCounter soldRate;
+    private final WindowCounter stockedRate;
+
+    /* Per enclosure dock. */
+    private final LongAdder[]    dockDeliveries;
+    private final LongAdder[]    dockAnimalsIn;
+    private final LongAdder[]    dockAnimalsOut;
+    private final LongAdder[]    dockTurnedAway;
+    private final LongAdder[]    dockRejected;
+    private final Histogram[]    dockDeliveryWait;
+    private final Histogram[]    dockBlocked;
+    private final TimeWeighted[] dockBacklog;
+
+    Metrics(AnimalTypes types, int docks) {
+        this.types                 = types;
+        this.buyersSpawned         = new LongAdder();
+        this.deliveriesSpawned     = new LongAdder();
+        this.bought                = new LongAdder[types.count()];
+        this.delivered             = new LongAdder[types.count()];
+        this.buyerWait             = new Histogram[types.count()];
+        this.deliveryWait          = new Histogram();
+        this.deliveryBlocked       = new Histogram();
+        this.buyerSpawnInterval    = new Histogram();
+        this.deliverySpawnInterval = new Histogram();
+        this.stocked               = new LongAdder();
+        this.farmerWalkTicks       = new LongAdder();
+        this.inTransit             = new TimeWeighted();
+        this.fieldLevel            = new TimeWeighted[types.count()];
+        this.soldRate              = new WindowCounter(RATE_WINDOW);
+        this.stockedRate           = new WindowCounter(RATE_WINDOW);
+        for (int i = 0; i < types.count(); i++) {
+            this.bought[i]    = new LongAdder();
+            this.delivered[i] = new LongAdder();
+            this.buyerWait[i] = new Histogram();
+            this.fieldLevel[i] = new TimeWeighted();
+        }
+        this.dockDeliveries   = new LongAdder[docks];
+        this.dockAnimalsIn    = new LongAdder[docks];
+        this.dockAnimalsOut   = new LongAdder[docks];
+        this.dockTurnedAway   = new LongAdder[docks];
+        this.dockRejected     = new LongAdder[docks];
+        this.dockDeliveryWait = new Histogram[docks];
+        this.dockBlocked      = new Histogram[docks];
+        this.dockBacklog      = new TimeWeighted[docks];
+        for (int i = 0; i < docks; i++) {
+            this.dockDeliveries[i]   = new LongAdder();
+            this.dockAnimalsIn[i]    = new LongAdder();
+            this.dockAnimalsOut[i]   = new LongAdder();
+            this.dockTurnedAway[i]   = new LongAdder();
+            this.dockRejected[i]     = new LongAdder();
+            this.dockDeliveryWait[i] = new Histogram();
+            this.dockBlocked[i]      = new Histogram();
+            this.dockBacklog[i]      = new TimeWeighted();
+        }
+    }
+
+    /* Interval is the ticks since the previous spawn, -1 for the first. */
+    public void recordBuyerSpawn(int interval) {
+        this.buyersSpawned.increment();
+        if (interval >= 0) this.buyerSpawnInterval.record(interval);
+    }
+
+    public void recordDeliverySpawn(int interval) {
+        this.deliveriesSpawned.increment();
+        if (interval >= 0) this.deliverySpawnInterval.record(interval);
+    }
+
+    /* A field starts out with animals in it. */
+    public void recordFieldOpened(int type, int animals) {
+        this.fieldLevel[type].add(animals, 0);
+    }
+
+    public void recordBuy(int type, int waitTicks, int tick) {
+        this.bought[type].increment();
+        this.fieldLevel[type].add(-1, tick);
+        this.buyerWait[type].record(waitTicks);
+        this.soldRate.add(1, tick);
+    }
+
+    public void recordDelivered(int dock, int type, int animals, int tick) {
+        this.delivered[type].add(animals);
+        this.dockAnimalsIn[dock].add(animals);
+        this.dockBacklog[dock].add(animals, tick);
+        this.inTransit.add(animals, tick);
+    }
+
+    public void recordTaken(int dock, int animals, int tick) {
+        this.dockAnimalsOut[dock].add(animals);
+        this.dockBacklog[dock].add(-animals, tick);
+    }
+
+    public void recordStocked(int type, int animals, int tick) {
+        this.stocked.add(animals);
+        this.fieldLevel[type].add(animals, tick);
+        this.inTransit.add(-animals, tick);
+        this.stockedRate.add(animals, tick);
+    }
+
+    /* A farmer set off on a walk of ticks, to a field or back. */
+    public void recordWalk(int ticks) {
+        this.farmerWalkTicks.add(ticks);
+    }
+
+    /* Sum over the docks of animals waiting * ticks, up to tick. */
+    public long getBacklogArea(int tick) {
+        long area = 0;
+        for (TimeWeighted backlog : this.dockBacklog) area += backlog.getArea(tick);
+        return area;
+    }
+
+    /* Animals in the field * ticks, up to tick. */
+    public long getFieldArea(int type, int tick) {
+        return this.fieldLevel[type].getArea(tick);
+    }
+
+    /* Ticks farmers spent walking per animal they placed in a field. */
+    public double getWalkTicksPerStocked() {
+        long n = this.stocked.sum();
+        return n == 0 ? 0.0 : (double) this.farmerWalkTicks.sum() / n;
+    }
+
+    /* Mean ticks from an animal landing in the Enclosure to it being
+     * placed in its field, up to tick. */
+    public double getDeliveryToFieldLatency(int tick) {
+        long n = this.stocked.sum();
+        return n == 0 ? 0.0 : (double) this.inTransit.getArea(tick) / n;
+    }
+
+    public void recordDeliveryWait(int dock, int waitTicks) {
+        this.deliveryWait.record(waitTicks);
+        this.dockDeliveries[dock].increment();
+        this.dockDeliveryWait[dock].record(waitTicks);
+    }
+
+    /* A delivery a full dock turned back is done, blockedTicks after it
+     * was first turned back. */
+    public void recordBlocked(int dock, int blockedTicks) {
+        this.deliveryBlocked.record(blockedTicks);
+        this.dockBlocked[dock].record(blockedTicks);
+    }
+
+    /* A full dock turned animals away for good. */
+    public void recordRejected(int dock, int animals) {
+        this.dockRejected[dock].add(animals);
+    }
+
+    /* A farmer found the dock's farmerLock taken. */
+    public void recordTurnedAway(int dock) {
+        this.dockTurnedAway[dock].increment();
+    }
+
+    public long getBought(int type)    { return this.bought[type].sum(); }
+    public long getDelivered(int type) { return this.delivered[type].sum(); }
+    public Histogram getBuyerWait(int type) { return this.buyerWait[type]; }
+    public Histogram getDeliveryWait() { return this.deliveryWait; }
+    public Histogram getDeliveryBlocked() { return this.deliveryBlocked; }
+    public long getTotalRejected() { return total(this.dockRejected); }
+
+    public long getBuyersSpawned()  { return this.buyersSpawned.sum(); }
+    public long getTotalBought()    { return total(this.bought); }
+    public long getTotalDelivered() { return total(this.delivered); }
+    public long getTotalStocked()   { return this.stocked.sum(); }
+
+    /* Animals sold or stocked in the last complete RATE_WINDOW before
+     * tick. */
+    public long getSoldRate(int tick)    { return this.soldRate.getLast(tick); }
+    public long getStockedRate(int tick) { return this.stockedRate.getLast(tick); }
+
+    /* All buyer waits merged into one histogram. */
+    public Histogram getBuyerWait() {
+        Histogram all = new Histogram();
+        for (Histogram h : this.buyerWait) all.add(h);
+        return all;
+    }
+
+    /* Everything recorded so far, for a checkpoint. */
+    void save(Snapshot.Writer out) {
+        out.putLong(this.buyersSpawned.sum());
+        out.putLong(this.deliveriesSpawned.sum());
+        for (LongAdder c : this.bought)    out.putLong(c.sum());
+        for (LongAdder c : this.delivered) out.putLong(c.sum());
+        for (Histogram h : this.buyerWait) h.save(out);
+        this.deliveryWait.save(out);
+        this.deliveryBlocked.save(out);
+        this.buyerSpawnInterval.save(out);
+        this.deliverySpawnInterval.save(out);
+        out.putLong(this.stocked.sum());
+        out.putLong(this.farmerWalkTicks.sum());
+        this.inTransit.save(out);
+        for (TimeWeighted level : this.fieldLevel) level.save(out);
+        this.soldRate.save(out);
+        this.stockedRate.save(out);
+        for (int i = 0; i < this.dockBacklog.length; i++) {
+            out.putLong(this.dockDeliveries[i].sum());
+            out.putLong(this.dockAnimalsIn[i].sum());
+            out.putLong(this.dockAnimalsOut[i].sum());
+            out.putLong(this.dockTurnedAway[i].sum());
+            out.putLong(this.dockRejected[i].sum());
+            this.dockDeliveryWait[i].save(out);
+            this.dockBlocked[i].save(out);
+            this.dockBacklog[i].save(out);
+        }
+    }
+
+    /* Into fresh Metrics with the same types and docks. */
+    void restore(Snapshot.Reader in) {
+        this.buyersSpawned.add(in.getLong());
+        this.deliveriesSpawned.add(in.getLong());
+        for (LongAdder c : this.bought)    c.add(in.getLong());
+        for (LongAdder c : this.delivered) c.add(in.getLong());
+        for (Histogram h : this.buyerWait) h.restore(in);
+        this.deliveryWait.restore(in);
+        this.deliveryBlocked.restore(in);
+        this.buyerSpawnInterval.restore(in);
+        this.deliverySpawnInterval.restore(in);
+        this.stocked.add(in.getLong());
+        this.farmerWalkTicks.add(in.getLong());
+        this.inTransit.restore(in);
+        for (TimeWeighted level : this.fieldLevel) level.restore(in);
+        this.soldRate.restore(in);
+        this.stockedRate.restore(in);
+        for (int i = 0; i < this.dockBacklog.length; i++) {
+            this.dockDeliveries[i].add(in.getLong());
+            this.dockAnimalsIn[i].add(in.getLong());
+            this.dockAnimalsOut[i].add(in.getLong());
+            this.dockTurnedAway[i].add(in.getLong());
+            this.dockRejected[i].add(in.getLong());
+            this.dockDeliveryWait[i].restore(in);
+            this.dockBlocked[i].restore(in);
+            this.dockBacklog[i].restore(in);
+        }
+    }
+
+    /* Everything recorded, with time averages taken up to endTick. */
+    public void report(int endTick) {
+        Logger.log("Deliveries spawned: " + this.deliveriesSpawned.sum());
+        Logger.log(String.format("Average time for Delivery spawn: %.2f",
+            this.deliverySpawnInterval.getMean()));
+        Logger.log("Delivery wait time: " + this.deliveryWait.summary());
+        Logger.log("Total animals delivered: " + this.getTotalDelivered());
+        Logger.log("Enclosure metrics: " + this.perType(this.delivered));
+        Logger.log("Total animals stocked: " + this.stocked.sum());
+        Logger.log(String.format("Average delivery-to-field latency: %.2f",
+            this.getDeliveryToFieldLatency(endTick)));
+        Logger.log(String.format(
+            "Farmer walk ticks: %d, per animal stocked: %.2f",
+            this.farmerWalkTicks.sum(), this.getWalkTicksPerStocked()));
+        for (int i = 0; i < this.dockBacklog.length; i++) {
+            this.reportDock(i, endTick);
+        }
+        Logger.log("Buyers spawned: " + this.buyersSpawned.sum());
+        Logger.log(String.format("Average time for Buyer spawn: %.2f",
+            this.buyerSpawnInterval.getMean()));
+        Logger.log("Buyer wait time: " + this.getBuyerWait().summary());
+        for (int i = 0; i < this.types.count(); i++) {
+            Logger.log("  " + this.types.name(i) + " wait time: "
+                + this.buyerWait[i].summary());
+        }
+        Logger.log("Total animals bought: " + this.getTotalBought());
+        Logger.log("Animals bought: " + this.perType(this.bought));
+    }
+
+    /* Utilization is the share of time the dock had animals waiting. */
+    private void reportDock(int dock, int endTick) {
+        double ticks = Math.max(1, endTick);
+        Logger.log(String.format(
+            "Dock %d: deliveries=%d in=%d out=%d utilization=%.1f%%"
+            + " mean backlog=%.2f farmers turned away=%d",
+            dock,
+            this.dockDeliveries[dock].sum(),
+            this.dockAnimalsIn[dock].sum(),
+            this.dockAnimalsOut[dock].sum(),
+            100.0 * this.dockBacklog[dock].getBusyTicks(endTick) / ticks,
+            this.dockBacklog[dock].getArea(endTick) / ticks,
+            this.dockTurnedAway[dock].sum()));
+        Logger.log("Dock " + dock + " delivery wait time: "
+            + this.dockDeliveryWait[dock].summary());
+        /* Only a dock with a capacity ever turns a delivery back. */
+        if (this.dockBlocked[dock].getCount() > 0 || this.dockRejected[dock].sum() > 0) {
+            Logger.log("Dock " + dock + " full: animals rejected="
+                + this.dockRejected[dock].sum() + ", deliveries held back: "
+                + this.dockBlocked[dock].summary());
+        }
+    }
+
+    private String perType(LongAdder[] counters) {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < this.types.count(); i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(this.types.name(i)).append('=').append(counters[i].sum());
+        }
+        return sb.append('}').toString();
+    }
+
+    private static long total(LongAdder[] counters) {
+        long sum = 0;
+        for (LongAdder c : counters) sum += c.sum();
+        return sum;
+    }
+}
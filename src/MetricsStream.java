@@ -0,0 +1,171 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/* Metrics rolled up per window of ticks and written out as each window
+ * closes, one row per window: CSV with a header, or JSON Lines if the file
+ * name ends in .jsonl or .json. A row has the window's bounds, buyers
+ * spawned, animals sold, delivered, rejected by full docks and stocked, the
+ * mean enclosure backlog (all docks), and per animal type the sales, buyer
+ * wait percentiles and occupancy (mean share of the field's capacity in
+ * use).
+ *
+ * Metrics only keeps running totals, so a window is the difference between
+ * the totals now and a copy taken when it opened. Memory stays the same
+ * however long the run is. Only the thread that drives the clock calls
+ * roll(). */
+public class MetricsStream {
+    private final Simulation sim;
+    private final BufferedWriter out;
+    private final Boolean json;
+    private final int window;
+    private Boolean failed;
+
+    /* Totals when the current window opened. */
+    private int  start;
+    private long buyers, sold, delivered, rejected, stocked, backlogArea;
+    private long[] typeSold;
+    private long[] fieldArea;
+    private Histogram[] waits;
+
+    private MetricsStream(Simulation sim, Path path, int window)
+            throws IOException {
+        String name = path.getFileName().toString();
+        this.sim    = sim;
+        this.out    = Files.newBufferedWriter(path);
+        this.json   = name.endsWith(".jsonl") || name.endsWith(".json");
+        this.window = window;
+        this.failed = false;
+        int types = sim.types.count();
+        this.typeSold  = new long[types];
+        this.fieldArea = new long[types];
+        this.waits     = new Histogram[types];
+    }
+
+    /* Open path and start the first window at the current tick. */
+    static MetricsStream open(Simulation sim, Path path, int window)
+            throws IOException {
+        if (window < 1) {
+            throw new IllegalArgumentException("Metrics window must be positive.");
+        }
+        MetricsStream stream = new MetricsStream(sim, path, window);
+        if (!stream.json) stream.writeHeader();
+        stream.mark(sim.getTickCount());
+        return stream;
+    }
+
+    public int getWindow() { return this.window; }
+
+    /* Close the window at tick and open the next one. */
+    public void roll(int tick) {
+        if (tick <= this.start || this.failed) return;
+        Metrics m = this.sim.metrics;
+        int ticks = tick - this.start;
+        AnimalTypes types = this.sim.types;
+        StringBuilder sb = new StringBuilder(256);
+        double backlog = (double) (m.getBacklogArea(tick) - this.backlogArea) / ticks;
+        if (this.json) {
+            sb.append("{\"start\":").append(this.start)
+              .append(",\"end\":").append(tick)
+              .append(",\"buyers\":").append(m.getBuyersSpawned() - this.buyers)
+              .append(",\"sold\":").append(m.getTotalBought() - this.sold)
+              .append(",\"delivered\":").append(m.getTotalDelivered() - this.delivered)
+              .append(",\"rejected\":").append(m.getTotalRejected() - this.rejected)
+              .append(",\"stocked\":").append(m.getTotalStocked() - this.stocked)
+              .append(",\"backlog\":").append(format(backlog))
+              .append(",\"types\":{");
+        } else {
+            sb.append(this.start).append(',').append(tick)
+              .append(',').append(m.getBuyersSpawned() - this.buyers)
+              .append(',').append(m.getTotalBought() - this.sold)
+              .append(',').append(m.getTotalDelivered() - this.delivered)
+              .append(',').append(m.getTotalRejected() - this.rejected)
+              .append(',').append(m.getTotalStocked() - this.stocked)
+              .append(',').append(format(backlog));
+        }
+        for (int i = 0; i < types.count(); i++) {
+            Histogram wait = m.getBuyerWait(i).since(this.waits[i]);
+            double occupancy = (double) (m.getFieldArea(i, tick) - this.fieldArea[i])
+                / ticks / this.sim.getField(i).getCapacity();
+            long typeSold = m.getBought(i) - this.typeSold[i];
+            if (this.json) {
+                if (i > 0) sb.append(',');
+                sb.append('"').append(types.name(i)).append("\":{")
+                  .append("\"sold\":").append(typeSold)
+                  .append(",\"wait_p50\":").append(wait.getPercentile(0.50))
+                  .append(",\"wait_p90\":").append(wait.getPercentile(0.90))
+                  .append(",\"wait_p99\":").append(wait.getPercentile(0.99))
+                  .append(",\"wait_max\":").append(wait.getMax())
+                  .append(",\"occupancy\":").append(format(occupancy))
+                  .append('}');
+            } else {
+                sb.append(',').append(typeSold)
+                  .append(',').append(wait.getPercentile(0.50))
+                  .append(',').append(wait.getPercentile(0.90))
+                  .append(',').append(wait.getPercentile(0.99))
+                  .append(',').append(wait.getMax())
+                  .append(',').append(format(occupancy));
+            }
+        }
+        if (this.json) sb.append("}}");
+        this.write(sb.toString());
+        this.mark(tick);
+    }
+
+    public void close() {
+        try {
+            this.out.close();
+        } catch (IOException e) {
+            Logger.error("Metrics close failed: " + e);
+        }
+    }
+
+    private void writeHeader() {
+        StringBuilder sb = new StringBuilder(
+            "start,end,buyers,sold,delivered,rejected,stocked,backlog");
+        for (int i = 0; i < this.sim.types.count(); i++) {
+            String type = this.sim.types.name(i);
+            sb.append(',').append(type).append("_sold")
+              .append(',').append(type).append("_wait_p50")
+              .append(',').append(type).append("_wait_p90")
+              .append(',').append(type).append("_wait_p99")
+              .append(',').append(type).append("_wait_max")
+              .append(',').append(type).append("_occupancy");
+        }
+        this.write(sb.toString());
+    }
+
+    /* One line, flushed so the file can be followed while the run goes. */
+    private void write(String line) {
+        try {
+            this.out.write(line);
+            this.out.newLine();
+            this.out.flush();
+        } catch (IOException e) {
+            Logger.error("Metrics write failed: " + e);
+            this.failed = true;
+        }
+    }
+
+    private void mark(int tick) {
+        Metrics m = this.sim.metrics;
+        this.start       = tick;
+        this.buyers      = m.getBuyersSpawned();
+        this.sold        = m.getTotalBought();
+        this.delivered   = m.getTotalDelivered();
+        this.rejected    = m.getTotalRejected();
+        this.stocked     = m.getTotalStocked();
+        this.backlogArea = m.getBacklogArea(tick);
+        for (int i = 0; i < this.waits.length; i++) {
+            this.typeSold[i]  = m.getBought(i);
+            this.fieldArea[i] = m.getFieldArea(i, tick);
+            this.waits[i]     = m.getBuyerWait(i).copy();
+        }
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+}
@@ -0,0 +1,35 @@
+import java.util.random.RandomGenerator;
+
+/* One actor's random numbers. SplitMix64, the generator behind
+ * SplittableRandom, with its state out in the open so a checkpoint can
+ * carry it over. Every actor has its own stream, seeded from the master
+ * seed and the actor's Trace id, so no draw contends with another thread
+ * and what an actor draws doesn't depend on which thread drew first.
+ * Not thread-safe: only the owning actor may use it. */
+public class RandomStream implements RandomGenerator {
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private long state;
+
+    RandomStream(long state) { this.state = state; }
+
+    /* The stream of actor actorId (see Trace.actorId()) under seed. */
+    static RandomStream of(long seed, int actorId) {
+        return new RandomStream(mix64(seed + GOLDEN_GAMMA * (actorId + 1L)));
+    }
+
+    @Override
+    public long nextLong() {
+        this.state += GOLDEN_GAMMA;
+        return mix64(this.state);
+    }
+
+    public long getState() { return this.state; }
+    public void setState(long state) { this.state = state; }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,70 @@
+import java.util.ArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* Something actors can park on until it changes.
+ * Every signalAll() bumps a generation counter. An actor reads generation()
+ * before it checks its condition, and if the check fails it waits for a
+ * generation other than the one it saw, so a signal that lands between the
+ * check and the wait is never lost.
+ *
+ * In wall-clock mode the actor's thread blocks in await(). In virtual-time
+ * mode there is only one thread, so the EventScheduler registers a wakeup
+ * with onNext() instead and reschedules the actor when it runs. */
+public class Signal {
+    private final ReentrantLock lock;
+    private final Condition changed;
+    private volatile long generation; // Written under lock.
+    private ArrayList<Runnable> wakeups;
+
+    Signal() {
+        this.lock       = new ReentrantLock();
+        this.changed    = this.lock.newCondition();
+        this.generation = 0;
+        this.wakeups    = new ArrayList<>();
+    }
+
+    public long generation() { return this.generation; }
+
+    /* Block until the generation moves past seen. */
+    public void await(long seen) throws InterruptedException {
+        this.lock.lock();
+        try {
+            while (this.generation == seen) {
+                this.changed.await();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /* Run wakeup once the generation moves past seen, straight away if it
+     * already has. */
+    public void onNext(long seen, Runnable wakeup) {
+        this.lock.lock();
+        try {
+            if (this.generation == seen) {
+                this.wakeups.add(wakeup);
+                return;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        wakeup.run();
+    }
+
+    public void signalAll() {
+        ArrayList<Runnable> pending;
+        this.lock.lock();
+        try {
+            this.generation += 1;
+            this.changed.signalAll();
+            if (this.wakeups.isEmpty()) return;
+            pending = this.wakeups;
+            this.wakeups = new ArrayList<>();
+        } finally {
+            this.lock.unlock();
+        }
+        for (Runnable wakeup : pending) wakeup.run();
+    }
+}
@@ -1,17 +1,16 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.AbstractMap;
 import java.util.Random;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.function.IntConsumer;
 
 public class Simulation {
-    private final static int
+    public final static int
         NUMBER_OF_FARMERS    =    5;
     public final static int
         FARMER_CAPACITY      =   10;
@@ -19,16 +18,24 @@ public class Simulation {
         FARMER_BREAK_TICKS   =  200;
     public final static int
         FARMER_BREAK_DURATION = 150;
-    private final static int
+    public final static int
         BUYER_SPAWN_TICKS    =   10;
     public final static int
         DELIVERY_SPAWN_TICKS =  100;
     public final static int
         DELIVERY_SIZE        =   10;
+    private final static int
+        ENCLOSURE_DOCKS      =    1;
     public final static int
         DAY_DURATION         = 1000;
+    private final static int
+        SIMULATION_DAYS      =    1;
     public final static int
         MS_PER_TICK          =   50; // Speed
+    private final static long
+        SHUTDOWN_TIMEOUT_MS  = 5000; // For actors to stop at the end.
+    private final static int
+        MAILBOX_THREADS      =    2; // Pool for --engine=mailbox.
     private final static int
         FIELD_CAPACITY_MAX   =   11; // Exclusive
     private final static int
@@ -39,149 +46,343 @@ public class Simulation {
         RNG_SEED             =    0xFADD3D;
     private final static Boolean
         RNG_GENERATE_SEED    =    true; // Set true to use random seed.
+    private final static Boolean
+        VIRTUAL_TIME         =   false; // Set true to skip idle ticks.
+    private final static Boolean
+        VIRTUAL_THREADS      =   false; // Set true to run actors on virtual threads.
     public final static String[]
         ANIMAL_TYPES = {"Chicken", "Pig", "Cow", "Sheep", "Llama"};
 
     private long   seed;
-    public  Random spawnRNG;
-    public  Random buyerPrefferenceRNG;
-    public  Random deliveryRNG;
-    public  Random farmerBreakRNG;
-
-    private static Simulation instance;
-    Enclosure enclosure;
+    /* The main thread's own stream: field sizes and spawn intervals.
+     * Actors get theirs from randomFor(). */
+    public  RandomStream spawnRNG;
+
+    /* The simulation whose actors run on this thread. Actor threads inherit
+     * it from the thread that spawned them, so Logger and Trace can find
+     * the right clock without a process-wide instance. */
+    private static final InheritableThreadLocal<Simulation> current
+        = new InheritableThreadLocal<>();
+
+    private Enclosure[] docks;
+    Signal docksChanged;
+    private ReentrantLock routeLock;
+    private int dockCount;
+    /* Load: defaults are the constants above, a Sweep varies them. */
+    private int farmerCount;
+    private int buyerSpawnTicks;
+    private int deliverySpawnTicks;
+    private int deliverySize;
+    private int enclosureCapacity; // Per dock, 0 for no limit.
+    private Delivery.Overflow overflow;
     private AtomicInteger tickCounter;
-    private HashMap<String, Thread> threads;
-    private ArrayList<Field>  fields;
+    private Boolean virtualTime;
+    private int days;
+    private EventScheduler scheduler;
+    private ActorRegistry actors; // Wall-clock only, made by init().
+    private Boolean virtualThreads;
+    /* --engine=mailbox: Fields and docks are actors on a pool of this
+     * many threads. 0 for the threaded engine. */
+    private int mailboxThreads;
+    private ExecutorService mailboxPool; // Made by init() if mailboxThreads > 0.
+    AnimalTypes types;
+    private Field[] fields; // Indexed by animal type id.
+    private Farmer[] farmers;
+    UrgencyIndex urgency;
+    LockProfiler locks; // Null unless profiling.
+    private int lockSampleTicks;
+    /* Virtual-time spawners, kept so a checkpoint can find them in the
+     * event queue. */
+    private Actor buyerSpawner;
+    private Actor deliverySpawner;
+    private Boolean resumed;
+    private Path checkpointPath;
+    private int  checkpointTick;
+    private MetricsStream metricsStream;
+    private int windowTicks;
+    private IntConsumer windowObserver; // See everyWindow().
 
     /* METRICS */
     private int buyerCounter;
     private int deliveryCounter;
-            ArrayList<Integer> buyerWaitingTime;
-            ArrayList<Integer> buyerSpawnTime;
-            HashMap<String, Integer> buyerMetrics;
-            ArrayList<Integer> deliveryWaitingTime;
-            ArrayList<Integer> deliverySpawnTime;
-            HashMap<String, Integer> deliveryMetric;
-            ArrayList<Integer> farmerStockTime;
+    private int lastBuyerSpawnTick;
+    private int lastDeliverySpawnTick;
+    Metrics metrics;
 
     Simulation () {
-        this.fields = new ArrayList<Field>();
-        this.tickCounter   = new AtomicInteger(0);
-        this.threads = new HashMap<String, Thread>();
+        this(RNG_GENERATE_SEED ? (new Random()).nextLong() : RNG_SEED);
+    }
 
-        this.seed = RNG_SEED;
-        if (RNG_GENERATE_SEED) {
-            this.seed = (new Random()).nextLong();
-        }
-        this.spawnRNG            = new Random(this.seed    );
-        this.buyerPrefferenceRNG = new Random(this.seed * 2);
-        this.deliveryRNG         = new Random(this.seed * 3);
-        this.farmerBreakRNG      = new Random(this.seed * 4);
+    Simulation (long seed) {
+        this.types = new AnimalTypes(ANIMAL_TYPES);
+        this.tickCounter   = new AtomicInteger(0);
+        this.virtualThreads = VIRTUAL_THREADS;
+        this.virtualTime = VIRTUAL_TIME;
+        this.days = SIMULATION_DAYS;
+        this.dockCount = ENCLOSURE_DOCKS;
+        this.farmerCount = NUMBER_OF_FARMERS;
+        this.buyerSpawnTicks = BUYER_SPAWN_TICKS;
+        this.deliverySpawnTicks = DELIVERY_SPAWN_TICKS;
+        this.deliverySize = DELIVERY_SIZE;
+        this.enclosureCapacity = 0;
+        this.overflow = Delivery.Overflow.BLOCK;
+        this.lockSampleTicks = -1;
+        this.mailboxThreads = 0;
+        this.resumed = false;
+        this.checkpointPath = null;
+        this.checkpointTick = -1;
+        this.buyerSpawner = () -> {
+            this.spawnBuyer();
+            return Math.max(1,
+                (int) (2 * this.spawnRNG.nextDouble() * this.buyerSpawnTicks));
+        };
+        this.deliverySpawner = () -> {
+            this.spawnDelivery();
+            return Math.max(1,
+                (int) (2 * this.spawnRNG.nextDouble() * this.deliverySpawnTicks));
+        };
+        this.scheduler = new EventScheduler();
+
+        this.setSeed(seed);
 
         this.buyerCounter = 0;
         this.deliveryCounter = 0;
-        this.buyerWaitingTime = new ArrayList<>();
-        this.buyerSpawnTime = new ArrayList<>();
-        this.deliveryWaitingTime = new ArrayList<>();
-        this.deliverySpawnTime = new ArrayList<>();
-        this.buyerMetrics = new HashMap<>();
-        this.deliveryMetric = new HashMap<>();
-        for(String animal : Simulation.ANIMAL_TYPES) {
-            this.buyerMetrics.put(animal, 0);
-            this.deliveryMetric.put(animal, 0);
-        }
+        this.lastBuyerSpawnTick = -1;
+        this.lastDeliverySpawnTick = -1;
     }
 
-    static public Simulation getInstance() {
-        if (instance == null) {
-            instance = new Simulation();
+    /* The simulation running on this thread, null if there is none. */
+    static Simulation current() { return current.get(); }
+
+    /* A fresh simulation with the same settings and another seed. */
+    Simulation withSeed(long seed) {
+        Simulation copy = new Simulation(seed);
+        copy.setAnimalTypes(this.types);
+        copy.virtualTime    = this.virtualTime;
+        copy.virtualThreads = this.virtualThreads;
+        copy.days           = this.days;
+        copy.dockCount      = this.dockCount;
+        copy.farmerCount    = this.farmerCount;
+        copy.buyerSpawnTicks    = this.buyerSpawnTicks;
+        copy.deliverySpawnTicks = this.deliverySpawnTicks;
+        copy.deliverySize   = this.deliverySize;
+        copy.enclosureCapacity = this.enclosureCapacity;
+        copy.overflow       = this.overflow;
+        return copy;
+    }
+
+    /* Reseed every random stream. Only before init(). */
+    void setSeed(long seed) {
+        this.seed = seed;
+        this.spawnRNG = RandomStream.of(seed, Trace.actorId(Trace.MAIN, 0));
+    }
+
+    /* A fresh stream for the actor with Trace id actorId. The same seed
+     * and actor always get the same numbers. */
+    RandomStream randomFor(int actorId) {
+        return RandomStream.of(this.seed, actorId);
+    }
+
+    long getSeed() { return this.seed; }
+
+    /* Replace the animal types. Only before init(). */
+    void setAnimalTypes(AnimalTypes types) { this.types = types; }
+
+    /* Number of enclosure docks. Only before init(). */
+    void setDocks(int docks) {
+        if (docks < 1) {
+            throw new IllegalArgumentException("Need at least one dock.");
         }
-        return instance;
+        this.dockCount = docks;
     }
 
-    public int getTickCount() { return this.tickCounter.get(); }
+    /* The load settings. Each must be at least 1; only before init(). */
+    void setFarmers(int farmers) {
+        this.farmerCount = atLeastOne(farmers, "farmers");
+    }
 
-    public Field getField(String fieldType) {
-        for(Field f : this.fields) {
-            if(f.getFieldType() == fieldType) {
-                return f;
-            }
+    /* Mean ticks between buyers. */
+    void setBuyerSpawnTicks(int ticks) {
+        this.buyerSpawnTicks = atLeastOne(ticks, "buyer spawn ticks");
+    }
+
+    /* Mean ticks between deliveries. */
+    void setDeliverySpawnTicks(int ticks) {
+        this.deliverySpawnTicks = atLeastOne(ticks, "delivery spawn ticks");
+    }
+
+    void setDeliverySize(int animals) {
+        this.deliverySize = atLeastOne(animals, "delivery size");
+    }
+
+    private static int atLeastOne(int value, String what) {
+        if (value < 1) {
+            throw new IllegalArgumentException("Need at least one for " + what + ".");
         }
-        return null;
-    }
-    public LinkedList<String> getMostUrgentFields() {
-        LinkedList<
-            AbstractMap.SimpleImmutableEntry<
-                String,
-                Integer>
-        > urgencyList = new LinkedList<>();
-
-        // Collect urgencies from all fields
-        for(Field f : this.fields) {
-            urgencyList.add(
-                new AbstractMap.SimpleImmutableEntry<String,Integer>
-                    (f.getFieldType(),
-                    f.getUrgency())
-            );
-        }
-
-        // Sort in descending order
-        Collections.sort(urgencyList,
-            new Comparator<AbstractMap.SimpleImmutableEntry<String,Integer>>() {
-                public int compare(
-                    AbstractMap.SimpleImmutableEntry<String,Integer> a,
-                    AbstractMap.SimpleImmutableEntry<String,Integer> b)
-                {
-                    return a.getValue().compareTo(b.getValue());
-                }
-            });
+        return value;
+    }
+
+    int getBuyerSpawnTicks() { return this.buyerSpawnTicks; }
+    int getDeliverySpawnTicks() { return this.deliverySpawnTicks; }
+    public int getDeliverySize() { return this.deliverySize; }
 
-        LinkedList<String> urgentFields = new LinkedList<>();
-        for(Map.Entry<String,Integer> p : urgencyList) {
-            urgentFields.add(p.getKey());
+    /* Animals each dock can hold (0 for no limit), and what deliveries
+     * do with the rest. Only before init(). */
+    void setEnclosureCapacity(int capacity, Delivery.Overflow overflow) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException(
+                "Enclosure capacity can't be negative.");
         }
+        this.enclosureCapacity = capacity;
+        this.overflow = overflow;
+    }
 
-        return urgentFields;
+    int getEnclosureCapacity() { return this.enclosureCapacity; }
+    Delivery.Overflow getOverflow() { return this.overflow; }
+
+    /* Run Fields and docks as actors on a pool of threads (0 for the
+     * threaded engine). Wall-clock only, and only before init(). */
+    void setMailboxThreads(int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException(
+                "Mailbox pool size can't be negative.");
+        }
+        this.mailboxThreads = threads;
     }
 
-    public synchronized void threadReportBirth(String name, Runnable r) {
-        if (this.threads.containsKey(name)) {
-            Logger.error("thread with the name " + name + " was born already.");
-            return;
+    /* Profile lock contention, logging a sample every sampleTicks (0 for
+     * only the end-of-run report). Only before init(). */
+    void setLockProfile(int sampleTicks) {
+        if (sampleTicks < 0) {
+            throw new IllegalArgumentException(
+                "Lock sample interval can't be negative.");
         }
+        this.lockSampleTicks = sampleTicks;
+    }
 
-        Thread t = Thread.ofPlatform()
-                         .name(name)
-                         .unstarted(r);
+    int getLockSampleTicks() { return this.lockSampleTicks; }
 
-        this.threads.put(name, t);
-        t.start();
+    /* Write metrics to path every window ticks while running. After init()
+     * or a resume. */
+    void streamMetrics(Path path, int window) throws IOException {
+        this.metricsStream = MetricsStream.open(this, path, window);
     }
 
-    public synchronized void threadReportDeath(String name, Boolean naturalDeath) {
-        if (!this.threads.containsKey(name)) {
-            Logger.error(
-                    "Cannot declare " + name + " dead. Thread was never born.");
-            return;
+    /* Call observer with the tick at the end of every window ticks while
+     * running. Virtual time only, after init(). */
+    void everyWindow(int window, IntConsumer observer) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Window must be positive.");
         }
+        this.windowTicks = window;
+        this.windowObserver = observer;
+    }
+
+    /* Write a checkpoint to path once the clock reaches tick. Virtual time
+     * only. */
+    void setCheckpoint(Path path, int tick) {
+        this.checkpointPath = path;
+        this.checkpointTick = tick;
+    }
+
+    void setVirtualTime(Boolean virtualTime) { this.virtualTime = virtualTime; }
+    void setDays(int days) { this.days = days; }
+    int getDays() { return this.days; }
 
+    public int getTickCount() { return this.tickCounter.get(); }
+
+    /* Name of the actor currently running. In virtual-time mode every actor
+     * shares the main thread, so ask the scheduler instead of the thread. */
+    public String getActorName() {
+        if (this.virtualTime && this.scheduler.getCurrentActor() != null) {
+            return this.scheduler.getCurrentActor();
+        }
+        return Thread.currentThread().getName();
+    }
+
+    public Field getField(int type) { return this.fields[type]; }
+    public int getFieldCount() { return this.fields.length; }
+    public Farmer getFarmer(int i) { return this.farmers[i]; }
+    public int getFarmerCount() { return this.farmers.length; }
+
+    public int getDockCount() { return this.dockCount; }
+    public Enclosure getDock(int dock) { return this.docks[dock]; }
+
+    /* Queue a new delivery at the dock with the least work on it. Picked
+     * and queued under one lock so simultaneous deliveries spread out. */
+    Enclosure routeDelivery() {
+        this.routeLock.lock();
         try {
-            Thread t = this.threads.get(name);
-            if (t.isAlive()) {
-                t.interrupt();
-                t.join(500);
+            Enclosure best = this.docks[0];
+            for (int i = 1; i < this.docks.length; i++) {
+                if (this.docks[i].getLoad() < best.getLoad()) best = this.docks[i];
             }
-        } catch (InterruptedException ie) {}
+            best.queueDelivery();
+            return best;
+        } finally {
+            this.routeLock.unlock();
+        }
+    }
 
-        if (naturalDeath) {
-            this.threads.remove(name);
-            return;
+    /* A buy left a field needing more. Only worth waking farmers for if
+     * some dock holds that type. */
+    void fieldDrained(int type) {
+        for (Enclosure dock : this.docks) {
+            if (dock.holds(type)) {
+                this.docksChanged.signalAll();
+                return;
+            }
+        }
+    }
+
+    /* Field ids ordered from most to least urgent. */
+    public int[] getMostUrgentFields() {
+        int[] urgentFields = new int[this.fields.length];
+        this.urgency.mostUrgent(urgentFields, urgentFields.length);
+        return urgentFields;
+    }
+
+    /* Start an actor: on its own thread in wall-clock mode, or as an event
+     * at the current tick in virtual-time mode. */
+    private <T extends Runnable & Actor> void spawnActor(String name, T actor) {
+        if (this.virtualTime) {
+            this.scheduler.schedule(this.getTickCount(), name, actor);
+        } else {
+            this.threadReportBirth(name, actor);
         }
-        Logger.log(name + " was killed.");
+    }
+
+    public void threadReportBirth(String name, Runnable r) {
+        this.actors.spawn(name, r);
+    }
+
+    /* Actor threads born and not yet declared dead. */
+    public int getLiveThreadCount() {
+        return this.actors == null ? 0 : this.actors.getLiveCount();
+    }
+
+    public int getPeakThreadCount() {
+        return this.actors == null ? 0 : this.actors.getPeakCount();
+    }
+
+    /* Called by an actor's own thread on its way out. */
+    public void threadReportDeath(String name, Boolean naturalDeath) {
+        if (!naturalDeath) Logger.log(name + " was killed.");
+        this.actors.exited(name);
     }
 
     public void init() {
+        current.set(this);
+        if (!this.virtualTime) {
+            this.actors = new ActorRegistry(this.virtualThreads);
+            if (this.mailboxThreads > 0) {
+                this.mailboxPool = Mailbox.pool(this.mailboxThreads);
+            }
+        }
+        this.metrics = new Metrics(this.types, this.dockCount);
+        if (this.lockSampleTicks >= 0) {
+            this.locks = new LockProfiler(this.lockSampleTicks);
+        }
         Logger.log("Initializing...");
         Logger.status("Seed Used: " + Long.toHexString(this.seed));
         this.createFields();
@@ -190,51 +391,222 @@ public class Simulation {
     }
 
     private void createFields() {
-        for(String animal : ANIMAL_TYPES) {
-            Field field = new Field(animal,
+        this.fields = new Field[this.types.count()];
+        this.urgency = new UrgencyIndex(this.types.count());
+        for(int i = 0; i < this.types.count(); i++) {
+            this.fields[i] = new Field(i, this.types.name(i),
             this.spawnRNG.nextInt(Simulation.FIELD_CAPACITY_MIN,
                 Simulation.FIELD_CAPACITY_MAX),
-                Simulation.FIELD_STARTING_COUNT);
-            this.fields.add(field);
+                Simulation.FIELD_STARTING_COUNT,
+                this.urgency);
+            this.metrics.recordFieldOpened(i, this.fields[i].getAnimalCount());
+            if (this.mailboxPool != null) {
+                this.fields[i].setMailbox(new Mailbox(this.mailboxPool));
+            }
         }
     }
 
     private void createEnclosure() {
-        this.enclosure = new Enclosure();
+        this.docks = new Enclosure[this.dockCount];
+        this.docksChanged = new Signal();
+        this.routeLock = LockProfiler.lock("Simulation routeLock");
+        for (int i = 0; i < this.dockCount; i++) {
+            this.docks[i] = new Enclosure(this, i, this.enclosureCapacity,
+                                          this.docksChanged);
+            if (this.mailboxPool != null) {
+                this.docks[i].setMailbox(new Mailbox(this.mailboxPool));
+            }
+        }
     }
 
     private void createFarmers() {
-        Logger.log("Creating [" + NUMBER_OF_FARMERS + "] farmers.");
-        for (Integer i = 0; i < NUMBER_OF_FARMERS; i++) {
-            this.threadReportBirth("Farmer-" + (i+1), new Farmer());
+        Logger.log("Creating [" + this.farmerCount + "] farmers.");
+        this.farmers = new Farmer[this.farmerCount];
+        for (Integer i = 0; i < this.farmerCount; i++) {
+            this.farmers[i] = new Farmer(this, i+1);
+            this.spawnActor("Farmer-" + (i+1), this.farmers[i]);
         }
     }
 
-    private void run() {
+    /* Everything after the Snapshot header. Virtual time, between events. */
+    void saveState(Snapshot.Writer out) {
+        out.putInt(this.getTickCount());
+        out.putInt(this.buyerCounter);
+        out.putInt(this.deliveryCounter);
+        out.putInt(this.lastBuyerSpawnTick);
+        out.putInt(this.lastDeliverySpawnTick);
+        this.metrics.save(out);
+        for (Field field : this.fields)     field.save(out);
+        for (Enclosure dock : this.docks)   dock.save(out);
+        for (Farmer farmer : this.farmers)  farmer.save(out);
+
+        /* Buyers and deliveries are only reachable through the scheduler,
+         * either as a pending event or parked. */
+        ArrayList<EventScheduler.Event> events = this.scheduler.getEvents();
+        ArrayList<Actor> parked = this.scheduler.getParked();
+        ArrayList<Actor> live = new ArrayList<>(parked);
+        for (EventScheduler.Event e : events) live.add(e.actor);
+        HashMap<Field.Waiter, Integer> queued = new HashMap<>();
+        ArrayList<Buyer> buyers = new ArrayList<>();
+        ArrayList<Delivery> deliveries = new ArrayList<>();
+        for (Actor actor : live) {
+            if (actor instanceof Buyer buyer) {
+                buyers.add(buyer);
+                if (buyer.getWaiter() != null) {
+                    queued.put(buyer.getWaiter(), buyer.getNumber());
+                }
+            }
+            if (actor instanceof Delivery delivery) deliveries.add(delivery);
+        }
+        out.putInt(buyers.size());
+        for (Buyer buyer : buyers) buyer.save(out);
+        out.putInt(deliveries.size());
+        for (Delivery delivery : deliveries) delivery.save(out);
+        for (Field field : this.fields) {
+            ArrayList<Field.Waiter> line = field.getQueuedBuyers();
+            out.putInt(line.size());
+            for (Field.Waiter waiter : line) out.putInt(queued.get(waiter));
+        }
+
+        /* Anything else in the queue, the lock sampler, is not saved. */
+        out.putLong(this.scheduler.getSequence());
+        int saved = 0;
+        for (EventScheduler.Event e : events) {
+            if (this.actorId(e.actor) != -1) saved++;
+        }
+        out.putInt(saved);
+        for (EventScheduler.Event e : events) {
+            int id = this.actorId(e.actor);
+            if (id == -1) continue;
+            out.putInt(e.tick);
+            out.putLong(e.sequence);
+            out.putInt(id);
+        }
+        out.putInt(parked.size());
+        for (Actor actor : parked) out.putInt(this.actorId(actor));
+
+        out.putLong(this.spawnRNG.getState());
+    }
+
+    /* Counterpart of saveState(), in place of init(). */
+    void restoreState(Snapshot.Reader in) {
+        current.set(this);
+        this.metrics = new Metrics(this.types, this.dockCount);
+        if (this.lockSampleTicks >= 0) {
+            this.locks = new LockProfiler(this.lockSampleTicks);
+        }
+        Logger.log("Restoring...");
+        this.createFields();
+        this.createEnclosure();
+        this.farmers = new Farmer[this.farmerCount];
+        for (int i = 0; i < this.farmerCount; i++) {
+            this.farmers[i] = new Farmer(this, i+1);
+        }
+
+        this.tickCounter.set(in.getInt());
+        this.buyerCounter          = in.getInt();
+        this.deliveryCounter       = in.getInt();
+        this.lastBuyerSpawnTick    = in.getInt();
+        this.lastDeliverySpawnTick = in.getInt();
+        this.metrics.restore(in);
+        for (Field field : this.fields)     field.restore(in);
+        for (Enclosure dock : this.docks)   dock.restore(in);
+        for (Farmer farmer : this.farmers)  farmer.restore(in);
+
+        HashMap<Integer, Actor> actors = new HashMap<>();
+        actors.put(Trace.actorId(Trace.MAIN, 0), this.buyerSpawner);
+        actors.put(Trace.actorId(Trace.MAIN, 1), this.deliverySpawner);
+        for (Farmer farmer : this.farmers) {
+            actors.put(Trace.actorId(Trace.FARMER, farmer.getNumber()), farmer);
+        }
+        HashMap<Integer, Buyer> buyers = new HashMap<>();
+        for (int n = in.getInt(); n > 0; n--) {
+            Buyer buyer = Buyer.restore(this, in);
+            buyers.put(buyer.getNumber(), buyer);
+            actors.put(Trace.actorId(Trace.BUYER, buyer.getNumber()), buyer);
+        }
+        for (int n = in.getInt(); n > 0; n--) {
+            Delivery delivery = Delivery.restore(this, in);
+            actors.put(Trace.actorId(Trace.DELIVERY, delivery.getNumber()),
+                       delivery);
+        }
+        for (Field field : this.fields) {
+            for (int n = in.getInt(); n > 0; n--) buyers.get(in.getInt()).requeue();
+        }
+
+        this.scheduler.resume(this.getTickCount(), in.getLong());
+        for (int n = in.getInt(); n > 0; n--) {
+            int tick = in.getInt();
+            long sequence = in.getLong();
+            int id = in.getInt();
+            this.scheduler.restore(tick, sequence, actorName(id), actors.get(id));
+        }
+        for (int n = in.getInt(); n > 0; n--) {
+            int id = in.getInt();
+            this.scheduler.park(actorName(id), actors.get(id));
+        }
+
+        /* Last: making the fields drew from it. */
+        this.spawnRNG.setState(in.getLong());
+        this.resumed = true;
+    }
+
+    /* Trace-style id of a checkpointed actor, -1 for anything else. */
+    private int actorId(Actor actor) {
+        if (actor == this.buyerSpawner)    return Trace.actorId(Trace.MAIN, 0);
+        if (actor == this.deliverySpawner) return Trace.actorId(Trace.MAIN, 1);
+        if (actor instanceof Farmer f)   return Trace.actorId(Trace.FARMER, f.getNumber());
+        if (actor instanceof Buyer b)    return Trace.actorId(Trace.BUYER, b.getNumber());
+        if (actor instanceof Delivery d) return Trace.actorId(Trace.DELIVERY, d.getNumber());
+        return -1;
+    }
+
+    /* The scheduler name spawnActor() gave the actor. */
+    private static String actorName(int id) {
+        int number = Trace.actorNumber(id);
+        switch (Trace.actorKind(id)) {
+        case Trace.FARMER:   return "Farmer-" + number;
+        case Trace.BUYER:    return "Buyer-" + number;
+        case Trace.DELIVERY: return "Deliv-" + number;
+        default:             return "main";
+        }
+    }
+
+    void run() {
         int next_buyer_spawn_tick;
         int next_delivery_tick;
 
+        current.set(this);
         Logger.log("Simulation starting...");
+        if (this.virtualTime) {
+            this.runVirtual();
+            Logger.log("Simulation ended...");
+            this.closeMetricsStream();
+            return;
+        }
 
         next_delivery_tick    = 0;
         next_buyer_spawn_tick = 0;
         do {
             if (next_buyer_spawn_tick <= this.getTickCount()) {
                 this.spawnBuyer();
-                this.buyerSpawnTime.add(this.getTickCount());
                 next_buyer_spawn_tick = this.getTickCount()
-                    + (int) (2 * this.spawnRNG.nextDouble() * BUYER_SPAWN_TICKS);
+                    + (int) (2 * this.spawnRNG.nextDouble() * this.buyerSpawnTicks);
             }
 
             if (next_delivery_tick <= this.getTickCount()){
                 this.spawnDelivery();
-                this.deliverySpawnTime.add(this.getTickCount());
                 next_delivery_tick
                     = this.getTickCount()
-                    + (int) (2 * this.spawnRNG.nextDouble() * DELIVERY_SPAWN_TICKS);
+                    + (int) (2 * this.spawnRNG.nextDouble() * this.deliverySpawnTicks);
             }
 
             this.tickCounter.getAndIncrement();
+            this.sampleLocks();
+            if (this.metricsStream != null
+                    && this.getTickCount() % this.metricsStream.getWindow() == 0) {
+                this.metricsStream.roll(this.getTickCount());
+            }
 
             try {
                 Thread.sleep(MS_PER_TICK);
@@ -243,88 +615,287 @@ public class Simulation {
                         "InterruptedException thrown by Thread.sleep()\n" + ie);
                 break;
             }
-        } while(this.getTickCount() < DAY_DURATION);
+        } while(this.getTickCount() < DAY_DURATION * this.days);
         Logger.log("Simulation ended...");
+        this.closeMetricsStream();
+    }
+
+    /* Write out what is left of the last window. */
+    private void closeMetricsStream() {
+        if (this.metricsStream == null) return;
+        this.metricsStream.roll(this.getTickCount());
+        this.metricsStream.close();
+        this.metricsStream = null;
+    }
+
+    /* Same spawning rules as run(), but buyer and delivery arrivals are
+     * scheduled events and the clock jumps from one event to the next.
+     * Spawns happen at most once per tick, as in run(). */
+    private void runVirtual() {
+        if (!this.resumed) {
+            this.scheduler.schedule(this.getTickCount(), "main", this.buyerSpawner);
+            this.scheduler.schedule(this.getTickCount(), "main", this.deliverySpawner);
+        }
+
+        if (this.locks != null && this.locks.getSampleTicks() > 0) {
+            int every = this.locks.getSampleTicks();
+            this.scheduler.schedule(
+                (this.getTickCount() / every + 1) * every, "main", () -> {
+                    this.locks.sample(this.getTickCount());
+                    return every;
+                });
+        }
+
+        if (this.metricsStream != null) {
+            int window = this.metricsStream.getWindow();
+            this.scheduler.schedule(
+                (this.getTickCount() / window + 1) * window, "main", () -> {
+                    this.metricsStream.roll(this.getTickCount());
+                    return window;
+                });
+        }
+
+        if (this.windowObserver != null) {
+            int window = this.windowTicks;
+            this.scheduler.schedule(
+                (this.getTickCount() / window + 1) * window, "main", () -> {
+                    this.windowObserver.accept(this.getTickCount());
+                    return window;
+                });
+        }
+
+        int endTick = DAY_DURATION * this.days;
+        try {
+            if (this.checkpointPath != null) {
+                if (this.checkpointTick <= this.getTickCount()
+                        || this.checkpointTick >= endTick) {
+                    Logger.error("Checkpoint tick " + this.checkpointTick
+                        + " is outside the run, no checkpoint written.");
+                } else {
+                    this.scheduler.run(this.tickCounter, this.checkpointTick);
+                    this.writeCheckpoint();
+                }
+            }
+            this.scheduler.run(this.tickCounter, endTick);
+        } catch (InterruptedException ie) {
+            Logger.error("InterruptedException thrown by scheduler\n" + ie);
+        }
+    }
+
+    private void writeCheckpoint() {
+        try {
+            Snapshot.write(this, this.checkpointPath);
+        } catch (IOException | IllegalStateException e) {
+            Logger.error("Could not write checkpoint: " + e);
+        }
+    }
+
+    private void sampleLocks() {
+        if (this.locks == null || this.locks.getSampleTicks() == 0) return;
+        if (this.getTickCount() % this.locks.getSampleTicks() == 0) {
+            this.locks.sample(this.getTickCount());
+        }
     }
 
     private void spawnBuyer() {
-        this.threadReportBirth(
+        this.spawnActor(
                 "Buyer-" + this.buyerCounter,
-                new Buyer());
+                new Buyer(this, this.buyerCounter));
         this.buyerCounter += 1;
+        this.metrics.recordBuyerSpawn(this.lastBuyerSpawnTick < 0 ? -1
+            : this.getTickCount() - this.lastBuyerSpawnTick);
+        this.lastBuyerSpawnTick = this.getTickCount();
     }
 
     private void spawnDelivery() {
-        Delivery delivery = new Delivery();
-        this.threadReportBirth(
+        Delivery delivery = new Delivery(this, this.deliveryCounter);
+        this.spawnActor(
                 "Deliv-" + this.deliveryCounter,
                 delivery);
         this.deliveryCounter += 1;
+        this.metrics.recordDeliverySpawn(this.lastDeliverySpawnTick < 0 ? -1
+            : this.getTickCount() - this.lastDeliverySpawnTick);
+        this.lastDeliverySpawnTick = this.getTickCount();
     }
 
-    /* Kill all threads that are still alive. */
+    /* Stop every actor thread that is still alive, all at once. */
     private void terminate() throws InterruptedException {
-        Thread.sleep(500);
+        if (this.virtualTime) {
+            /* No threads were started, whatever is still scheduled is
+             * simply dropped. */
+            Logger.log("Done");
+            return;
+        }
         Logger.log("Cleaning up...");
-        Iterator<Entry<String,Thread>> it = this.threads.entrySet().iterator();
-        while (it.hasNext()) {
-            Entry<String, Thread> birthRecord = it.next();
-            Logger.log("Sending terminate signal to " + birthRecord.getKey());
-            this.threadReportDeath(birthRecord.getKey(),
-                                    false);
-            it.remove();
+        int live = this.actors.getLiveCount();
+        long start = System.nanoTime();
+        int stuck = this.actors.shutdown(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        Logger.log(String.format("Stopped %d actor threads in %.1f ms%s", live,
+            (System.nanoTime() - start) / 1e6,
+            stuck == 0 ? "" : ", " + stuck + " did not stop in time"));
+        if (this.mailboxPool != null) {
+            /* The actors are gone, so nothing more will be posted. */
+            this.mailboxPool.shutdown();
+            this.mailboxPool.awaitTermination(SHUTDOWN_TIMEOUT_MS,
+                                              TimeUnit.MILLISECONDS);
         }
         Logger.log("Done");
     }
 
-    private float averageWaitTime(ArrayList<Integer> array) {
-        int counter = 0;
-        for(int i = 0; i < array.size(); i++) {
-            counter += array.get(i);
+    private void printMetrics() {
+        if (!this.virtualTime) {
+            Logger.log("Actor threads: "
+                + (this.virtualThreads ? "virtual" : "platform")
+                + ", peak alive: " + this.getPeakThreadCount()
+                + (this.mailboxPool == null ? ""
+                   : ", Fields and docks on " + this.mailboxThreads
+                     + " mailbox threads"));
         }
-        return counter / array.size();
+        this.metrics.report(this.getTickCount());
+        if (this.locks != null) this.locks.report();
     }
-
-    private float averageSpawnTime(ArrayList<Integer> array) {
-        int counter = 0;
-        for(int i = 0 ; i < array.size() - 1; i ++) {
-            int tmpFirst = array.get(i+1);
-            int tmpSecond = array.get(i);
-            counter += tmpFirst - tmpSecond;
+    public static void main(String[] args)
+            throws InterruptedException, IOException {
+        Simulation sim = new Simulation();
+        String tracePath = null;
+        String resumePath = null;
+        String checkpointPath = null;
+        int checkpointTick = -1;
+        String metricsPath = null;
+        int metricsWindow = DAY_DURATION;
+        int enclosureCapacity = 0;
+        Delivery.Overflow overflow = Delivery.Overflow.BLOCK;
+        String engine = "threads";
+        int mailboxThreads = MAILBOX_THREADS;
+        int days = -1;
+        int batchRuns = 0;
+        String sweepPath = null;
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        for (String arg : args) {
+            if (arg.startsWith("--log="))
+                Logger.open(arg.substring("--log=".length()));
+            if (arg.startsWith("--trace="))
+                tracePath = arg.substring("--trace=".length());
+            if (arg.startsWith("--animal-types="))
+                sim.setAnimalTypes(AnimalTypes.load(
+                    Path.of(arg.substring("--animal-types=".length()))));
+            if (arg.startsWith("--log-level="))
+                Logger.setLevel(Logger.Level.valueOf(
+                    arg.substring("--log-level=".length()).toUpperCase()));
+            if (arg.equals("--virtual-time")) sim.virtualTime = true;
+            if (arg.equals("--wall-clock"))   sim.virtualTime = false;
+            if (arg.equals("--virtual-threads"))  sim.virtualThreads = true;
+            if (arg.equals("--platform-threads")) sim.virtualThreads = false;
+            if (arg.startsWith("--engine="))
+                engine = arg.substring("--engine=".length());
+            if (arg.startsWith("--mailbox-threads="))
+                mailboxThreads = Integer.parseInt(
+                    arg.substring("--mailbox-threads=".length()));
+            if (arg.startsWith("--days="))
+                sim.days = days = Integer.parseInt(
+                    arg.substring("--days=".length()));
+            if (arg.startsWith("--docks="))
+                sim.setDocks(Integer.parseInt(
+                    arg.substring("--docks=".length())));
+            if (arg.startsWith("--farmers="))
+                sim.setFarmers(Integer.parseInt(
+                    arg.substring("--farmers=".length())));
+            if (arg.startsWith("--buyer-spawn-ticks="))
+                sim.setBuyerSpawnTicks(Integer.parseInt(
+                    arg.substring("--buyer-spawn-ticks=".length())));
+            if (arg.startsWith("--delivery-spawn-ticks="))
+                sim.setDeliverySpawnTicks(Integer.parseInt(
+                    arg.substring("--delivery-spawn-ticks=".length())));
+            if (arg.startsWith("--delivery-size="))
+                sim.setDeliverySize(Integer.parseInt(
+                    arg.substring("--delivery-size=".length())));
+            if (arg.startsWith("--enclosure-capacity="))
+                enclosureCapacity = Integer.parseInt(
+                    arg.substring("--enclosure-capacity=".length()));
+            if (arg.startsWith("--overflow="))
+                overflow = Delivery.Overflow.valueOf(
+                    arg.substring("--overflow=".length()).toUpperCase());
+            if (arg.startsWith("--seed="))
+                sim.setSeed(Long.parseUnsignedLong(
+                    arg.substring("--seed=".length()), 16));
+            if (arg.startsWith("--batch="))
+                batchRuns = Integer.parseInt(
+                    arg.substring("--batch=".length()));
+            if (arg.startsWith("--sweep="))
+                sweepPath = arg.substring("--sweep=".length());
+            if (arg.equals("--lock-profile"))
+                sim.setLockProfile(DAY_DURATION);
+            if (arg.startsWith("--lock-profile="))
+                sim.setLockProfile(Integer.parseInt(
+                    arg.substring("--lock-profile=".length())));
+            if (arg.startsWith("--checkpoint="))
+                checkpointPath = arg.substring("--checkpoint=".length());
+            if (arg.startsWith("--checkpoint-at="))
+                checkpointTick = Integer.parseInt(
+                    arg.substring("--checkpoint-at=".length()));
+            if (arg.startsWith("--metrics="))
+                metricsPath = arg.substring("--metrics=".length());
+            if (arg.startsWith("--metrics-window="))
+                metricsWindow = Integer.parseInt(
+                    arg.substring("--metrics-window=".length()));
+            if (arg.startsWith("--resume="))
+                resumePath = arg.substring("--resume=".length());
+            if (arg.startsWith("--parallelism="))
+                parallelism = Integer.parseInt(
+                    arg.substring("--parallelism=".length()));
         }
-        return counter / array.size();
-
-    }
-
-    private int countMap(HashMap<String, Integer> map) {
-        int counter = 0;
-        for(Integer value : map.values()) {
-            counter += value;
+        sim.setEnclosureCapacity(enclosureCapacity, overflow);
+        if (engine.equals("mailbox")) {
+            if (sim.virtualTime || batchRuns > 0 || sweepPath != null) {
+                Logger.error("--engine=mailbox needs wall-clock time, ignored.");
+            } else {
+                sim.setMailboxThreads(mailboxThreads);
+            }
+        } else if (!engine.equals("threads")) {
+            Logger.error("Unknown engine " + engine + ", using threads.");
         }
-        return counter;
-    }
-
-    private void printMetrics() {
-        Logger.log("Deliveries spawned: " + (this.deliveryCounter + 1));
-        Logger.log("Average time for Delivery spawn: "
-            + this.averageSpawnTime(this.deliverySpawnTime));
-        Logger.log("Average Delivery wait time: "
-            + this.averageWaitTime(this.deliveryWaitingTime));
-        Logger.log("Total animals delivered: " + this.countMap(this.deliveryMetric));
-        Logger.log("Enclosure metrics: " + this.deliveryMetric);
-        Logger.log("Buyers spawned: " + (this.buyerCounter + 1));
-        Logger.log("Average time for Buyer spawn: "
-            + this.averageSpawnTime(this.buyerSpawnTime));
-        Logger.log("Average Buyer wait time: "
-            + this.averageWaitTime(this.buyerWaitingTime));
-        Logger.log("Total animals bought: " + this.countMap(buyerMetrics));
-        Logger.log("Animals bought: " + this.buyerMetrics);
-    }
-    public static void main(String[] args) throws InterruptedException {
-        Simulation sim = Simulation.getInstance();
-        sim.init();
+        if (sweepPath != null) {
+            if (tracePath != null || metricsPath != null) {
+                Logger.error("--trace and --metrics are ignored in a sweep.");
+            }
+            new Sweep(sim, Sweep.Scenario.load(Path.of(sweepPath)),
+                      parallelism).run();
+            Logger.close();
+            return;
+        }
+        if (batchRuns > 0) {
+            if (tracePath != null) {
+                Logger.error("--trace is ignored in batch mode.");
+            }
+            if (metricsPath != null) {
+                Logger.error("--metrics is ignored in batch mode.");
+            }
+            new Batch(sim, batchRuns, parallelism).run();
+            Logger.close();
+            return;
+        }
+        if (resumePath != null) {
+            sim = Snapshot.read(Path.of(resumePath), sim);
+            if (days >= 0) sim.days = days;
+        }
+        if (checkpointPath != null) {
+            if (!sim.virtualTime) {
+                Logger.error("--checkpoint needs --virtual-time.");
+                Logger.close();
+                return;
+            }
+            sim.setCheckpoint(Path.of(checkpointPath), checkpointTick < 0
+                ? DAY_DURATION * sim.days / 2 : checkpointTick);
+        }
+        if (tracePath != null) Trace.open(tracePath, sim.types);
+        if (resumePath == null) sim.init();
+        if (metricsPath != null) sim.streamMetrics(Path.of(metricsPath), metricsWindow);
+        Telemetry telemetry = Telemetry.register(sim);
         sim.run();
         sim.terminate();
         sim.printMetrics();
+        telemetry.unregister();
+        Trace.close();
+        Logger.close();
     }
 }
@@ -0,0 +1,154 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/* Checkpoint of a virtual-time simulation at a tick boundary.
+ * A header (magic, version, seed, days, docks, animal type names) followed
+ * by what Simulation.saveState() writes: counters, metrics, fields, docks,
+ * farmers (with their random streams), live buyers and deliveries, the
+ * field queues, the event queue with its sequence numbers, parked actors in
+ * the order they parked, and the main thread's random stream. A buyer or
+ * delivery draws only before it is saved or from a fresh stream, so theirs
+ * aren't stored. Big-endian, ints and longs at fixed width, written
+ * and read in one go through a FileChannel.
+ *
+ * Resuming rebuilds every object and puts each actor back where it was in
+ * the event queue or in its Signal's wakeup list, so the rest of the run is
+ * the same as if it had never stopped. Wall-clock runs have no tick
+ * boundary to stop at and can't be checkpointed. */
+public class Snapshot {
+    public static final int   MAGIC   = 0x46524D53; // "FRMS"
+    public static final short VERSION = 6;
+
+    /* Growable big-endian buffer the state is written into. */
+    static class Writer {
+        private ByteBuffer buffer;
+
+        Writer() { this.buffer = ByteBuffer.allocate(1 << 16); }
+
+        private void ensure(int bytes) {
+            if (this.buffer.remaining() >= bytes) return;
+            int size = Math.max(2 * this.buffer.capacity(),
+                                this.buffer.position() + bytes);
+            ByteBuffer bigger = ByteBuffer.allocate(size);
+            this.buffer.flip();
+            bigger.put(this.buffer);
+            this.buffer = bigger;
+        }
+
+        void putInt(int v)   { this.ensure(4); this.buffer.putInt(v); }
+        void putLong(long v) { this.ensure(8); this.buffer.putLong(v); }
+        void putBoolean(Boolean v) { this.ensure(1); this.buffer.put((byte) (v ? 1 : 0)); }
+
+        void putInts(int[] values) {
+            this.putInt(values.length);
+            for (int v : values) this.putInt(v);
+        }
+
+        void putString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            this.putInt(bytes.length);
+            this.ensure(bytes.length);
+            this.buffer.put(bytes);
+        }
+    }
+
+    static class Reader {
+        private final ByteBuffer buffer;
+
+        Reader(ByteBuffer buffer) { this.buffer = buffer; }
+
+        int getInt()   { return this.buffer.getInt(); }
+        long getLong() { return this.buffer.getLong(); }
+        Boolean getBoolean() { return this.buffer.get() != 0; }
+
+        int[] getInts() {
+            int[] values = new int[this.getInt()];
+            for (int i = 0; i < values.length; i++) values[i] = this.getInt();
+            return values;
+        }
+
+        String getString() {
+            byte[] bytes = new byte[this.getInt()];
+            this.buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /* Fill values from an array written with putInts(). */
+        void getInts(int[] values) {
+            if (this.getInt() != values.length) {
+                throw new IllegalStateException("Snapshot does not fit.");
+            }
+            for (int i = 0; i < values.length; i++) values[i] = this.getInt();
+        }
+    }
+
+    private Snapshot() {}
+
+    static void write(Simulation sim, Path path) throws IOException {
+        Writer out = new Writer();
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putLong(sim.getSeed());
+        out.putInt(sim.getDays());
+        out.putInt(sim.getDockCount());
+        out.putInt(sim.getFarmerCount());
+        out.putInt(sim.getBuyerSpawnTicks());
+        out.putInt(sim.getDeliverySpawnTicks());
+        out.putInt(sim.getDeliverySize());
+        out.putInt(sim.getEnclosureCapacity());
+        out.putInt(sim.getOverflow().ordinal());
+        out.putInt(sim.types.count());
+        for (int i = 0; i < sim.types.count(); i++) {
+            out.putString(sim.types.name(i));
+        }
+        sim.saveState(out);
+
+        ByteBuffer bytes = out.buffer.flip();
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (bytes.hasRemaining()) channel.write(bytes);
+        }
+        Logger.log("Checkpoint at tick " + sim.getTickCount()
+            + " written to " + path + " (" + bytes.limit() + " bytes).");
+    }
+
+    /* A simulation ready to run() from where the checkpoint was taken. The
+     * caller's lock profile setting is kept, everything else comes from
+     * the file. */
+    static Simulation read(Path path, Simulation settings) throws IOException {
+        ByteBuffer bytes;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            bytes = ByteBuffer.allocate((int) channel.size());
+            while (bytes.hasRemaining() && channel.read(bytes) >= 0) {}
+        }
+        Reader in = new Reader(bytes.flip());
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new IOException(path + " is not a farm checkpoint.");
+        }
+        Simulation sim = settings.withSeed(in.getLong());
+        if (settings.getLockSampleTicks() >= 0) {
+            sim.setLockProfile(settings.getLockSampleTicks());
+        }
+        sim.setDays(in.getInt());
+        sim.setDocks(in.getInt());
+        sim.setFarmers(in.getInt());
+        sim.setBuyerSpawnTicks(in.getInt());
+        sim.setDeliverySpawnTicks(in.getInt());
+        sim.setDeliverySize(in.getInt());
+        sim.setEnclosureCapacity(in.getInt(),
+                                 Delivery.Overflow.values()[in.getInt()]);
+        String[] names = new String[in.getInt()];
+        for (int i = 0; i < names.length; i++) names[i] = in.getString();
+        sim.setAnimalTypes(new AnimalTypes(names));
+        sim.setVirtualTime(true);
+        sim.restoreState(in);
+        Logger.log("Resumed from " + path + " at tick " + sim.getTickCount() + ".");
+        return sim;
+    }
+}
@@ -0,0 +1,434 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* Load sweep.
+ * Runs virtual-time simulations over every combination of the loads listed
+ * in a scenario file, several seeds per point, and writes a throughput
+ * versus latency curve per configuration (farmers, delivery rate and size)
+ * as the buyer rate goes up, with the saturation knee marked.
+ *
+ * The scenario file has one "key = values" line per setting, # for
+ * comments. Values are a list ("12 10 8"), a range ("6..20") or a range
+ * with a step ("6..20:2"):
+ *
+ *   buyer-spawn-ticks    = 20..6:2
+ *   delivery-spawn-ticks = 100
+ *   delivery-size        = 10
+ *   farmers              = 2 3 5
+ *   days   = 100           # measured per run, warm-up included
+ *   runs   = 10            # seeds per point
+ *   output = sweep.csv
+ *
+ * Steady state: each run is cut into one-day windows and its warm-up is
+ * dropped by MSER-5 (the truncation that minimises the standard error of
+ * what is left, batches of five windows, at most half the run). A point is
+ * steady if the buyers served kept up with those arriving. The knee of a
+ * configuration is the heaviest load, counting up from the lightest, that is
+ * steady with a mean buyer wait within KNEE_FACTOR of the lightest load's.
+ * That baseline is floored at KNEE_MIN_WAIT ticks: at a light load buyers
+ * often never wait at all, and twice nothing would put the knee at the
+ * first point with any wait. Confidence intervals use Student t (see
+ * Confidence), since a point usually has only a few runs.
+ * Every point uses the same seeds, so neighbouring points differ by the
+ * load, not the luck. */
+public class Sweep {
+    private static final double KNEE_FACTOR   = 2.0;
+    private static final double KNEE_MIN_WAIT = 10.0; // Ticks, one default buyer interval.
+    private static final double STEADY_SERVED = 0.95; // Of buyers arriving.
+    private static final int    MSER_BATCH    = 5;    // Windows.
+    private static final int    WINDOW = Simulation.DAY_DURATION;
+
+    /* The parsed scenario file. */
+    static class Scenario {
+        int[] buyerSpawnTicks    = {Simulation.BUYER_SPAWN_TICKS};
+        int[] deliverySpawnTicks = {Simulation.DELIVERY_SPAWN_TICKS};
+        int[] deliverySize       = {Simulation.DELIVERY_SIZE};
+        int[] farmers            = {Simulation.NUMBER_OF_FARMERS};
+        int   days = 100;
+        int   runs = 10;
+        Path  output = Path.of("sweep.csv");
+
+        static Scenario load(Path path) throws IOException {
+            Scenario s = new Scenario();
+            int lineNumber = 0;
+            for (String line : Files.readAllLines(path)) {
+                lineNumber++;
+                int hash = line.indexOf('#');
+                if (hash >= 0) line = line.substring(0, hash);
+                line = line.strip();
+                if (line.isEmpty()) continue;
+                int eq = line.indexOf('=');
+                if (eq < 0) {
+                    throw new IOException(path + ":" + lineNumber + ": expected key = values.");
+                }
+                String key   = line.substring(0, eq).strip();
+                String value = line.substring(eq + 1).strip();
+                try {
+                    switch (key) {
+                    case "buyer-spawn-ticks":    s.buyerSpawnTicks    = values(value); break;
+                    case "delivery-spawn-ticks": s.deliverySpawnTicks = values(value); break;
+                    case "delivery-size":        s.deliverySize       = values(value); break;
+                    case "farmers":              s.farmers            = values(value); break;
+                    case "days":   s.days   = Integer.parseInt(value); break;
+                    case "runs":   s.runs   = Integer.parseInt(value); break;
+                    case "output": s.output = Path.of(value);          break;
+                    default:
+                        throw new IOException(path + ":" + lineNumber + ": unknown key " + key + ".");
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException(path + ":" + lineNumber + ": bad number in " + value + ".");
+                }
+            }
+            if (s.days < 2 * MSER_BATCH || s.runs < 1) {
+                throw new IOException(path + ": need days >= "
+                    + 2 * MSER_BATCH + " and runs >= 1.");
+            }
+            return s;
+        }
+
+        /* "a b c", "a..b" or "a..b:step", counting down if b < a. */
+        private static int[] values(String text) {
+            ArrayList<Integer> list = new ArrayList<>();
+            for (String item : text.split("[\\s,]+")) {
+                int dots = item.indexOf("..");
+                if (dots < 0) {
+                    list.add(Integer.parseInt(item));
+                    continue;
+                }
+                int colon = item.indexOf(':');
+                int from  = Integer.parseInt(item.substring(0, dots));
+                int to    = Integer.parseInt(item.substring(dots + 2,
+                                colon < 0 ? item.length() : colon));
+                int step  = colon < 0 ? 1 : Integer.parseInt(item.substring(colon + 1));
+                if (step < 1) throw new NumberFormatException();
+                if (from <= to) {
+                    for (int v = from; v <= to; v += step) list.add(v);
+                } else {
+                    for (int v = from; v >= to; v -= step) list.add(v);
+                }
+            }
+            return list.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    /* One load setting. */
+    private static class Point {
+        final int farmers, deliverySpawnTicks, deliverySize, buyerSpawnTicks;
+        Run[] runs;
+
+        Point(int farmers, int deliverySpawnTicks, int deliverySize,
+              int buyerSpawnTicks) {
+            this.farmers            = farmers;
+            this.deliverySpawnTicks = deliverySpawnTicks;
+            this.deliverySize       = deliverySize;
+            this.buyerSpawnTicks    = buyerSpawnTicks;
+        }
+
+        Boolean sameConfiguration(Point other) {
+            return this.farmers == other.farmers
+                && this.deliverySpawnTicks == other.deliverySpawnTicks
+                && this.deliverySize == other.deliverySize;
+        }
+
+        String configuration() {
+            return "farmers=" + this.farmers
+                + " delivery-spawn-ticks=" + this.deliverySpawnTicks
+                + " delivery-size=" + this.deliverySize;
+        }
+
+        double offered() { return mean(this.runs, r -> r.offered); }
+        double served()  { return mean(this.runs, r -> r.served); }
+        double meanWait() { return mean(this.runs, r -> r.wait); }
+        double warmupDays() { return mean(this.runs, r -> r.warmupWindows); }
+
+        double steadyShare() {
+            int steady = 0;
+            for (Run r : this.runs) if (r.isSteady()) steady++;
+            return (double) steady / this.runs.length;
+        }
+
+        Boolean isSteady() { return this.steadyShare() >= 0.5; }
+
+        Histogram waits() {
+            Histogram all = new Histogram();
+            for (Run r : this.runs) all.add(r.waits);
+            return all;
+        }
+    }
+
+    /* What one run contributes, after its warm-up. Rates are per day. */
+    private static class Run {
+        double offered;
+        double served;
+        double wait;
+        int    warmupWindows;
+        Histogram waits;
+
+        Boolean isSteady() { return this.served >= STEADY_SERVED * this.offered; }
+    }
+
+    /* Per-window totals of one run as it goes. */
+    private static class Windows {
+        final long[] spawned;
+        final long[] sold;
+        final double[] wait; // Mean wait of the buys in each window.
+        /* Cumulative buyer waits at each MSER batch boundary up to half the
+         * run, so the histogram after any warm-up can be had by since(). */
+        final Histogram[] atBatch;
+        Histogram last;
+        long lastSpawned, lastSold;
+        int n;
+
+        Windows(int windows) {
+            this.spawned = new long[windows];
+            this.sold    = new long[windows];
+            this.wait    = new double[windows];
+            this.atBatch = new Histogram[windows / MSER_BATCH / 2 + 1];
+            this.last    = new Histogram();
+            this.atBatch[0] = this.last;
+        }
+
+        void close(Metrics m) {
+            if (this.n == this.spawned.length) return;
+            Histogram now = m.getBuyerWait();
+            Histogram window = now.since(this.last);
+            this.spawned[this.n] = m.getBuyersSpawned() - this.lastSpawned;
+            this.sold[this.n]    = m.getTotalBought() - this.lastSold;
+            this.wait[this.n]    = window.getMean();
+            this.lastSpawned     = m.getBuyersSpawned();
+            this.lastSold        = m.getTotalBought();
+            this.last            = now;
+            this.n++;
+            if (this.n % MSER_BATCH == 0 && this.n / MSER_BATCH < this.atBatch.length) {
+                this.atBatch[this.n / MSER_BATCH] = now;
+            }
+        }
+    }
+
+    private interface RunValue { double of(Run r); }
+
+    private final Simulation template;
+    private final Scenario scenario;
+    private final int parallelism;
+
+    Sweep(Simulation template, Scenario scenario, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Sweep needs at least one worker.");
+        }
+        this.template    = template;
+        this.scenario    = scenario;
+        this.parallelism = parallelism;
+        this.template.setVirtualTime(true);
+    }
+
+    /* Run every point and write the curves. Per-run logging is turned down
+     * to errors while the sweep runs. */
+    public void run() throws InterruptedException, IOException {
+        ArrayList<Point> points = this.points();
+        Logger.log("Sweep: " + points.size() + " points x " + this.scenario.runs
+            + " runs of " + this.scenario.days + " days, " + this.parallelism
+            + " in parallel");
+        Logger.Level level = Logger.getLevel();
+        Logger.setLevel(Logger.Level.ERROR);
+        long start = System.nanoTime();
+        try {
+            this.runAll(points);
+        } finally {
+            Logger.setLevel(level);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        this.report(points, seconds);
+    }
+
+    /* Every combination, each configuration's buyer rates lightest first. */
+    private ArrayList<Point> points() {
+        Scenario s = this.scenario;
+        int[] buyers = s.buyerSpawnTicks.clone();
+        Arrays.sort(buyers);
+        ArrayList<Point> points = new ArrayList<>();
+        for (int farmers : s.farmers) {
+            for (int deliveryTicks : s.deliverySpawnTicks) {
+                for (int size : s.deliverySize) {
+                    for (int i = buyers.length - 1; i >= 0; i--) {
+                        points.add(new Point(farmers, deliveryTicks, size, buyers[i]));
+                    }
+                }
+            }
+        }
+        return points;
+    }
+
+    private void runAll(ArrayList<Point> points) throws InterruptedException {
+        long[] seeds = new long[this.scenario.runs];
+        SplittableRandom random = new SplittableRandom(this.template.getSeed());
+        for (int i = 0; i < seeds.length; i++) seeds[i] = random.nextLong();
+
+        List<Callable<Run>> tasks = new ArrayList<>();
+        for (Point point : points) {
+            point.runs = new Run[seeds.length];
+            for (long seed : seeds) tasks.add(() -> this.runOne(point, seed));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(this.parallelism);
+        try {
+            List<Future<Run>> futures = pool.invokeAll(tasks);
+            int next = 0;
+            for (Point point : points) {
+                for (int i = 0; i < seeds.length; i++) {
+                    point.runs[i] = futures.get(next++).get();
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Sweep run failed.", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private Run runOne(Point point, long seed) {
+        Simulation sim = this.template.withSeed(seed);
+        sim.setFarmers(point.farmers);
+        sim.setBuyerSpawnTicks(point.buyerSpawnTicks);
+        sim.setDeliverySpawnTicks(point.deliverySpawnTicks);
+        sim.setDeliverySize(point.deliverySize);
+        sim.setDays(this.scenario.days);
+        sim.init();
+        Windows windows = new Windows(this.scenario.days * Simulation.DAY_DURATION / WINDOW);
+        sim.everyWindow(WINDOW, tick -> windows.close(sim.metrics));
+        sim.run();
+
+        int batches = mserTruncation(windows.wait, windows.n);
+        int from = batches * MSER_BATCH;
+        Run run = new Run();
+        run.warmupWindows = from;
+        long spawned = 0;
+        long sold    = 0;
+        for (int i = from; i < windows.n; i++) {
+            spawned += windows.spawned[i];
+            sold    += windows.sold[i];
+        }
+        double days = (double) (windows.n - from) * WINDOW / Simulation.DAY_DURATION;
+        run.offered = spawned / days;
+        run.served  = sold / days;
+        run.waits   = windows.last.since(windows.atBatch[batches]);
+        run.wait    = run.waits.getMean();
+        return run;
+    }
+
+    /* MSER-5: how many batches of MSER_BATCH windows to drop so what is
+     * left has the smallest variance / (batches left)^2. At most half. */
+    private static int mserTruncation(double[] values, int n) {
+        int k = n / MSER_BATCH;
+        double[] batch = new double[k];
+        for (int j = 0; j < k; j++) {
+            double sum = 0;
+            for (int i = 0; i < MSER_BATCH; i++) sum += values[j * MSER_BATCH + i];
+            batch[j] = sum / MSER_BATCH;
+        }
+        int best = 0;
+        double bestScore = Double.MAX_VALUE;
+        for (int d = 0; d <= k / 2; d++) {
+            int left = k - d;
+            double mean = 0;
+            for (int j = d; j < k; j++) mean += batch[j];
+            mean /= left;
+            double squares = 0;
+            for (int j = d; j < k; j++) squares += (batch[j] - mean) * (batch[j] - mean);
+            double score = squares / ((double) left * left);
+            if (score < bestScore) {
+                bestScore = score;
+                best = d;
+            }
+        }
+        return best;
+    }
+
+    private void report(ArrayList<Point> points, double seconds) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(this.scenario.output)) {
+            out.write("farmers,delivery_spawn_ticks,delivery_size,buyer_spawn_ticks,"
+                + "offered_per_day,served_per_day,wait_mean,wait_ci,wait_p50,"
+                + "wait_p99,steady,warmup_days,knee");
+            out.newLine();
+            int first = 0;
+            while (first < points.size()) {
+                int end = first;
+                while (end < points.size() && points.get(end).sameConfiguration(points.get(first))) {
+                    end++;
+                }
+                List<Point> curve = points.subList(first, end);
+                Point knee = knee(curve);
+                for (Point p : curve) {
+                    Histogram waits = p.waits();
+                    out.write(String.format(Locale.ROOT,
+                        "%d,%d,%d,%d,%.2f,%.2f,%.2f,%.2f,%d,%d,%.2f,%.1f,%d",
+                        p.farmers, p.deliverySpawnTicks, p.deliverySize,
+                        p.buyerSpawnTicks, p.offered(), p.served(), p.meanWait(),
+                        halfWidth(p.runs, r -> r.wait),
+                        waits.getPercentile(0.50), waits.getPercentile(0.99),
+                        p.steadyShare(), p.warmupDays(), p == knee ? 1 : 0));
+                    out.newLine();
+                }
+                this.logCurve(curve, knee);
+                first = end;
+            }
+        }
+        Logger.log(String.format("Sweep done in %.2f s, curves in %s",
+                                 seconds, this.scenario.output));
+    }
+
+    /* The heaviest load, counting up from the lightest, that is steady and
+     * within KNEE_FACTOR of the lightest load's wait, or of KNEE_MIN_WAIT if
+     * that is less. Null if even the lightest isn't steady. */
+    private static Point knee(List<Point> curve) {
+        Point knee = null;
+        double base = Math.max(curve.get(0).meanWait(), KNEE_MIN_WAIT);
+        for (Point p : curve) {
+            if (!p.isSteady() || p.meanWait() > KNEE_FACTOR * base) break;
+            knee = p;
+        }
+        return knee;
+    }
+
+    private void logCurve(List<Point> curve, Point knee) {
+        Logger.log(curve.get(0).configuration() + ":");
+        for (Point p : curve) {
+            Logger.log(String.format(Locale.ROOT,
+                "  buyer-spawn-ticks=%3d offered=%7.2f/day served=%7.2f/day"
+                + " wait=%8.2f ± %.2f%s%s",
+                p.buyerSpawnTicks, p.offered(), p.served(), p.meanWait(),
+                halfWidth(p.runs, r -> r.wait),
+                p.isSteady() ? "" : " (not steady)",
+                p == knee ? "  <- knee" : ""));
+        }
+        if (knee == null) {
+            Logger.log("  saturated at every load swept, no knee");
+        }
+    }
+
+    private static double mean(Run[] runs, RunValue value) {
+        double sum = 0;
+        for (Run r : runs) sum += value.of(r);
+        return sum / runs.length;
+    }
+
+    /* Half-width of the 95% confidence interval of the mean, 0 for one run. */
+    private static double halfWidth(Run[] runs, RunValue value) {
+        int n = runs.length;
+        if (n < 2) return 0;
+        double mean = mean(runs, value);
+        double squares = 0;
+        for (Run r : runs) squares += (value.of(r) - mean) * (value.of(r) - mean);
+        return Confidence.halfWidth95(Math.sqrt(squares / (n - 1)), n);
+    }
+}
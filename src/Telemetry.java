@@ -0,0 +1,160 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/* Live view of a running simulation over JMX, for JConsole or any JMX
+ * client. One MXBean for the farm as a whole, one per field and one per
+ * enclosure dock, all under the "farm" domain. Nothing is sampled in the
+ * background: every attribute is read off the simulation when a client
+ * asks, so an unwatched run pays nothing for it. */
+public class Telemetry {
+    public interface FarmMXBean {
+        int      getTick();
+        String   getSeed();
+        int      getLiveThreadCount();
+        int      getPeakThreadCount();
+        int      getEnclosureBacklog();
+        int      getPendingDeliveries();
+        String[] getFarmerStates();
+        long     getAnimalsSold();
+        long     getAnimalsStocked();
+        long     getSoldPer100Ticks();
+        long     getStockedPer100Ticks();
+    }
+
+    public interface FieldMXBean {
+        String getFieldType();
+        int    getAnimalCount();
+        int    getCapacity();
+        int    getBuyerCount();
+        int    getFarmerCount();
+        int    getUrgency();
+        int    getFarmersScheduled();
+    }
+
+    public interface DockMXBean {
+        int getAnimalCount();
+        int getPendingDeliveries();
+        int getLoad();
+    }
+
+    private static class Farm implements FarmMXBean {
+        private final Simulation sim;
+
+        Farm(Simulation sim) { this.sim = sim; }
+
+        public int getTick() { return this.sim.getTickCount(); }
+        public String getSeed() { return Long.toHexString(this.sim.getSeed()); }
+        public int getLiveThreadCount() { return this.sim.getLiveThreadCount(); }
+        public int getPeakThreadCount() { return this.sim.getPeakThreadCount(); }
+
+        public int getEnclosureBacklog() {
+            int animals = 0;
+            for (int i = 0; i < this.sim.getDockCount(); i++) {
+                animals += this.sim.getDock(i).getAnimalCount();
+            }
+            return animals;
+        }
+
+        public int getPendingDeliveries() {
+            int deliveries = 0;
+            for (int i = 0; i < this.sim.getDockCount(); i++) {
+                deliveries += this.sim.getDock(i).getDeliveryCount();
+            }
+            return deliveries;
+        }
+
+        public String[] getFarmerStates() {
+            String[] states = new String[this.sim.getFarmerCount()];
+            for (int i = 0; i < states.length; i++) {
+                states[i] = "Farmer-" + (i+1) + ": "
+                    + this.sim.getFarmer(i).getState();
+            }
+            return states;
+        }
+
+        public long getAnimalsSold() { return this.sim.metrics.getTotalBought(); }
+        public long getAnimalsStocked() { return this.sim.metrics.getTotalStocked(); }
+        public long getSoldPer100Ticks() {
+            return this.sim.metrics.getSoldRate(this.sim.getTickCount());
+        }
+        public long getStockedPer100Ticks() {
+            return this.sim.metrics.getStockedRate(this.sim.getTickCount());
+        }
+    }
+
+    private static class FieldView implements FieldMXBean {
+        private final Field field;
+
+        FieldView(Field field) { this.field = field; }
+
+        public String getFieldType() { return this.field.getFieldType(); }
+        public int getAnimalCount() { return this.field.getAnimalCount(); }
+        public int getCapacity() { return this.field.getCapacity(); }
+        public int getBuyerCount() { return this.field.getBuyerCount(); }
+        public int getFarmerCount() { return this.field.getFarmerCount(); }
+        public int getUrgency() { return this.field.getUrgency(); }
+        public int getFarmersScheduled() { return this.field.getFarmersScheduled(); }
+    }
+
+    private static class DockView implements DockMXBean {
+        private final Enclosure dock;
+
+        DockView(Enclosure dock) { this.dock = dock; }
+
+        public int getAnimalCount() { return this.dock.getAnimalCount(); }
+        public int getPendingDeliveries() { return this.dock.getDeliveryCount(); }
+        public int getLoad() { return this.dock.getLoad(); }
+    }
+
+    private final MBeanServer server;
+    private final ArrayList<ObjectName> names;
+
+    private Telemetry() {
+        this.server = ManagementFactory.getPlatformMBeanServer();
+        this.names  = new ArrayList<>();
+    }
+
+    /* Register the MXBeans for an initialised simulation. A failure is
+     * logged and leaves the run without telemetry rather than stopping it. */
+    static Telemetry register(Simulation sim) {
+        Telemetry telemetry = new Telemetry();
+        try {
+            telemetry.add("farm:type=Farm", new Farm(sim));
+            for (int i = 0; i < sim.getFieldCount(); i++) {
+                Field field = sim.getField(i);
+                telemetry.add("farm:type=Field,name="
+                    + ObjectName.quote(field.getFieldType()),
+                    new FieldView(field));
+            }
+            for (int i = 0; i < sim.getDockCount(); i++) {
+                telemetry.add("farm:type=Dock,id=" + i,
+                              new DockView(sim.getDock(i)));
+            }
+            Logger.status("JMX telemetry registered under farm:*");
+        } catch (JMException e) {
+            Logger.error("Could not register JMX telemetry: " + e);
+            telemetry.unregister();
+        }
+        return telemetry;
+    }
+
+    private void add(String name, Object bean) throws JMException {
+        ObjectName objectName = new ObjectName(name);
+        this.server.registerMBean(bean, objectName);
+        this.names.add(objectName);
+    }
+
+    void unregister() {
+        for (ObjectName name : this.names) {
+            try {
+                this.server.unregisterMBean(name);
+            } catch (JMException e) {
+                Logger.error("Could not unregister " + name + ": " + e);
+            }
+        }
+        this.names.clear();
+    }
+}
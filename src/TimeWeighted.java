@@ -0,0 +1,81 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/* A level that changes at ticks (animals waiting, animals in transit),
+ * integrated over time so its average, and by Little's law the average
+ * time spent waiting, can be reported. Also counts the ticks the level was
+ * above zero.
+ *
+ * Lock-free: the tick it was last advanced to and the level share one
+ * word, changed by CAS. Whoever moves the tick on adds the span it covered
+ * to the area and busy ticks, so every span is counted exactly once. A
+ * change with an older tick than the word's counts from the word's tick,
+ * as if it came late. */
+public class TimeWeighted {
+    private final AtomicLong state; // since << 32 | level as an int.
+    private final LongAdder  area;
+    private final LongAdder  busyTicks;
+
+    TimeWeighted() {
+        this.state     = new AtomicLong(0);
+        this.area      = new LongAdder();
+        this.busyTicks = new LongAdder();
+    }
+
+    private static int since(long s) { return (int) (s >>> 32); }
+    private static int level(long s) { return (int) s; }
+    private static long pack(int since, long level) {
+        return (long) since << 32 | (level & 0xFFFFFFFFL);
+    }
+
+    public void add(long delta, int tick) {
+        this.advance(tick, delta);
+    }
+
+    /* Sum of level * ticks up to tick. */
+    public long getArea(int tick) {
+        this.advance(tick, 0);
+        return this.area.sum();
+    }
+
+    /* Ticks up to tick during which the level was above zero. */
+    public long getBusyTicks(int tick) {
+        this.advance(tick, 0);
+        return this.busyTicks.sum();
+    }
+
+    void save(Snapshot.Writer out) {
+        long s = this.state.get();
+        out.putLong(level(s));
+        out.putLong(this.area.sum());
+        out.putLong(this.busyTicks.sum());
+        out.putInt(since(s));
+    }
+
+    void restore(Snapshot.Reader in) {
+        long level = in.getLong();
+        this.area.reset();
+        this.area.add(in.getLong());
+        this.busyTicks.reset();
+        this.busyTicks.add(in.getLong());
+        this.state.set(pack(in.getInt(), level));
+    }
+
+    /* Move the word on to tick and add delta to the level, then count the
+     * span it moved over at the old level. */
+    private void advance(int tick, long delta) {
+        long s;
+        int  since;
+        while (true) {
+            s = this.state.get();
+            since = since(s);
+            if (delta == 0 && tick <= since) return;
+            long next = pack(Math.max(since, tick), level(s) + delta);
+            if (this.state.compareAndSet(s, next)) break;
+        }
+        if (tick <= since) return;
+        int level = level(s);
+        this.area.add((long) level * (tick - since));
+        if (level > 0) this.busyTicks.add(tick - since);
+    }
+}
@@ -0,0 +1,202 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/* Binary event trace.
+ * A header (magic, version, animal type names) followed by fixed-width
+ * records, big-endian:
+ *
+ *   int   tick
+ *   int   actor   (kind in the top 4 bits, actor number below)
+ *   short event type
+ *   short field id (animal type id, index into the header's type names,
+ *                   -1 for none; open() refuses more types than fit)
+ *   int   count   (meaning depends on the event type, see below)
+ *
+ * Actors append records to a lock-free ring, the same way Logger does, and
+ * a writer thread moves them into a direct buffer and through a
+ * FileChannel, so recording never blocks on a shared lock or on output.
+ * Nothing is recorded unless open() was called. TraceDecoder reads it back.
+ * There is one trace per process, so only a single simulation should record
+ * into it; ticks are read from the simulation running on the caller's
+ * thread. */
+public class Trace {
+    public static final int   MAGIC       = 0x46524D54; // "FRMT"
+    public static final short VERSION     = 1;
+    public static final int   RECORD_SIZE = 16;
+    public static final int   NO_FIELD    = -1;
+
+    /* Event types. */
+    public static final short DELIVERY_GENERATED = 0; // count: animals of field
+    public static final short DELIVERY_RECEIVED  = 1; // count: animals of field
+    public static final short ENCLOSURE_TAKE     = 2; // count: animals taken
+    public static final short FARMER_WALK        = 3; // count: walk ticks
+    public static final short FARMER_STOCK       = 4; // count: animals placed
+    public static final short FARMER_BREAK       = 5; // count: break ticks
+    public static final short BUYER_WAIT         = 6; // count: attempt number
+    public static final short BUYER_BUY          = 7; // count: ticks waited
+    public static final short DELIVERY_REJECTED  = 8; // count: animals of field
+
+    /* Actor kinds. */
+    public static final int MAIN     = 0;
+    public static final int FARMER   = 1;
+    public static final int BUYER    = 2;
+    public static final int DELIVERY = 3;
+
+    private static final int KIND_SHIFT  = 28;
+    private static final int NUMBER_MASK = (1 << KIND_SHIFT) - 1;
+    private static final int BUFFER_SIZE = RECORD_SIZE * 4096;
+    private static final int RING_SIZE   = 1 << 14; // Power of two.
+    private static final int RING_MASK   = RING_SIZE - 1;
+    private static final int SPINS_BEFORE_YIELD = 64;
+
+    /* Bounded multi-producer ring, two longs per record: tick << 32 |
+     * actor, and type << 48 | field << 32 | count. sequence[i] works as in
+     * Logger: a producer holding position p waits for sequence == p, the
+     * writer for sequence == p + 1. */
+    private static final long[]          ring     = new long[2 * RING_SIZE];
+    private static final AtomicLongArray sequence = new AtomicLongArray(RING_SIZE);
+    private static final AtomicLong      head     = new AtomicLong(0);
+    private static long tail = 0; // Only touched by the writer thread.
+
+    private static volatile Boolean enabled  = false;
+    private static volatile Boolean closed   = false;
+    private static volatile Boolean sleeping = false; // See Logger.
+    private static FileChannel channel;
+    private static ByteBuffer buffer;
+    private static Thread writer;
+
+    static {
+        for (int i = 0; i < RING_SIZE; i++) {
+            sequence.set(i, i);
+        }
+    }
+
+    public static Boolean isEnabled() { return enabled; }
+
+    public static int actorId(int kind, int number) {
+        return (kind << KIND_SHIFT) | (number & NUMBER_MASK);
+    }
+    public static int actorKind(int actor)   { return actor >>> KIND_SHIFT; }
+    public static int actorNumber(int actor) { return actor & NUMBER_MASK; }
+
+    /* Start a trace at path, its header written straight away. The header
+     * keeps counts and name lengths in shorts, so a --animal-types file
+     * with more types, or a longer name, than a short holds is refused. */
+    public static void open(String path, AnimalTypes types) throws IOException {
+        if (types.count() > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Can't trace " + types.count()
+                + " animal types, at most " + Short.MAX_VALUE + ".");
+        }
+        byte[][] names = new byte[types.count()][];
+        int size = 4 + 2 + 2;
+        for (int i = 0; i < names.length; i++) {
+            names[i] = types.name(i).getBytes(StandardCharsets.UTF_8);
+            if (names[i].length > Short.MAX_VALUE) {
+                throw new IllegalArgumentException("Animal type name "
+                    + types.name(i).substring(0, 16) + "... is too long to trace.");
+            }
+            size += 2 + names[i].length;
+        }
+        ByteBuffer header = ByteBuffer.allocate(size);
+        header.putInt(MAGIC);
+        header.putShort(VERSION);
+        header.putShort((short) names.length);
+        for (byte[] name : names) {
+            header.putShort((short) name.length);
+            header.put(name);
+        }
+        header.flip();
+        channel = FileChannel.open(Path.of(path),
+                                   StandardOpenOption.CREATE,
+                                   StandardOpenOption.WRITE,
+                                   StandardOpenOption.TRUNCATE_EXISTING);
+        while (header.hasRemaining()) channel.write(header);
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        writer = Thread.ofPlatform()
+                       .name("Trace")
+                       .daemon(true)
+                       .start(Trace::drain);
+        enabled = true;
+    }
+
+    public static void record(int actor, short type, int field, int count) {
+        if (!enabled) return;
+        Simulation sim = Simulation.current();
+        int tick = sim == null ? 0 : sim.getTickCount();
+        long position = head.getAndIncrement();
+        int slot = (int) (position & RING_MASK);
+        int spins = 0;
+        // Ring is full: wait for the writer to free our slot.
+        while (sequence.get(slot) != position) {
+            if (++spins < SPINS_BEFORE_YIELD) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+        ring[2 * slot]     = (long) tick << 32 | (actor & 0xFFFFFFFFL);
+        ring[2 * slot + 1] = (long) type << 48 | (field & 0xFFFFL) << 32
+                           | (count & 0xFFFFFFFFL);
+        sequence.set(slot, position + 1);
+        if (sleeping) LockSupport.unpark(writer);
+    }
+
+    /* Writer thread: move records from the ring to the buffer, writing it
+     * out when full or when the ring runs dry, then parking until a record
+     * is published. Closes the channel once close() was called and every
+     * claimed slot has been written. */
+    private static void drain() {
+        while (true) {
+            long position = tail;
+            int slot = (int) (position & RING_MASK);
+            if (sequence.get(slot) == position + 1) {
+                if (buffer.remaining() < RECORD_SIZE) flush();
+                buffer.putLong(ring[2 * slot]).putLong(ring[2 * slot + 1]);
+                sequence.set(slot, position + RING_SIZE);
+                tail = position + 1;
+            } else {
+                flush();
+                if (closed && position == head.get()) break;
+                sleeping = true;
+                if (sequence.get(slot) != position + 1 && !closed) {
+                    LockSupport.park();
+                }
+                sleeping = false;
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Logger.error("Trace close failed: " + e);
+        }
+    }
+
+    private static void flush() {
+        if (buffer.position() == 0) return;
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        } catch (IOException e) {
+            Logger.error("Trace write failed: " + e);
+            enabled = false;
+        }
+        buffer.clear();
+    }
+
+    /* Stop recording, wait until every record so far has been written,
+     * and close the file. */
+    public static void close() throws InterruptedException {
+        if (writer == null) return;
+        enabled = false;
+        closed  = true;
+        LockSupport.unpark(writer);
+        writer.join();
+    }
+}
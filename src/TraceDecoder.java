@@ -0,0 +1,185 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/* Reads a trace written by Trace.
+ * Either streams every record into a Listener, or (from the command line)
+ * prints the trace back in the Logger's text layout. The records are mapped
+ * and walked WINDOW_SIZE bytes at a time, as LogAnalyzer does, since a
+ * single mapping can't go past 2 GB and a year-long trace does:
+ *
+ *   java -cp build/ TraceDecoder trace.bin            rebuild the text log
+ *   java -cp build/ TraceDecoder trace.bin --summary  count events by type */
+public class TraceDecoder {
+
+    public interface Listener {
+        void onEvent(int tick, int actor, short type, int field, int count);
+    }
+
+    private final static int
+        WINDOW_SIZE = Trace.RECORD_SIZE << 22; // 64 MB of whole records.
+
+    private static final String FORMAT = "[%s][%4d][%10s] -> %s%n";
+    private static final String[] EVENT_NAMES = {
+        "DELIVERY_GENERATED", "DELIVERY_RECEIVED", "ENCLOSURE_TAKE",
+        "FARMER_WALK", "FARMER_STOCK", "FARMER_BREAK",
+        "BUYER_WAIT", "BUYER_BUY", "DELIVERY_REJECTED"
+    };
+
+    private final Path path;
+    private final long size;
+    private String[] fieldNames;
+    private long recordsStart;
+
+    TraceDecoder(Path path) throws IOException {
+        this.path = path;
+        try (FileChannel channel
+                = FileChannel.open(path, StandardOpenOption.READ)) {
+            this.size = channel.size();
+            ByteBuffer start = read(channel, 0, 8);
+            if (start.getInt() != Trace.MAGIC) {
+                throw new IOException(path + " is not a farm trace.");
+            }
+            short version = start.getShort();
+            if (version != Trace.VERSION) {
+                throw new IOException("Unsupported trace version " + version);
+            }
+            this.fieldNames = new String[start.getShort()];
+            long position = 8;
+            for (int i = 0; i < this.fieldNames.length; i++) {
+                int length = read(channel, position, 2).getShort();
+                byte[] name = new byte[length];
+                read(channel, position + 2, length).get(name);
+                this.fieldNames[i] = new String(name, StandardCharsets.UTF_8);
+                position += 2 + length;
+            }
+            this.recordsStart = position;
+        }
+    }
+
+    public String[] getFieldNames() { return this.fieldNames; }
+
+    public long getRecordCount() {
+        return (this.size - this.recordsStart) / Trace.RECORD_SIZE;
+    }
+
+    /* Stream every record, in the order it was written. */
+    public void forEach(Listener listener) throws IOException {
+        long end = this.recordsStart + this.getRecordCount() * Trace.RECORD_SIZE;
+        try (FileChannel channel
+                = FileChannel.open(this.path, StandardOpenOption.READ)) {
+            for (long start = this.recordsStart; start < end; start += WINDOW_SIZE) {
+                int length = (int) Math.min(WINDOW_SIZE, end - start);
+                MappedByteBuffer data
+                    = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+                for (int p = 0; p < length; p += Trace.RECORD_SIZE) {
+                    listener.onEvent(data.getInt(p),
+                                     data.getInt(p + 4),
+                                     data.getShort(p + 8),
+                                     data.getShort(p + 10),
+                                     data.getInt(p + 12));
+                }
+            }
+        }
+    }
+
+    /* Exactly n bytes from position on, ready to read. */
+    private static ByteBuffer read(FileChannel channel, long position, int n)
+            throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(n);
+        while (b.hasRemaining()) {
+            if (channel.read(b, position + b.position()) < 0) {
+                throw new EOFException("Trace header cut short.");
+            }
+        }
+        return b.flip();
+    }
+
+    public String fieldName(int field) {
+        return field == Trace.NO_FIELD ? "" : this.fieldNames[field];
+    }
+
+    public static String actorName(int actor) {
+        int number = Trace.actorNumber(actor);
+        switch (Trace.actorKind(actor)) {
+        case Trace.FARMER:   return "Farmer-" + number;
+        case Trace.BUYER:    return "Buyer-" + number;
+        case Trace.DELIVERY: return "Deliv-" + number;
+        default:             return "main";
+        }
+    }
+
+    /* Text for a record, worded like the matching Logger message. */
+    public String describe(short type, int field, int count) {
+        String name = this.fieldName(field);
+        switch (type) {
+        case Trace.DELIVERY_GENERATED:
+            return "Delivery generated: " + name + "=" + count;
+        case Trace.DELIVERY_RECEIVED:
+            return "Delivery received: " + name + "=" + count;
+        case Trace.ENCLOSURE_TAKE:
+            return "took " + count + " " + name + " from Enclosure.";
+        case Trace.FARMER_WALK:
+            if (field == Trace.NO_FIELD) {
+                return "is going back to Enclosure. (" + count + " ticks)";
+            }
+            return "is walking to the Field " + name + " (" + count + " ticks)";
+        case Trace.FARMER_STOCK:
+            return "is placing " + count + " " + name + " in the Field";
+        case Trace.FARMER_BREAK:
+            return "Farmer is taking a break. (" + count + " ticks)";
+        case Trace.BUYER_WAIT:
+            return "wants to buy 1 " + name;
+        case Trace.BUYER_BUY:
+            return name + " bought successfully. (waited " + count + " ticks)";
+        case Trace.DELIVERY_REJECTED:
+            return "Delivery rejected: " + name + "=" + count;
+        default:
+            return "unknown event " + type;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: TraceDecoder <trace> [--summary]");
+            System.exit(1);
+        }
+        TraceDecoder decoder = new TraceDecoder(Path.of(args[0]));
+
+        if (args.length > 1 && args[1].equals("--summary")) {
+            long[] counts = new long[EVENT_NAMES.length];
+            long[] totals = new long[EVENT_NAMES.length];
+            decoder.forEach((tick, actor, type, field, count) -> {
+                if (type < 0 || type >= EVENT_NAMES.length) return;
+                counts[type] += 1;
+                totals[type] += count;
+            });
+            System.out.printf("%d records%n", decoder.getRecordCount());
+            for (int i = 0; i < EVENT_NAMES.length; i++) {
+                System.out.printf("%-20s %10d events %12d total count%n",
+                                  EVENT_NAMES[i], counts[i], totals[i]);
+            }
+            return;
+        }
+
+        StringBuilder out = new StringBuilder(1 << 16);
+        decoder.forEach((tick, actor, type, field, count) -> {
+            out.append(String.format(FORMAT,
+                                     'T',
+                                     tick,
+                                     actorName(actor),
+                                     decoder.describe(type, field, count)));
+            if (out.length() > (1 << 15)) {
+                System.out.print(out);
+                out.setLength(0);
+            }
+        });
+        System.out.print(out);
+        System.out.flush();
+    }
+}
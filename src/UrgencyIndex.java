@@ -0,0 +1,204 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* Fields ordered by urgency, kept up to date as the fields change.
+ * An indexed binary max-heap of field ids. mostUrgent() copies the top k
+ * ids out in O(k log k) by walking the heap with a small frontier, so a
+ * farmer picking from thousands of fields never looks at more than he
+ * needs.
+ *
+ * A Field calls update() on every buy and stock, so update() takes no lock:
+ * it marks the field dirty with one CAS and, if it wasn't already, puts its
+ * id on a lock-free queue. mostUrgent() drains the queue under the index
+ * lock, re-reading each dirty field's urgency and moving it in O(log n),
+ * before it walks the heap. A field is cleared before its urgency is read,
+ * so a change after the read marks it again; a query may miss an update()
+ * still in flight, which is as stale as a farmer can already be by the
+ * time he reaches the field. Ties go to the lower field id. */
+public class UrgencyIndex {
+    private final Field[] fields; // By id.
+    private final int[] heap;     // Field ids in heap order.
+    private final int[] position; // Where each field id sits in heap.
+    private final int[] urgency;  // Last urgency seen per field id.
+    private final int[] frontier; // Scratch for mostUrgent(), heap slots.
+    private final ReentrantLock lock;
+    private int size;
+
+    /* 1 while a field's id is queued. */
+    private final AtomicIntegerArray dirty;
+    /* Dirty field ids + 1, 0 for a slot not written yet. A field is queued
+     * at most once, so fieldCount slots never overflow. */
+    private final AtomicIntegerArray queue;
+    private final AtomicLong queueTail;
+    private long queueHead; // Only moved under lock.
+
+    UrgencyIndex(int fieldCount) {
+        this.fields   = new Field[fieldCount];
+        this.heap     = new int[fieldCount];
+        this.position = new int[fieldCount];
+        this.urgency  = new int[fieldCount];
+        this.frontier = new int[fieldCount + 1];
+        this.lock     = LockProfiler.lock("UrgencyIndex lock");
+        this.size     = 0;
+        this.dirty     = new AtomicIntegerArray(fieldCount);
+        this.queue     = new AtomicIntegerArray(fieldCount);
+        this.queueTail = new AtomicLong(0);
+        this.queueHead = 0;
+    }
+
+    /* Start tracking a field. Field ids must be 0..fieldCount-1. */
+    public void add(Field field) {
+        this.lock.lock();
+        try {
+            int id = field.getFieldId();
+            this.fields[id]   = field;
+            this.urgency[id]  = field.getUrgency();
+            this.heap[this.size] = id;
+            this.position[id] = this.size;
+            this.size += 1;
+            this.siftUp(this.size - 1);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /* The field's urgency may have changed: queue it to be re-read by the
+     * next mostUrgent(). */
+    public void update(Field field) {
+        int id = field.getFieldId();
+        if (this.dirty.get(id) != 0 || !this.dirty.compareAndSet(id, 0, 1)) return;
+        long tail = this.queueTail.getAndIncrement();
+        this.queue.set((int) (tail % this.queue.length()), id + 1);
+    }
+
+    /* The urgency last applied to the heap. */
+    public int getUrgency(int fieldId) { return this.urgency[fieldId]; }
+
+    /* Apply every queued update whose id has been written. Under lock. */
+    private void drain() {
+        while (true) {
+            int slot = (int) (this.queueHead % this.queue.length());
+            int entry = this.queue.get(slot);
+            if (entry == 0) return;
+            this.queue.set(slot, 0);
+            this.queueHead += 1;
+            int id = entry - 1;
+            this.dirty.set(id, 0);
+            int old = this.urgency[id];
+            this.urgency[id] = this.fields[id].getUrgency();
+            if (this.urgency[id] > old) {
+                this.siftUp(this.position[id]);
+            } else if (this.urgency[id] < old) {
+                this.siftDown(this.position[id]);
+            }
+        }
+    }
+
+    /* Fill out with the k most urgent field ids, most urgent first, and
+     * return how many were written (fewer if there are fewer fields). */
+    public int mostUrgent(int[] out, int k) {
+        this.lock.lock();
+        try {
+            this.drain();
+            k = Math.min(k, Math.min(out.length, this.size));
+            if (k == 0) return 0;
+            // Max-heap of heap slots; every slot popped adds its children.
+            int frontierSize = 0;
+            this.frontier[frontierSize++] = 0;
+            for (int n = 0; n < k; n++) {
+                int slot = this.frontier[0];
+                this.frontier[0] = this.frontier[--frontierSize];
+                this.siftDownFrontier(frontierSize);
+                out[n] = this.heap[slot];
+                for (int child = 2 * slot + 1;
+                     child <= 2 * slot + 2 && child < this.size;
+                     child++) {
+                    this.frontier[frontierSize++] = child;
+                    this.siftUpFrontier(frontierSize - 1);
+                }
+            }
+            return k;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /* Is field a more urgent than field b? */
+    private Boolean before(int a, int b) {
+        if (this.urgency[a] != this.urgency[b]) {
+            return this.urgency[a] > this.urgency[b];
+        }
+        return a < b;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!this.before(this.heap[i], this.heap[parent])) return;
+            this.swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int best  = i;
+            int left  = 2 * i + 1;
+            int right = left + 1;
+            if (left < this.size && this.before(this.heap[left], this.heap[best])) {
+                best = left;
+            }
+            if (right < this.size && this.before(this.heap[right], this.heap[best])) {
+                best = right;
+            }
+            if (best == i) return;
+            this.swap(i, best);
+            i = best;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int a = this.heap[i];
+        int b = this.heap[j];
+        this.heap[i] = b;
+        this.heap[j] = a;
+        this.position[b] = i;
+        this.position[a] = j;
+    }
+
+    /* The frontier holds heap slots, ordered by the field in the slot. */
+    private Boolean frontierBefore(int i, int j) {
+        return this.before(this.heap[this.frontier[i]],
+                           this.heap[this.frontier[j]]);
+    }
+
+    private void siftUpFrontier(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!this.frontierBefore(i, parent)) return;
+            this.swapFrontier(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDownFrontier(int size) {
+        int i = 0;
+        while (true) {
+            int best  = i;
+            int left  = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && this.frontierBefore(left, best))   best = left;
+            if (right < size && this.frontierBefore(right, best)) best = right;
+            if (best == i) return;
+            this.swapFrontier(i, best);
+            i = best;
+        }
+    }
+
+    private void swapFrontier(int i, int j) {
+        int t = this.frontier[i];
+        this.frontier[i] = this.frontier[j];
+        this.frontier[j] = t;
+    }
+}
@@ -0,0 +1,72 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* Events counted in consecutive windows of a fixed number of ticks, such as
+ * animals sold per 100 ticks. Only the window being filled and the one
+ * before it are kept, so getLast() always has a complete window to show.
+ *
+ * Lock-free: two slots, one for odd and one for even windows, each holding
+ * its window's index and count in one word. Adding is a CAS on the slot,
+ * which starts the count over when it still holds an older window. Reading
+ * changes nothing. */
+public class WindowCounter {
+    private final int width;
+    private final AtomicLongArray slots;  // window << 32 | count.
+    private final AtomicLong      latest; // Newest window added to.
+
+    WindowCounter(int width) {
+        this.width  = width;
+        this.slots  = new AtomicLongArray(2);
+        this.latest = new AtomicLong(0);
+    }
+
+    public int getWidth() { return this.width; }
+
+    private static long window(long s) { return s >>> 32; }
+    private static long count(long s)  { return s & 0xFFFFFFFFL; }
+
+    /* A late caller with an older tick counts into the current window. */
+    public void add(long n, int tick) {
+        long w = tick / this.width;
+        long newest;
+        while ((newest = this.latest.get()) < w) {
+            if (this.latest.compareAndSet(newest, w)) break;
+        }
+        w = Math.max(w, this.latest.get());
+        int slot = (int) (w & 1);
+        while (true) {
+            long s = this.slots.get(slot);
+            long next = window(s) == w ? s + n : w << 32 | n;
+            if (window(s) > w) return; // Two windows on already.
+            if (this.slots.compareAndSet(slot, s, next)) return;
+        }
+    }
+
+    /* Count in the last complete window before tick. */
+    public long getLast(int tick) {
+        long previous = tick / this.width - 1;
+        if (previous < 0) return 0;
+        long s = this.slots.get((int) (previous & 1));
+        return window(s) == previous ? count(s) : 0;
+    }
+
+    /* Same layout as ever: window being filled, its count, the count of
+     * the one before. */
+    void save(Snapshot.Writer out) {
+        long w = this.latest.get();
+        long current  = this.slots.get((int) (w & 1));
+        long previous = this.slots.get((int) ((w + 1) & 1));
+        out.putLong(w);
+        out.putLong(window(current) == w ? count(current) : 0);
+        out.putLong(w > 0 && window(previous) == w - 1 ? count(previous) : 0);
+    }
+
+    void restore(Snapshot.Reader in) {
+        long w = in.getLong();
+        long current  = in.getLong();
+        long previous = in.getLong();
+        this.latest.set(w);
+        this.slots.set((int) (w & 1), w << 32 | current);
+        this.slots.set((int) ((w + 1) & 1), w > 0 ? (w - 1) << 32 | previous : 0);
+    }
+}
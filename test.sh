@@ -0,0 +1,10 @@
+#!/bin/sh
+# Build src/ and run the checks in test/ against it.
+set -e
+echo "[*] Compiling src/ and test/"
+rm -rf build/test
+mkdir -p build/test
+javac --release 21 -d build/test src/*.java test/*.java
+echo "[*] Running tests"
+java -cp build/test FieldTest
+java -cp build/test LogAnalyzerTest
@@ -0,0 +1,291 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/* Checks Field's state word and queues, with and without a Mailbox:
+ * queued buyers are served in order, an animal given back by a cancelled
+ * buy is neither lost nor counted twice, the field never holds more than
+ * its capacity, and under contention every animal stocked is either sold
+ * or still in the field. Buyers and farmers go through the same calls as
+ * Buyer and Farmer do, so a Field with a Mailbox is only looked at once
+ * its messages have run.
+ *
+ *   ./test.sh
+ */
+public class FieldTest {
+    private final static int
+        RACE_ROUNDS = 2000; // Cancels raced against a grant.
+    private final static int
+        BUYERS      =    8; // Threads buying under contention,
+    private final static int
+        BUYS        = 2000; // each this many times,
+    private final static int
+        FARMERS     =    3; // from a field these many keep stocking.
+    private final static int
+        CAPACITY    =   10;
+    private final static int
+        MAILBOX_THREADS = 2;
+
+    /* First thing to go wrong on a thread of ours, rethrown by join(). */
+    private static final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private interface Body { void run() throws Exception; }
+
+    public static void main(String[] args) throws Exception {
+        Logger.setLevel(Logger.Level.ERROR);
+        ExecutorService pool = Mailbox.pool(MAILBOX_THREADS);
+        try {
+            for (ExecutorService engine : new ExecutorService[] { null, pool }) {
+                String name = engine == null ? "threads" : "mailbox";
+                fifo(engine, name);
+                overStocked(engine, name);
+                givenBackWhileStocking(engine, name);
+                givenBackToFullField(engine, name);
+                contention(engine, name);
+            }
+            cancelRacesGrant();
+        } finally {
+            pool.shutdownNow();
+        }
+        System.out.println("FieldTest passed.");
+    }
+
+    /* Buyers get animals in the order they queued, and one arriving while
+     * others wait queues behind them even if there is stock. */
+    private static void fifo(ExecutorService engine, String name) throws Exception {
+        Field field = field(engine, CAPACITY, 0);
+        Field.Waiter[] waiters = new Field.Waiter[4];
+        for (int i = 0; i < 3; i++) waiters[i] = queue(field);
+        check(stock(field, 1) == 1, name + " fifo: stocked 1");
+        checkGranted(name + " fifo after 1", waiters, true, false, false);
+
+        startStocking(field);
+        waiters[3] = queue(field);
+        check(finishStocking(field, 2) == 2, name + " fifo: stocked 2");
+        checkGranted(name + " fifo after 2", waiters, true, true, true, false);
+        check(field.getBuyerCount() == 1, name + " fifo: one buyer left queued");
+
+        check(stock(field, 5) == 5, name + " fifo: stocked 5");
+        checkGranted(name + " fifo after 5", waiters, true, true, true, true);
+        checkField(field, 4, name + " fifo");
+    }
+
+    /* A farmer bringing more than fits keeps the rest. */
+    private static void overStocked(ExecutorService engine, String name) throws Exception {
+        Field field = field(engine, CAPACITY, CAPACITY - 2);
+        check(stock(field, 5) == 2, name + " over capacity: 2 of 5 fit");
+        checkField(field, CAPACITY, name + " over capacity");
+    }
+
+    /* A granted buyer gives its animal back while a farmer who counted the
+     * room it left is stocking: the farmer's animals that no longer fit
+     * stay with him, and the queued buyer still gets one. */
+    private static void givenBackWhileStocking(ExecutorService engine, String name)
+            throws Exception {
+        Field field = field(engine, 1, 0);
+        Field.Waiter first  = queue(field);
+        check(stock(field, 1) == 1, name + " given back: first stock");
+        checkGranted(name + " given back", new Field.Waiter[] { first }, true);
+
+        startStocking(field);
+        int room = field.getAnimalsMissing();
+        Field.Waiter second = queue(field);
+        AtomicInteger kept = new AtomicInteger(0);
+        field.cancel(first, kept::incrementAndGet);
+        check(finishStocking(field, room) == 0,
+              name + " given back: nothing fits after the animal came back");
+        checkGranted(name + " given back", new Field.Waiter[] { second }, true);
+        check(kept.get() == 0, name + " given back: cancelled buyer kept nothing");
+        checkField(field, 0, name + " given back");
+    }
+
+    /* Animals given back to a full field go straight to the next queued
+     * buyer, and with nobody queued stay with the buyer who cancelled. */
+    private static void givenBackToFullField(ExecutorService engine, String name)
+            throws Exception {
+        Field field = field(engine, 1, 0);
+        Field.Waiter[] waiters = { queue(field), queue(field), queue(field) };
+        check(stock(field, 1) == 1 && stock(field, 1) == 1,
+              name + " full field: two stocked");
+        checkGranted(name + " full field", waiters, true, true, false);
+
+        AtomicInteger kept = new AtomicInteger(0);
+        startStocking(field);
+        field.cancel(waiters[0], kept::incrementAndGet); // Fills the field.
+        field.cancel(waiters[1], kept::incrementAndGet); // Goes to the third.
+        check(finishStocking(field, 1) == 0, name + " full field: no room left");
+        checkGranted(name + " full field", waiters, true, true, true);
+        check(kept.get() == 0, name + " full field: passed on, not kept");
+        checkField(field, 1, name + " full field");
+
+        buy(field); // The one left.
+        Field.Waiter last = queue(field);
+        check(stock(field, 1) == 1, name + " full field: served the fourth");
+        checkGranted(name + " full field", new Field.Waiter[] { last }, true);
+        check(stock(field, 1) == 1, name + " full field: refilled");
+        field.cancel(last, kept::incrementAndGet);
+        stock(field, 0); // Once the cancel has run.
+        check(kept.get() == 1, name + " full field: nobody queued, buyer kept it");
+        checkField(field, 1, name + " full field, kept");
+    }
+
+    /* A cancel and the grant it races: whichever wins, the one animal ends
+     * up in the field, with the other queued buyer, or kept, exactly once. */
+    private static void cancelRacesGrant() throws Exception {
+        for (int round = 0; round < RACE_ROUNDS; round++) {
+            Field field = field(null, 1, 0);
+            Field.Waiter cancelled = queue(field);
+            Field.Waiter behind = round % 2 == 0 ? null : queue(field);
+            AtomicInteger kept = new AtomicInteger(0);
+            CyclicBarrier go = new CyclicBarrier(2);
+            join(spawn("race-farmer", () -> {
+                     go.await();
+                     check(stock(field, 1) == 1, "race: stocked 1");
+                 }),
+                 spawn("race-buyer", () -> {
+                     go.await();
+                     field.cancel(cancelled, kept::incrementAndGet);
+                 }));
+            int served = behind != null && behind.isGranted() ? 1 : 0;
+            check(field.getAnimalCount() + served + kept.get() == 1,
+                  "race round " + round + ": " + field.getAnimalCount()
+                  + " in the field, " + served + " served, " + kept.get() + " kept");
+            checkField(field, field.getAnimalCount(), "race round " + round);
+        }
+    }
+
+    /* Buyers and farmers hammering one field: what was stocked is what
+     * was sold plus what is left, and the count never passes capacity. */
+    private static void contention(ExecutorService engine, String name) throws Exception {
+        Field field = field(engine, CAPACITY, 0);
+        AtomicLong sold    = new AtomicLong(0);
+        AtomicLong stocked = new AtomicLong(0);
+        AtomicInteger over = new AtomicInteger(0);
+        long target = (long) BUYERS * BUYS;
+        Thread[] threads = new Thread[BUYERS + FARMERS];
+        for (int i = 0; i < threads.length; i++) {
+            Boolean buyer = i < BUYERS;
+            threads[i] = spawn(name + (buyer ? "-buyer-" : "-farmer-") + i, () -> {
+                if (buyer) {
+                    for (int b = 0; b < BUYS; b++) {
+                        buy(field);
+                        sold.incrementAndGet();
+                        if (field.getAnimalCount() > CAPACITY) over.incrementAndGet();
+                    }
+                    return;
+                }
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (sold.get() < target && failure.get() == null) {
+                    int animals = random.nextInt(1, CAPACITY + 1);
+                    int accepted = stock(field, animals);
+                    if (accepted > animals) over.incrementAndGet();
+                    stocked.addAndGet(accepted);
+                    if (field.getAnimalCount() > CAPACITY) over.incrementAndGet();
+                    if (accepted == 0) Thread.yield();
+                }
+            });
+        }
+        join(threads);
+        stock(field, 0); // Once every message has run.
+        check(over.get() == 0, name + " contention: over capacity " + over.get() + " times");
+        check(sold.get() == target, name + " contention: sold " + sold.get());
+        check(stocked.get() == sold.get() + field.getAnimalCount(),
+              name + " contention: stocked " + stocked.get() + ", sold " + sold.get()
+              + ", left " + field.getAnimalCount());
+        checkField(field, field.getAnimalCount(), name + " contention");
+    }
+
+    private static Thread spawn(String name, Body body) {
+        Thread thread = new Thread(() -> {
+            try {
+                body.run();
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+        }, name);
+        thread.start();
+        return thread;
+    }
+
+    private static void join(Thread... threads) throws Exception {
+        for (Thread thread : threads) thread.join();
+        Throwable t = failure.get();
+        if (t instanceof Exception) throw (Exception) t;
+        if (t instanceof Error) throw (Error) t;
+    }
+
+    private static Field field(ExecutorService engine, int capacity, int animals) {
+        Field field = new Field(0, "Cow", capacity, animals, new UrgencyIndex(1));
+        if (engine != null) field.setMailbox(new Mailbox(engine));
+        return field;
+    }
+
+    /* Buy an animal as a Buyer does, parking until it is granted. */
+    private static void buy(Field field) throws InterruptedException {
+        Signal wakeup = new Signal();
+        long seen = wakeup.generation();
+        Field.Waiter waiter = field.takeAnimalOrQueue(wakeup);
+        if (waiter != null) awaitGrant(waiter, wakeup, seen);
+    }
+
+    /* Join the buyer queue; the field must have nothing to hand out. */
+    private static Field.Waiter queue(Field field) {
+        Field.Waiter waiter = field.takeAnimalOrQueue(new Signal());
+        check(waiter != null, "buyer queued");
+        return waiter;
+    }
+
+    private static void startStocking(Field field) throws InterruptedException {
+        Signal wakeup = new Signal();
+        long seen = wakeup.generation();
+        Field.Waiter waiter = field.startStockingOrQueue(wakeup);
+        if (waiter != null) awaitGrant(waiter, wakeup, seen);
+    }
+
+    /* How many of animals went in, once the field has said so. */
+    private static int finishStocking(Field field, int animals) throws Exception {
+        if (!field.hasMailbox()) return field.finishStocking(animals);
+        CompletableFuture<Integer> accepted = new CompletableFuture<>();
+        field.finishStocking(animals, accepted::complete);
+        return accepted.get();
+    }
+
+    private static int stock(Field field, int animals) throws Exception {
+        startStocking(field);
+        return finishStocking(field, animals);
+    }
+
+    private static void awaitGrant(Field.Waiter waiter, Signal wakeup, long seen)
+            throws InterruptedException {
+        while (!waiter.isGranted()) {
+            wakeup.await(seen);
+            seen = wakeup.generation();
+        }
+    }
+
+    private static void checkGranted(String what, Field.Waiter[] waiters,
+                                     Boolean... granted) {
+        for (int i = 0; i < granted.length; i++) {
+            check(waiters[i].isGranted().equals(granted[i]),
+                  what + ": buyer " + i + (granted[i] ? " not" : "") + " granted");
+        }
+    }
+
+    /* Settled: count animals, nobody queued or stocking. */
+    private static void checkField(Field field, int animals, String what) {
+        check(field.getAnimalCount() == animals,
+              what + ": " + field.getAnimalCount() + " animals, expected " + animals);
+        check(field.getAnimalCount() <= field.getCapacity(), what + ": over capacity");
+        check(field.getBuyerCount() == 0, what + ": buyers still queued");
+        check(field.getFarmerCount() == 0 && !field.isStocking(),
+              what + ": a farmer is still queued or stocking");
+    }
+
+    private static void check(Boolean ok, String what) {
+        if (!ok) throw new AssertionError(what);
+    }
+}
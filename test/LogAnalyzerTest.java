@@ -0,0 +1,113 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/* Checks LogAnalyzer against baseline.log, a log in the layout the original
+ * simulation wrote: one dock, no dock numbers, and a take line that lists
+ * the whole enclosure even when the farmer left some behind.
+ *
+ * Its STATUS lines put 10 animals in the enclosure over ticks 1-4, 6 at
+ * tick 5 and 10 over ticks 6-7, which is 66 over the log's 10 ticks.
+ * Buyer-1 spawns before Buyer-0, as wall-clock threads can log, and they
+ * wait 5 and 6 ticks for a Pig and a Cow; Buyer-2 never buys.
+ *
+ * Each check runs with the whole log in one piece and with pieces of a
+ * byte, cut at the next line end, so that every buyer and STATUS pair
+ * spans pieces and is matched when they are merged.
+ *
+ *   ./test.sh
+ */
+public class LogAnalyzerTest {
+    private static final Path BASELINE = Path.of("test", "baseline.log");
+
+    private static final int[] CHUNK_SIZES = { 1, 200, 1 << 30 };
+
+    public static void main(String[] args) throws Exception {
+        AnimalTypes types = new AnimalTypes(Simulation.ANIMAL_TYPES);
+        long lines = Files.readAllLines(BASELINE).size();
+
+        for (int chunkSize : CHUNK_SIZES) {
+            for (int window : new int[] { 1, 3, Simulation.DAY_DURATION }) {
+                String what = "chunks of " + chunkSize + ", window " + window;
+                LogAnalyzer analyzer
+                    = new LogAnalyzer(BASELINE, types, window, 2, chunkSize);
+                analyzer.run();
+                if (chunkSize == 1) {
+                    check(analyzer.getChunks() == lines, what + ": a piece per line");
+                }
+                check(analyzer.getMeanBacklog(), 6.6, what + ": status lines");
+
+                Histogram waits = analyzer.getWaits();
+                check(waits.getCount() == 2 && waits.getSum() == 11
+                      && waits.getMax() == 6,
+                      what + ": waits " + waits.summary());
+                check(analyzer.getStillWaiting() == 1,
+                      what + ": " + analyzer.getStillWaiting() + " still waiting");
+                check(analyzer.getUnmatchedBuys() == 0,
+                      what + ": " + analyzer.getUnmatchedBuys() + " unmatched buys");
+                for (int t = 0; t < types.count(); t++) {
+                    String name = types.name(t);
+                    long sold = name.equals("Pig") || name.equals("Cow") ? 1 : 0;
+                    long stocked = name.equals("Cow") ? 4 : 0;
+                    check(analyzer.getSold(t) == sold,
+                          what + ": " + analyzer.getSold(t) + " " + name + " sold");
+                    check(analyzer.getStocked(t) == stocked,
+                          what + ": " + analyzer.getStocked(t) + " " + name + " stocked");
+                }
+            }
+        }
+
+        /* Without STATUS lines the take lines count 20 out of 14
+         * delivered; the backlog is clamped at 0 rather than going below
+         * it. Per tick: 10 over ticks 1-4, 0 at 5, 4 over 6-7, then 0. */
+        Path flow = Files.createTempFile("baseline-flow", ".log");
+        try {
+            List<String> kept = Files.readAllLines(BASELINE).stream()
+                .filter(line -> !line.startsWith("[S]"))
+                .collect(Collectors.toList());
+            Files.write(flow, kept);
+            for (int chunkSize : CHUNK_SIZES) {
+                LogAnalyzer analyzer = new LogAnalyzer(flow, types, 1, 1, chunkSize);
+                analyzer.run();
+                check(analyzer.getMeanBacklog(), 4.8,
+                      "chunks of " + chunkSize + ": delivered less taken");
+            }
+        } finally {
+            Files.delete(flow);
+        }
+
+        /* The archived run, if it's there, must not go below 0 either, and
+         * comes out the same cut into pieces as whole. */
+        Path archived = Path.of("stdout.txt");
+        if (Files.exists(archived)) {
+            LogAnalyzer whole = new LogAnalyzer(archived, types,
+                                                Simulation.DAY_DURATION, 1, 1 << 30);
+            LogAnalyzer cut = new LogAnalyzer(archived, types,
+                                              Simulation.DAY_DURATION, 2, 1 << 12);
+            whole.run();
+            cut.run();
+            check(whole.getMeanBacklog() >= 0,
+                  "stdout.txt: mean backlog " + whole.getMeanBacklog() + " is below 0");
+            check(cut.getMeanBacklog(), whole.getMeanBacklog(), "stdout.txt in pieces");
+            check(cut.getWaits().summary().equals(whole.getWaits().summary())
+                  && cut.getStillWaiting() == whole.getStillWaiting(),
+                  "stdout.txt in pieces: waits " + cut.getWaits().summary());
+            for (int t = 0; t < types.count(); t++) {
+                check(cut.getSold(t) == whole.getSold(t)
+                      && cut.getStocked(t) == whole.getStocked(t),
+                      "stdout.txt in pieces: " + types.name(t) + " sold or stocked");
+            }
+        }
+        System.out.println("LogAnalyzerTest passed.");
+    }
+
+    private static void check(double actual, double expected, String what) {
+        check(Math.abs(actual - expected) < 1e-9,
+              what + ": mean backlog " + actual + ", expected " + expected);
+    }
+
+    private static void check(Boolean ok, String what) {
+        if (!ok) throw new AssertionError(what);
+    }
+}